@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.color.ColorSpace;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares decoding every layer of a PSD with the ChannelDecoder against decoding them through ImageIO.
+ *
+ * Only layers that the ChannelDecoder can handle are timed, so both benchmarks do the same work. Pass the PSD with
+ * -p psdFile=path/to/montage.psd
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChannelDecoderBenchmark {
+
+    @Param({""})
+    public String psdFile;
+
+    private PsdLayerTable layerTable;
+    private PsdFileMapping mappedFile;
+    private ColorSpace colorSpace;
+
+    private ImageInputStream input;
+    private ImageReader psdReader;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if( psdFile.isEmpty() ){
+            throw new IllegalArgumentException("Pass the PSD to decode with -p psdFile=<path>");
+        }
+        File imageFile = new File(psdFile);
+
+        layerTable = PsdLayerTableParser.parse(imageFile);
+        mappedFile = new PsdFileMapping(imageFile);
+        colorSpace = ColorSpace.getInstance( layerTable.mode.equals(PsdReader.GRAY) ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB );
+
+        input = ImageIO.createImageInputStream(imageFile);
+        psdReader = ImageIO.getImageReaders(input).next();
+        psdReader.setInput(input);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        psdReader.dispose();
+        input.close();
+    }
+
+    @Benchmark
+    public void channelDecoder(Blackhole blackhole) throws IOException {
+        for( LayerRecord record : layerTable.records ){
+            if( ChannelDecoder.canDecode(mappedFile, layerTable, record) ){
+                blackhole.consume( ChannelDecoder.decode(mappedFile, layerTable, record, colorSpace) );
+            }
+        }
+    }
+
+    @Benchmark
+    public void imageIO(Blackhole blackhole) throws IOException {
+        for( LayerRecord record : layerTable.records ){
+            if( ChannelDecoder.canDecode(mappedFile, layerTable, record) ){
+                blackhole.consume( psdReader.read(record.imageIndex) );
+            }
+        }
+    }
+}
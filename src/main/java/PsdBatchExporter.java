@@ -0,0 +1,375 @@
+import export.ExportPipeline;
+import export.ExportProfile;
+import montage.LayerIndexCache;
+import montage.PsdData;
+import montage.PsdReader;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Exports the layers of many PSDs without a display. Each document's layers go into their own folder, named after
+ * the document, under the output folder; or with -p, into a single multi-page TIFF named after it, or with -r, into a
+ * ZIP or TAR named after it.
+ *
+ * Usage: PsdBatchExporter -o outputFolder [-j workers] [-e encodersPerFile] [-w writersPerFile] [-m memoryMB] [-t fileType | -f profile] [-c] [-p | -r zip|tar] [-i] [-z] [-a] [-s] input...
+ *
+ * Inputs can be files, folders (every PSD/PSB directly inside them), or globs like "scans/**.psd". Exits with 0 if
+ * every document exported, 1 if any of them failed, and 2 if the arguments didn't make sense. A profile, like
+ * tiff-deflate-6 or png-9, picks the compression as well as the file type; see ExportProfile for the list. With -i,
+ * layers that haven't changed since the last -i export to the same folder aren't written again. -z writes tiled TIFFs
+ * with their reduced resolutions inside, for viewers that zoom around huge images, and -a adds the flattened image
+ * of all the layers beside them, as document.flat.tif. Files are written by -w threads per document while the layers
+ * after them are encoded; with -s, each is synced to disk before it's renamed into place.
+ */
+public class PsdBatchExporter {
+
+    static final int EXIT_OK = 0;
+    static final int EXIT_FAILURES = 1;
+    static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = "Usage: PsdBatchExporter -o outputFolder [-j workers] [-e encodersPerFile] [-w writersPerFile] [-m memoryMB] [-t fileType | -f profile] [-c] [-p | -r zip|tar] [-i] [-z] [-a] [-s] input...";
+
+    private static final long MB = 1024*1024;
+
+    private final File exportFolder;
+    private final ExportProfile profile;
+    private final int numWorkers;
+    private final int encodeThreads;
+    private final int ioThreads;
+    private final int memoryBudgetMB;
+    private final boolean cropToLayer;
+    private final boolean multiPage;
+    private final String archiveType;
+    private final boolean incremental;
+    private final boolean pyramidTiff;
+    private final boolean composite;
+    private final boolean durable;
+
+    // Each running export holds permits for the memory it's expected to need, in MB.
+    private final Semaphore memoryBudget;
+
+    PsdBatchExporter(File exportFolder, ExportProfile profile, int numWorkers, int encodeThreads, int ioThreads,
+                     int memoryBudgetMB, boolean cropToLayer, boolean multiPage, String archiveType, boolean incremental,
+                     boolean pyramidTiff, boolean composite, boolean durable){
+        this.exportFolder = exportFolder;
+        this.profile = profile;
+        this.numWorkers = numWorkers;
+        this.encodeThreads = encodeThreads;
+        this.ioThreads = ioThreads;
+        this.memoryBudgetMB = memoryBudgetMB;
+        this.cropToLayer = cropToLayer;
+        this.multiPage = multiPage;
+        this.archiveType = archiveType;
+        this.incremental = incremental;
+        this.pyramidTiff = pyramidTiff;
+        this.composite = composite;
+        this.durable = durable;
+        this.memoryBudget = new Semaphore(memoryBudgetMB, true);
+    }
+
+    public static void main(String[] args){
+        System.exit(run(args));
+    }
+
+    static int run(String[] args){
+        File exportFolder = null;
+        ExportProfile profile = ExportProfile.TIFF_LZW;
+        // Each export already keeps a couple of cores busy decoding and encoding.
+        int numWorkers = Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+        int encodeThreads = 1;
+        int ioThreads = 1;
+        int memoryBudgetMB = (int)(Runtime.getRuntime().maxMemory()*3/4/MB);
+        boolean cropToLayer = false;
+        boolean multiPage = false;
+        String archiveType = null;
+        boolean incremental = false;
+        boolean pyramidTiff = false;
+        boolean composite = false;
+        boolean durable = false;
+        List<String> inputs = new ArrayList<>();
+
+        try {
+            for( int a=0; a<args.length; a++ ){
+                switch( args[a] ){
+                    case "-o":
+                        exportFolder = new File(args[++a]);
+                        break;
+                    case "-j":
+                        numWorkers = Integer.parseInt(args[++a]);
+                        break;
+                    case "-e":
+                        encodeThreads = Integer.parseInt(args[++a]);
+                        break;
+                    case "-w":
+                        ioThreads = Integer.parseInt(args[++a]);
+                        break;
+                    case "-m":
+                        memoryBudgetMB = Integer.parseInt(args[++a]);
+                        break;
+                    case "-c":
+                        cropToLayer = true;
+                        break;
+                    case "-p":
+                        multiPage = true;
+                        break;
+                    case "-r":
+                        archiveType = args[++a].toLowerCase(Locale.ROOT);
+                        if( !archiveType.equals("zip") && !archiveType.equals("tar") ){
+                            throw new IllegalArgumentException("Archives can be zip or tar, not "+args[a]);
+                        }
+                        break;
+                    case "-i":
+                        incremental = true;
+                        break;
+                    case "-z":
+                        pyramidTiff = true;
+                        break;
+                    case "-a":
+                        composite = true;
+                        break;
+                    case "-s":
+                        durable = true;
+                        break;
+                    case "-t":
+                        profile = ExportProfile.forFileType(args[++a]);
+                        break;
+                    case "-f":
+                        profile = ExportProfile.forName(args[++a]);
+                        break;
+                    default:
+                        inputs.add(args[a]);
+                        break;
+                }
+            }
+        } catch (IllegalArgumentException ex) { // Including a bad number.
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        if( exportFolder == null || inputs.isEmpty() || numWorkers < 1 || encodeThreads < 1 || ioThreads < 1 || memoryBudgetMB < 1 ){
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        if( (pyramidTiff || composite) && !profile.isTiff() ){
+            System.err.println("-z and -a only make TIFFs, not "+profile.getName());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        if( pyramidTiff && multiPage ){
+            System.err.println("-z can't be used with -p");
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        if( multiPage && archiveType != null ){
+            System.err.println("-p and -r can't be used together");
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        // A file matched by more than one input is still only exported once.
+        Map<File, File> documents = new LinkedHashMap<>();
+        try {
+            for( String input : inputs ){
+                for( File psdFile : expandInput(input) ){
+                    documents.putIfAbsent(psdFile.getCanonicalFile(), psdFile);
+                }
+            }
+        } catch (IOException | InvalidPathException ex) {
+            System.err.println("Couldn't list the inputs: "+ex.getMessage());
+            return EXIT_USAGE;
+        }
+        List<File> psdFiles = new ArrayList<>(documents.values());
+
+        // Each document's folder, pages or archive is named after it, so two with the same name would write over each
+        // other. Names that differ only in case are the same on plenty of filesystems.
+        Map<String, File> byName = new HashMap<>();
+        for( File psdFile : psdFiles ){
+            File other = byName.putIfAbsent(documentName(psdFile).toLowerCase(Locale.ROOT), psdFile);
+            if( other != null ){
+                System.err.println(other+" and "+psdFile+" would both be exported as "+documentName(psdFile)+
+                                   "; export them to different folders.");
+                System.err.println(USAGE);
+                return EXIT_USAGE;
+            }
+        }
+
+        if( psdFiles.isEmpty() ){
+            System.err.println("No PSDs matched "+inputs);
+            return EXIT_USAGE;
+        }
+
+        return new PsdBatchExporter(exportFolder, profile, numWorkers, encodeThreads, ioThreads, memoryBudgetMB, cropToLayer,
+                                    multiPage, archiveType, incremental, pyramidTiff, composite, durable).exportAll(psdFiles);
+    }
+
+    /**
+     * Exports every file, numWorkers at a time, and prints how it went.
+     */
+    int exportAll(List<File> psdFiles){
+        ExecutorService workers = Executors.newFixedThreadPool(numWorkers);
+        long startTime = System.nanoTime();
+
+        List<Future<ExportPipeline>> results = new ArrayList<>();
+        for( File psdFile : psdFiles ){
+            results.add(workers.submit(() -> exportFile(psdFile)));
+        }
+        workers.shutdown();
+
+        int numExported = 0;
+        long numLayers = 0;
+        long numSkipped = 0;
+        long numBytes = 0;
+
+        for( int f=0; f<psdFiles.size(); f++ ){
+            try {
+                ExportPipeline pipeline = results.get(f).get();
+                numExported++;
+                numLayers += pipeline.getLayersWritten();
+                numSkipped += pipeline.getLayersSkipped();
+                numBytes += pipeline.getBytesWritten();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                LogManager.getLogger().error("Failed to export "+psdFiles.get(f)+"!", cause);
+                System.err.println("FAILED "+psdFiles.get(f)+": "+cause);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                workers.shutdownNow();
+                System.err.println("Interrupted; stopping.");
+                return EXIT_FAILURES;
+            }
+        }
+
+        double seconds = Math.max(1e-9, (System.nanoTime()-startTime)/1e9);
+        System.out.println(String.format(Locale.ROOT,
+                "Exported %d of %d files (%d layers%s, %.1f MB) in %.2f s: %.2f files/s, %.1f layers/s, %.1f MB/s",
+                numExported, psdFiles.size(), numLayers, incremental ? ", "+numSkipped+" unchanged" : "",
+                (double)numBytes/MB, seconds, numExported/seconds, numLayers/seconds, numBytes/seconds/MB));
+
+        return numExported == psdFiles.size() ? EXIT_OK : EXIT_FAILURES;
+    }
+
+    private ExportPipeline exportFile(File psdFile) throws IOException, InterruptedException {
+        String docName = documentName(psdFile);
+
+        File docFolder = multiPage || archiveType != null ? exportFolder : new File(exportFolder, docName);
+
+        PsdReader psdReader = new PsdReader();
+        psdReader.setLazyDecoding(true);
+        psdReader.setIndexCache(LayerIndexCache.getDefault());
+
+        try (PsdData data = psdReader.read(psdFile, null)) {
+            if( !docFolder.isDirectory() && !docFolder.mkdirs() ){
+                throw new IOException("Couldn't create "+docFolder);
+            }
+            ExportPipeline pipeline = new ExportPipeline(data, docFolder, profile);
+            pipeline.setEncodeThreads(encodeThreads);
+            pipeline.setIoThreads(ioThreads);
+            pipeline.setDurable(durable);
+            pipeline.setCropToLayer(cropToLayer);
+            pipeline.setIncremental(incremental);
+            pipeline.setSourceFile(psdFile);
+            pipeline.setPyramidTiff(pyramidTiff);
+            if( multiPage ){
+                pipeline.setMultiPageFile(docName+"."+profile.getFileType());
+            }else if( archiveType != null ){
+                pipeline.setArchiveFile(docName+"."+archiveType);
+            }
+
+            // A document bigger than the whole budget still gets to run, just on its own.
+            int neededMB = (int)Math.min(memoryBudgetMB, Math.max(1, pipeline.estimatePeakBytes()/MB));
+            memoryBudget.acquire(neededMB);
+            try {
+                LogManager.getLogger().info("Exporting "+psdFile+" to "+docFolder);
+                pipeline.run();
+                if( composite ){
+                    pipeline.writeComposite(docName+".flat.tif");
+                }
+            } finally {
+                memoryBudget.release(neededMB);
+            }
+            return pipeline;
+        }
+    }
+
+    /**
+     * The file's name without its extension, which is what its export is named after.
+     */
+    static String documentName(File psdFile){
+        String docName = psdFile.getName();
+        int extloc = docName.lastIndexOf(".");
+        if( extloc != -1 ){
+            docName = docName.substring(0, extloc);
+        }
+        return docName;
+    }
+
+    /**
+     * Turns an input argument into the files it names. Folders give every PSD/PSB directly inside them, and globs
+     * are matched against the files under their first non-wildcard folder.
+     */
+    static List<File> expandInput(String input) throws IOException {
+        File asFile = new File(input);
+
+        if( asFile.isDirectory() ){
+            try (Stream<Path> listing = Files.list(asFile.toPath())) {
+                return listing.filter(PsdBatchExporter::isPsd).map(Path::toFile).sorted().collect(Collectors.toList());
+            }
+        }
+        if( asFile.exists() || !isGlob(input) ){
+            List<File> single = new ArrayList<>();
+            single.add(asFile);
+            return single;
+        }
+
+        // Split off the leading folders that don't have any wildcards in them; those are where we start looking.
+        String pattern = input.replace(File.separatorChar, '/');
+        int firstGlob = 0;
+        while( !isGlob(pattern.substring(0, firstGlob+1)) ){
+            firstGlob++;
+        }
+        int baseEnd = pattern.lastIndexOf('/', firstGlob);
+
+        Path base = Paths.get(baseEnd == -1 ? "." : baseEnd == 0 ? "/" : pattern.substring(0, baseEnd)).toAbsolutePath();
+        String rest = pattern.substring(baseEnd+1);
+
+        if( !Files.isDirectory(base) ){
+            return new ArrayList<>();
+        }
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:"+rest);
+        int maxDepth = rest.contains("**") ? Integer.MAX_VALUE : rest.split("/").length;
+
+        try (Stream<Path> walk = Files.walk(base, maxDepth)) {
+            return walk.filter(Files::isRegularFile)
+                       .filter(p -> matcher.matches(base.relativize(p)))
+                       .map(Path::toFile)
+                       .sorted()
+                       .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isGlob(String input){
+        return input.indexOf('*') != -1 || input.indexOf('?') != -1 || input.indexOf('[') != -1 || input.indexOf('{') != -1;
+    }
+
+    private static boolean isPsd(Path path){
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return Files.isRegularFile(path) && (name.endsWith(".psd") || name.endsWith(".psb"));
+    }
+}
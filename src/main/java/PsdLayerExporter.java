@@ -1,24 +1,19 @@
+import export.ExportPipeline;
+import export.ExportProfile;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.scene.control.Alert;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import montage.LayerIndexCache;
 import montage.PsdData;
-import montage.PsdLayer;
 import montage.PsdReader;
 import montage.ResourceReadProgressListener;
 import org.apache.logging.log4j.LogManager;
 
-import javax.imageio.*;
-import javax.imageio.stream.ImageOutputStream;
-import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Paths;
-import java.util.Iterator;
-
-import static javax.imageio.ImageWriteParam.MODE_EXPLICIT;
 
 public class PsdLayerExporter extends Application {
 
@@ -26,7 +21,13 @@ public class PsdLayerExporter extends Application {
     public void start(Stage primaryStage) throws Exception {
 
         String suffix = "";
-        String fileType = "tif";
+        // Pick a different compression with --profile=tiff-deflate-6 and the like.
+        String profileName = getParameters().getNamed().get("profile");
+        ExportProfile profile = profileName != null ? ExportProfile.forName(profileName) : ExportProfile.TIFF_LZW;
+        // --pyramid=true writes tiled TIFFs with their reduced resolutions inside.
+        boolean pyramidTiff = Boolean.parseBoolean(getParameters().getNamed().get("pyramid"));
+        // --incremental=true only writes the layers that changed since the document was last exported to the folder.
+        boolean incremental = Boolean.parseBoolean(getParameters().getNamed().get("incremental"));
 
 
         FileChooser fileChooser = new FileChooser();
@@ -44,78 +45,26 @@ public class PsdLayerExporter extends Application {
         ResourceReadProgressListener progBar = new ResourceReadProgressListener(2);
 
         PsdReader psdReader = new PsdReader();
+        // Only decode each layer when the export pipeline gets to it.
+        psdReader.setLazyDecoding(true);
+        psdReader.setIndexCache(LayerIndexCache.getDefault());
+        psdReader.setWarningHandler(message -> Platform.runLater(() -> {
+            Alert alert = new Alert(Alert.AlertType.WARNING, message);
+            alert.showAndWait();
+        }));
 
-        try {
-            PsdData data = psdReader.read(psdToLoad, progBar);
+        try (PsdData data = psdReader.read(psdToLoad, progBar)) {
 
             progBar.setFileProgress(1);
-            float progAmt = 0;
-
-            for(PsdLayer layer : data.getMontageLayers()) {
-
-                String layerName = layer.name;
-                int extloc = layerName.lastIndexOf(".");
-                if( extloc != -1 ) {
-                    layerName = layerName.substring(0, extloc);
-                }
-                LogManager.getLogger().info("Writing " + layerName +"."+ fileType +"("+(100f*progAmt/data.getNumLayers())+"%)");
-
-
-                File outFile = Paths.get(exportFolder.getAbsolutePath(),layerName+"."+fileType).toFile();
-                ImageTypeSpecifier imSpec = new ImageTypeSpecifier( layer.getLayerImage().getColorModel(),
-                        layer.getLayerImage().getSampleModel() );
-
-                try (ImageOutputStream output = ImageIO.createImageOutputStream(outFile)){
-
-                    Iterator<ImageWriter> writerList = ImageIO.getImageWriters(imSpec, fileType);
-
-                    if( !writerList.hasNext() ){
-                        LogManager.getLogger().error("Failed to write file: "+layerName+"."+fileType+"! No "+ fileType + " writer detected.");
-                        throw new IOException("Failed to load PSD: "+layerName+"."+fileType+"! No "+ fileType +" writer detected.");
-                    }
-
-                    ImageWriter psdWriter = writerList.next();
-                    psdWriter.setOutput(output);
-
-                    ImageWriteParam imWriteParam = psdWriter.getDefaultWriteParam();
-                    imWriteParam.setCompressionMode(MODE_EXPLICIT);
-                    imWriteParam.setCompressionType("LZW");
-                   float qual = imWriteParam.getCompressionQuality();
-
-
-
-                    //Add option here.
-                    BufferedImage inSitu = imSpec.createBufferedImage(data.getDimensions().width, data.getDimensions().height);
-                    LogManager.getLogger().debug(layer.bounds);
-
-                    Rectangle layerRect = new Rectangle(0, 0, layer.bounds.width, layer.bounds.height);
-                    if(layer.bounds.x < 0){
-                        layerRect.x = -layerRect.x;
-                        layer.bounds.x=0;
-                    }
-                    if(layer.bounds.x+layer.bounds.width >= inSitu.getWidth()){
-                        layerRect.width = data.getDimensions().width-layer.bounds.x-1;
-                        layer.bounds.width= data.getDimensions().width-layer.bounds.x-1;
-                    }
-                    if(layer.bounds.y < 0){
-                        layerRect.y = -layerRect.y;
-                        layer.bounds.y=0;
-                    }
-                    if(layer.bounds.y+layer.bounds.height >= inSitu.getHeight()){
-                        layerRect.height= data.getDimensions().height-layer.bounds.y-1;
-                        layer.bounds.height= data.getDimensions().height-layer.bounds.y-1;
-                    }
-
-                    BufferedImage subim = inSitu.getSubimage(layer.bounds.x, layer.bounds.y, layer.bounds.width, layer.bounds.height);
-
-                    subim.setData(layer.getLayerImage().getSubimage(layerRect.x, layerRect.y, layerRect.width, layerRect.height).getData());
-
-                    psdWriter.write(null, new IIOImage(inSitu,null,null), imWriteParam);
-                    progAmt++;
-                    progBar.imageProgress(null, (float) (100*progAmt/data.getNumLayers()) );
-                }
 
-            }
+            ExportPipeline pipeline = new ExportPipeline(data, exportFolder, profile);
+            pipeline.setProgressListener(progBar);
+            pipeline.setIncremental(incremental);
+            pipeline.setSourceFile(psdToLoad);
+            pipeline.setPyramidTiff(pyramidTiff);
+            // A thread per core, as long as that many canvases fit in memory.
+            pipeline.fitEncodeThreads(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory()*3/4);
+            pipeline.run();
 
             LogManager.getLogger().info("...Done.");
 
@@ -0,0 +1,145 @@
+import export.ExportPipeline;
+import export.ExportProfile;
+import montage.PsdData;
+import montage.PsdReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Exports one PSD with every export profile, or just the ones named, and prints how big and how fast each one was,
+ * so you can pick the fastest profile that fits in the space you have. The files are written to a temporary folder
+ * and deleted afterwards.
+ *
+ * Usage: PsdProfileBenchmark [-e encoders] [-c] [-v] file.psd [profile...]
+ *
+ * Ratio is the output's size over the layers' uncompressed pixels; encode ms is the time spent compressing, summed
+ * over every encoder thread, and MB/s is uncompressed MB through an encoder per second. The first profile also pays
+ * for warming up the JVM, so name it twice if its times matter.
+ */
+public class PsdProfileBenchmark {
+
+    private static final String USAGE = "Usage: PsdProfileBenchmark [-e encoders] [-c] [-v] file.psd [profile...]";
+
+    private static final double MB = 1024*1024;
+
+    public static void main(String[] args){
+        System.exit(run(args));
+    }
+
+    static int run(String[] args){
+        int encodeThreads = 1;
+        boolean cropToLayer = false;
+        boolean verbose = false;
+        File psdFile = null;
+        List<ExportProfile> profiles = new ArrayList<>();
+
+        try {
+            for( int a=0; a<args.length; a++ ){
+                switch( args[a] ){
+                    case "-e":
+                        encodeThreads = Integer.parseInt(args[++a]);
+                        break;
+                    case "-c":
+                        cropToLayer = true;
+                        break;
+                    case "-v":
+                        verbose = true;
+                        break;
+                    default:
+                        if( psdFile == null ){
+                            psdFile = new File(args[a]);
+                        }else{
+                            profiles.add(ExportProfile.forName(args[a]));
+                        }
+                        break;
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            return PsdBatchExporter.EXIT_USAGE;
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            System.err.println(USAGE);
+            return PsdBatchExporter.EXIT_USAGE;
+        }
+
+        if( psdFile == null || encodeThreads < 1 ){
+            System.err.println(USAGE);
+            return PsdBatchExporter.EXIT_USAGE;
+        }
+        if( profiles.isEmpty() ){
+            profiles.addAll(ExportProfile.all());
+        }
+
+        PsdReader psdReader = new PsdReader();
+        psdReader.setLazyDecoding(true);
+
+        try (PsdData data = psdReader.read(psdFile, null)) {
+            System.out.printf("%-16s %6s %10s %7s %10s %8s %8s%n", "profile", "files", "MB", "ratio", "encode ms", "MB/s", "wall s");
+
+            for( ExportProfile profile : profiles ){
+                Path folder = Files.createTempDirectory("profile-benchmark");
+                try {
+                    ExportPipeline pipeline = new ExportPipeline(data, folder.toFile(), profile);
+                    pipeline.setEncodeThreads(encodeThreads);
+                    pipeline.setCropToLayer(cropToLayer);
+
+                    long start = System.nanoTime();
+                    pipeline.run();
+                    double wallSeconds = (System.nanoTime()-start)/1e9;
+
+                    long rawBytes = 0;
+                    long encodedBytes = 0;
+                    long encodeNanos = 0;
+                    for( ExportPipeline.LayerStats layer : pipeline.getLayerStats() ){
+                        rawBytes += layer.rawBytes;
+                        encodedBytes += layer.encodedBytes;
+                        encodeNanos += layer.encodeNanos;
+                    }
+
+                    System.out.printf("%-16s %6d %10.2f %7.3f %10.1f %8.1f %8.2f%n", profile.getName(),
+                                      pipeline.getLayersWritten(), encodedBytes/MB, ratio(encodedBytes, rawBytes),
+                                      encodeNanos/1e6, throughput(rawBytes, encodeNanos), wallSeconds);
+
+                    if( verbose ){
+                        for( ExportPipeline.LayerStats layer : pipeline.getLayerStats() ){
+                            System.out.printf("  %-30s %10.2f %7.3f %10.1f %8.1f%n", layer.layerName,
+                                              layer.encodedBytes/MB, ratio(layer.encodedBytes, layer.rawBytes),
+                                              layer.encodeNanos/1e6, throughput(layer.rawBytes, layer.encodeNanos));
+                        }
+                    }
+                } finally {
+                    deleteAll(folder);
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Failed to benchmark "+psdFile+": "+ex.getMessage());
+            return PsdBatchExporter.EXIT_FAILURES;
+        }
+
+        return PsdBatchExporter.EXIT_OK;
+    }
+
+    private static double ratio(long encodedBytes, long rawBytes){
+        return rawBytes > 0 ? (double)encodedBytes/rawBytes : 0;
+    }
+
+    private static double throughput(long rawBytes, long nanos){
+        return nanos > 0 ? rawBytes/MB/(nanos/1e9) : 0;
+    }
+
+    private static void deleteAll(Path folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for( Path path : (Iterable<Path>)paths.sorted(Comparator.reverseOrder())::iterator ){
+                Files.delete(path);
+            }
+        }
+    }
+}
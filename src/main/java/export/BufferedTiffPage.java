@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A TIFF page that's been compressed into memory, so pages can be encoded on several threads and still be appended to
+ * the file in order. Strip offsets are kept relative to the page until it's appended.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class BufferedTiffPage implements StreamingTiffWriter.StripSink {
+
+    final TiffDirectory directory = new TiffDirectory();
+
+    private byte[] data = new byte[64*1024];
+    private int length = 0;
+
+    @Override
+    public long append(byte[] bytes, int off, int len) throws IOException {
+        if( (long)length+len > Integer.MAX_VALUE-8 ){
+            throw new IOException("A single page can't compress to over 2 GB.");
+        }
+        if( length+len > data.length ){
+            data = Arrays.copyOf(data, Math.max(length+len, (int)Math.min(Integer.MAX_VALUE-8, data.length*2L)));
+        }
+
+        long at = length;
+        System.arraycopy(bytes, off, data, length, len);
+        length += len;
+        return at;
+    }
+
+    /**
+     * How many bytes of strips the page holds so far.
+     */
+    int length(){
+        return length;
+    }
+
+    /**
+     * Writes the page's strips and then its directory to the end of the file.
+     */
+    void appendTo(TiffOutput out) throws IOException {
+        long base = out.append(data, 0, length);
+        directory.offsetLongs(TiffDirectory.STRIP_OFFSETS, base);
+        out.appendDirectory(directory);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import montage.PsdData;
+import montage.PsdLayer;
+
+import java.awt.*;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+
+/**
+ * The flattened image of every layer in a PsdData, as 8 bit sRGB with alpha. Rows are composited a band at a time as
+ * they're asked for, top to bottom, decoding only the parts of the layers that fall inside each band, so the whole
+ * canvas is never in memory.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class CompositeSource implements RasterSource {
+
+    // Rows are composited this many at a time, since the writers may only want one or two at once.
+    private static final int BAND_ROWS = 256;
+
+    private final PsdData data;
+    private final Rectangle content;
+
+    // The rows composited last, packed ARGB.
+    private Rectangle band = null;
+    private int[] bandPixels;
+
+    CompositeSource(PsdData data){
+        this.data = data;
+
+        Rectangle layerBounds = new Rectangle();
+        for( PsdLayer layer : data.getMontageLayers() ){
+            layerBounds = layerBounds.isEmpty() ? new Rectangle(layer.bounds) : layerBounds.union(layer.bounds);
+        }
+        Rectangle onCanvas = layerBounds.intersection(new Rectangle(data.getDimensions()));
+        content = onCanvas.isEmpty() ? new Rectangle() : onCanvas;
+    }
+
+    @Override
+    public Dimension getSize(){
+        return data.getDimensions();
+    }
+
+    @Override
+    public ColorModel getColorModel(){
+        return ColorModel.getRGBdefault();
+    }
+
+    @Override
+    public Rectangle getContentBounds(){
+        return content;
+    }
+
+    @Override
+    public void readRows(int y, int numRows, byte[] dest){
+        long rowBytes = (long)getSize().width*4;
+
+        for( int row=Math.max(y, content.y); row<Math.min(y+numRows, content.y+content.height); row++ ){
+            if( band == null || row < band.y || row >= band.y+band.height ){
+                composite(row);
+            }
+
+            int at = (int)((row-y)*rowBytes)+content.x*4;
+            int from = (row-band.y)*content.width;
+            for( int p=0; p<content.width; p++ ){
+                int argb = bandPixels[from+p];
+                dest[at++] = (byte)(argb >>> 16);
+                dest[at++] = (byte)(argb >>> 8);
+                dest[at++] = (byte)argb;
+                dest[at++] = (byte)(argb >>> 24);
+            }
+        }
+    }
+
+    private void composite(int y){
+        band = new Rectangle(content.x, y, content.width, BAND_ROWS).intersection(content);
+
+        // readRegion() always hands back a fresh TYPE_INT_ARGB image, so its pixels are packed row after row.
+        bandPixels = ((DataBufferInt)data.readRegion(band).getRaster().getDataBuffer()).getData();
+    }
+}
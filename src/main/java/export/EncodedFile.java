@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A whole file encoded into memory, for when it has to be written out in one go, like an archive entry.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class EncodedFile implements FileSink {
+
+    private static final int MAX_LENGTH = Integer.MAX_VALUE-8;
+
+    private final String name;
+    private byte[] data = new byte[64*1024];
+    private int length = 0;
+
+    EncodedFile(String name){
+        this.name = name;
+    }
+
+    @Override
+    public String getName(){
+        return name;
+    }
+
+    @Override
+    public void write(ByteBuffer bytes, long position) throws IOException {
+        long end = position+bytes.remaining();
+        if( end > MAX_LENGTH ){
+            throw new IOException("Failed to write file: "+name+"! It can't be over 2 GB in memory.");
+        }
+        if( end > data.length ){
+            data = Arrays.copyOf(data, (int)Math.max(end, Math.min(MAX_LENGTH, data.length*2L)));
+        }
+
+        bytes.get(data, (int)position, bytes.remaining());
+        length = (int)Math.max(length, end);
+    }
+
+    @Override
+    public long length(){
+        return length;
+    }
+
+    /**
+     * The file's bytes, from 0 up to length(). The array may be longer than that.
+     */
+    byte[] data(){
+        return data;
+    }
+}
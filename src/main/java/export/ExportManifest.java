@@ -0,0 +1,217 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import montage.PsdLayer;
+import org.apache.logging.log4j.LogManager;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What an incremental export left in its folder, so the next one can tell which layers it doesn't need to write
+ * again. It's a CSV file: a version line, the export settings, then one row per file written:
+ *
+ *   file,layer,x,y,width,height,opacity,hash,placement_x,placement_y,placement_width,placement_height,bytes
+ *
+ * x, y, width and height are the layer's bounds, hash is its content hash in hex, placement is where the file sits
+ * on the canvas, and bytes is how long the file was when it was written.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public final class ExportManifest {
+
+    public static final String FILE_NAME = "export-manifest.csv";
+
+    private static final String VERSION_LINE = "# psd layer export manifest 1";
+    private static final String SETTINGS = "settings";
+    private static final String HEADER = "file,layer,x,y,width,height,opacity,hash,placement_x,placement_y,placement_width,placement_height,bytes";
+
+    private final String settings;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    ExportManifest(String settings){
+        this.settings = settings;
+    }
+
+    String getSettings(){
+        return settings;
+    }
+
+    synchronized Entry get(String fileName){
+        return entries.get(fileName);
+    }
+
+    synchronized void put(Entry entry){
+        entries.put(entry.fileName, entry);
+    }
+
+    synchronized Collection<Entry> entries(){
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Reads the manifest in the export folder, or returns null if there isn't one we can use.
+     */
+    static ExportManifest read(File exportFolder){
+        Path path = new File(exportFolder, FILE_NAME).toPath();
+        try {
+            List<List<String>> rows = parse(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+
+            if( rows.size() < 3 || !rows.get(0).equals(singleton(VERSION_LINE)) || rows.get(1).size() != 2 ||
+                    !rows.get(1).get(0).equals(SETTINGS) ){
+                LogManager.getLogger().warn("Ignoring "+path+"; it isn't a manifest this version can read.");
+                return null;
+            }
+
+            ExportManifest manifest = new ExportManifest(rows.get(1).get(1));
+            for( List<String> row : rows.subList(3, rows.size()) ){
+                manifest.put(new Entry(row.get(0), row.get(1),
+                                       new Rectangle(Integer.parseInt(row.get(2)), Integer.parseInt(row.get(3)),
+                                                     Integer.parseInt(row.get(4)), Integer.parseInt(row.get(5))),
+                                       Float.parseFloat(row.get(6)), Long.parseUnsignedLong(row.get(7), 16),
+                                       new Rectangle(Integer.parseInt(row.get(8)), Integer.parseInt(row.get(9)),
+                                                     Integer.parseInt(row.get(10)), Integer.parseInt(row.get(11))),
+                                       Long.parseLong(row.get(12))));
+            }
+            return manifest;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException | RuntimeException ex) {
+            LogManager.getLogger().warn("Ignoring "+path+"; it couldn't be read.", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the manifest in the export folder with this one. It's written beside the old one first, so there's
+     * always a whole manifest there.
+     */
+    void write(File exportFolder) throws IOException {
+        Path path = new File(exportFolder, FILE_NAME).toPath();
+        Path temp = new File(exportFolder, FILE_NAME+".tmp").toPath();
+
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            out.write(VERSION_LINE+"\n");
+            out.write(SETTINGS+","+PlacementManifest.quote(settings)+"\n");
+            out.write(HEADER+"\n");
+
+            for( Entry entry : entries() ){
+                out.write(PlacementManifest.quote(entry.fileName)+","+PlacementManifest.quote(entry.layerName)+","+
+                          entry.bounds.x+","+entry.bounds.y+","+entry.bounds.width+","+entry.bounds.height+","+
+                          entry.opacity+","+Long.toHexString(entry.hash)+","+
+                          entry.placement.x+","+entry.placement.y+","+entry.placement.width+","+entry.placement.height+","+
+                          entry.fileBytes+"\n");
+            }
+        }
+
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static List<String> singleton(String field){
+        List<String> row = new ArrayList<>();
+        row.add(field);
+        return row;
+    }
+
+    // Splits CSV text into rows of fields, undoing the quoting that PlacementManifest.quote() does.
+    private static List<List<String>> parse(String text){
+        List<List<String>> rows = new ArrayList<>();
+        List<String> row = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for( int i=0; i<text.length(); i++ ){
+            char c = text.charAt(i);
+            if( quoted ){
+                if( c == '"' && i+1 < text.length() && text.charAt(i+1) == '"' ){
+                    field.append('"');
+                    i++;
+                }else if( c == '"' ){
+                    quoted = false;
+                }else{
+                    field.append(c);
+                }
+            }else if( c == '"' ){
+                quoted = true;
+            }else if( c == ',' ){
+                row.add(field.toString());
+                field.setLength(0);
+            }else if( c == '\n' ){
+                row.add(field.toString());
+                field.setLength(0);
+                rows.add(row);
+                row = new ArrayList<>();
+            }else if( c != '\r' ){
+                field.append(c);
+            }
+        }
+        if( field.length() > 0 || !row.isEmpty() ){
+            row.add(field.toString());
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * One file written for a layer, and everything about the layer that went into it.
+     */
+    static final class Entry {
+        final String fileName;
+        final String layerName;
+        final Rectangle bounds;
+        final float opacity;
+        final long hash;
+        final Rectangle placement;
+        final long fileBytes;
+
+        Entry(String fileName, String layerName, Rectangle bounds, float opacity, long hash, Rectangle placement,
+              long fileBytes){
+            this.fileName = fileName;
+            this.layerName = layerName;
+            this.bounds = new Rectangle(bounds);
+            this.opacity = opacity;
+            this.hash = hash;
+            this.placement = new Rectangle(placement);
+            this.fileBytes = fileBytes;
+        }
+
+        /**
+         * Returns true if the layer would be written exactly as it was last time.
+         */
+        boolean matches(PsdLayer layer, long layerHash){
+            return layerName.equals(layer.name) && bounds.equals(layer.bounds) &&
+                   Float.floatToIntBits(opacity) == Float.floatToIntBits(layer.opacity) && hash == layerHash;
+        }
+    }
+}
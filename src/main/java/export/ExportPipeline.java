@@ -0,0 +1,927 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import montage.PsdData;
+import montage.PsdLayer;
+import org.apache.logging.log4j.LogManager;
+
+import javax.imageio.event.IIOReadProgressListener;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exports the layers of a PsdData as a three stage pipeline: one thread decodes layers, one places them on their
+ * canvas, and the calling thread encodes them, along with any extra encoding threads. The stages are joined by small
+ * bounded queues, so only a few layers are ever in memory at once, no matter how many are in the document.
+ *
+ * Works best on a PsdData read with lazy decoding, since each layer's pixels are released once they're on a canvas.
+ *
+ * Layers are written onto full canvases by default. In cropped mode only the part of each layer that's on the canvas
+ * is written, and a PlacementManifest records where each file goes. TIFFs are streamed out a strip at a time where
+ * the layer allows it, so a full canvas never has to be made at all. Their strips are compressed in parallel on the
+ * common ForkJoinPool, so even a document that's one huge layer uses every core.
+ *
+ * Layers can also all go into one multi-page TIFF instead of a file each. Each page is named after its layer, and
+ * carries its offset on the canvas in its XPosition and YPosition tags, at 72 pixels per inch. Or they can all go into
+ * one ZIP or TAR, with an index of where each layer belongs, so there's no separate pass to archive them afterwards.
+ *
+ * How files are compressed is up to the ExportProfile. What each layer cost to encode is kept in its LayerStats, so
+ * profiles can be compared on real documents.
+ *
+ * For huge canvases, layers can be written as tiled TIFFs with a pyramid of reduced resolution levels, which viewers
+ * can open and pan around without reading the whole file. The flattened image of every layer can be written the same
+ * way by writeComposite(), a band at a time.
+ *
+ * Encoders don't write files themselves; they hand the encoded bytes to a WriteBehindStage, whose own threads write
+ * them out while the encoders get on with the next layer. How many bytes may wait there is capped, so a slow disk
+ * holds the encoders up rather than filling memory. Files only appear under their real names once they're whole, and
+ * can be synced to disk before they do.
+ *
+ * Incremental exports keep an ExportManifest in the export folder. A layer whose pixels, bounds and opacity are the
+ * same as last time, exported with the same settings, isn't decoded or written again; files left over from layers
+ * that are gone are deleted.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public class ExportPipeline {
+
+    // How many finished items each stage may get ahead of the next one.
+    private static final int QUEUE_DEPTH = 2;
+
+    private final PsdData data;
+    private final File exportFolder;
+    private final ExportProfile profile;
+    private final String fileType;
+
+    private IIOReadProgressListener progressListener = null;
+
+    // How many threads encode finished canvases; the calling thread is one of them.
+    private int encodeThreads = 1;
+
+    // If true, layers are written at their own size instead of the canvas's.
+    private boolean cropToLayer = false;
+
+    // If true, TIFFs are written by the StreamingTiffWriter instead of ImageIO whenever it can handle the layer.
+    private boolean streamingTiff = true;
+
+    // If true, the strips and tiles of streamed TIFFs are compressed on the common ForkJoinPool.
+    private boolean parallelCompression = true;
+
+    // If true, TIFFs are written tiled, with reduced resolution copies in their SubIFDs.
+    private boolean pyramidTiff = false;
+
+    // If set, every layer is written as a page of this one TIFF, in the export folder.
+    private String multiPageFile = null;
+    private TiffPageSequence pages;
+
+    // If set, every layer's file goes into this ZIP or TAR, in the export folder.
+    private String archiveFile = null;
+    private LayerArchive archive;
+
+    // Where the encoders send their files during run().
+    private WriteBehindStage stage;
+
+    // How many threads write files, and how many encoded bytes may wait for them.
+    private int ioThreads = 1;
+    private long writeBehindBytes = 64L*1024*1024;
+
+    // If true, files are synced to disk before they're renamed into place.
+    private boolean durable = false;
+
+    // If true, layers that haven't changed since the last incremental export to the folder are left alone.
+    private boolean incremental = false;
+    // The document the layers came from, so a manifest left by another document's export is never trusted.
+    private File sourceFile = null;
+    private ExportManifest previousManifest;
+    // If false, the last export of the document used other settings, so its manifest only says which files it wrote.
+    private boolean previousSettingsMatch;
+    private ExportManifest manifest;
+    private long[] contentHashes;
+
+    // Each layer's file, numbered where layers share a name, so no two write the same one.
+    private String[] fileNames;
+
+    // Filled in by the encoders as each layer is written, for the placement manifest.
+    private String[] writtenFiles;
+    private Rectangle[] placements;
+    private LayerStats[] layerStats;
+
+    private final AtomicInteger layersProcessed = new AtomicInteger();
+    private final AtomicInteger layersWritten = new AtomicInteger();
+    private final AtomicInteger layersSkipped = new AtomicInteger();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    public ExportPipeline(PsdData data, File exportFolder, String fileType){
+        this(data, exportFolder, ExportProfile.forFileType(fileType));
+    }
+
+    public ExportPipeline(PsdData data, File exportFolder, ExportProfile profile){
+        this.data = data;
+        this.exportFolder = exportFolder;
+        this.profile = profile;
+        this.fileType = profile.getFileType();
+    }
+
+    public ExportProfile getProfile(){
+        return profile;
+    }
+
+    public void setProgressListener(IIOReadProgressListener listener){
+        progressListener = listener;
+    }
+
+    public void setEncodeThreads(int numThreads){
+        encodeThreads = Math.max(1, numThreads);
+    }
+
+    public int getEncodeThreads(){
+        return encodeThreads;
+    }
+
+    /**
+     * Uses as many encode threads, up to maxThreads, as estimatePeakBytes() says fit in maxBytes, but always at least
+     * one. Set everything else first, since the estimate depends on it.
+     */
+    public void fitEncodeThreads(int maxThreads, long maxBytes){
+        encodeThreads = Math.max(1, maxThreads);
+        while( encodeThreads > 1 && estimatePeakBytes() > maxBytes ){
+            encodeThreads--;
+        }
+    }
+
+    public void setIoThreads(int numThreads){
+        ioThreads = Math.max(1, numThreads);
+    }
+
+    public int getIoThreads(){
+        return ioThreads;
+    }
+
+    /**
+     * Caps how many encoded bytes can wait to be written before the encoders have to stop and wait for the disk.
+     */
+    public void setWriteBehindBytes(long bytes){
+        writeBehindBytes = Math.max(1, bytes);
+    }
+
+    public long getWriteBehindBytes(){
+        return writeBehindBytes;
+    }
+
+    /**
+     * Syncs each file to disk before it's given its name, so a crash never leaves one half written. Files are synced
+     * in batches, but it's still slower.
+     */
+    public void setDurable(boolean durable){
+        this.durable = durable;
+    }
+
+    public boolean isDurable(){
+        return durable;
+    }
+
+    public void setCropToLayer(boolean crop){
+        cropToLayer = crop;
+    }
+
+    public boolean isCropToLayer(){
+        return cropToLayer;
+    }
+
+    public void setStreamingTiff(boolean streaming){
+        streamingTiff = streaming;
+    }
+
+    public boolean isStreamingTiff(){
+        return streamingTiff;
+    }
+
+    /**
+     * Compresses the strips or tiles of each streamed TIFF in parallel. They're shared with every other user of the
+     * common ForkJoinPool, so exports running side by side don't swamp the machine.
+     */
+    public void setParallelCompression(boolean parallel){
+        parallelCompression = parallel;
+    }
+
+    public boolean isParallelCompression(){
+        return parallelCompression;
+    }
+
+    /**
+     * Writes TIFFs as tiled pyramids, for viewers that only load the tiles and zoom level on screen.
+     */
+    public void setPyramidTiff(boolean pyramid){
+        pyramidTiff = pyramid;
+    }
+
+    public boolean isPyramidTiff(){
+        return pyramidTiff;
+    }
+
+    /**
+     * Writes every layer as a page of a single TIFF with this name, or a file per layer if it's null.
+     */
+    public void setMultiPageFile(String fileName){
+        multiPageFile = fileName;
+    }
+
+    public String getMultiPageFile(){
+        return multiPageFile;
+    }
+
+    /**
+     * Puts every layer's file into a single archive with this name, which has to end in .zip or .tar, or writes them
+     * separately if it's null.
+     */
+    public void setArchiveFile(String fileName){
+        archiveFile = fileName;
+    }
+
+    public String getArchiveFile(){
+        return archiveFile;
+    }
+
+    /**
+     * Only writes the layers that have changed since the last incremental export to the same folder.
+     */
+    public void setIncremental(boolean incremental){
+        this.incremental = incremental;
+    }
+
+    public boolean isIncremental(){
+        return incremental;
+    }
+
+    /**
+     * Tells incremental exports which document the layers came from. They're written in full without it.
+     */
+    public void setSourceFile(File sourceFile){
+        this.sourceFile = sourceFile;
+    }
+
+    public File getSourceFile(){
+        return sourceFile;
+    }
+
+    /**
+     * How many layers the last incremental run found unchanged, and so didn't write.
+     */
+    public int getLayersSkipped(){
+        return layersSkipped.get();
+    }
+
+    public int getLayersWritten(){
+        return layersWritten.get();
+    }
+
+    public long getBytesWritten(){
+        return bytesWritten.get();
+    }
+
+    /**
+     * What each layer written by the last run cost, in layer order.
+     */
+    public List<LayerStats> getLayerStats(){
+        List<LayerStats> stats = new ArrayList<>();
+        if( layerStats != null ){
+            for( LayerStats layer : layerStats ){
+                if( layer != null ){
+                    stats.add(layer);
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Roughly how much memory run() needs at its worst: the largest image we'll make in every queue slot, and one in
+     * each stage, plus whatever is waiting to be written. That's a full canvas, or the largest layer when cropping or
+     * streaming TIFFs. Encoded files held in memory are counted at their uncompressed size.
+     */
+    public long estimatePeakBytes(){
+        Dimension canvasSize = data.getDimensions();
+        int bytesPerPixel = 4*Math.max(1, data.getNumBits()/8);
+
+        long largestImage = (long)canvasSize.width*canvasSize.height;
+        if( cropToLayer || streamsTiff() || multiPageFile != null || pyramidTiff ){
+            largestImage = 0;
+            for( PsdLayer layer : data.getMontageLayers() ){
+                largestImage = Math.max(largestImage, (long)layer.bounds.width*layer.bounds.height);
+            }
+        }
+
+        // ImageIO's writers cache the whole encoded file in memory, and so does an encoder adding a file to an archive.
+        // Pages wait, encoded, for the ones before them.
+        boolean holdsEncodedFiles = archiveFile != null || !(streamsTiff() || pyramidTiff || multiPageFile != null);
+        int encodedFiles = (holdsEncodedFiles ? encodeThreads : 0)+(multiPageFile != null ? 2*encodeThreads : 0);
+
+        return largestImage*bytesPerPixel*(2*QUEUE_DEPTH+2+encodeThreads+encodedFiles)+writeBehindBytes;
+    }
+
+    public void run() throws IOException {
+
+        if( multiPageFile != null && !isTiff() ){
+            throw new IOException("Only TIFFs can hold more than one layer; can't write "+multiPageFile+" as a "+fileType+".");
+        }
+        if( pyramidTiff && !isTiff() ){
+            throw new IOException("Only TIFFs can be written as pyramids, not "+fileType+"s.");
+        }
+        if( pyramidTiff && multiPageFile != null ){
+            throw new IOException("Layers can't be written as pyramids into "+multiPageFile+"; only as separate files.");
+        }
+        if( archiveFile != null && multiPageFile != null ){
+            throw new IOException("Layers can't go into both "+multiPageFile+" and "+archiveFile+".");
+        }
+        if( archiveFile != null && !LayerArchive.isArchiveName(archiveFile) ){
+            throw new IOException("Can't write "+archiveFile+"; archives have to be .zip or .tar files.");
+        }
+
+        PsdLayer[] layers = data.getMontageLayers();
+        layersProcessed.set(0);
+        layersWritten.set(0);
+        layersSkipped.set(0);
+        bytesWritten.set(0);
+        writtenFiles = new String[layers.length];
+        placements = new Rectangle[layers.length];
+        layerStats = new LayerStats[layers.length];
+        fileNames = LayerCanvas.fileNamesFor(layers, fileType);
+        startManifest(layers);
+
+        BlockingQueue<PipelineItem> decoded = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        BlockingQueue<PipelineItem> composited = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread decoder = new Thread(() -> {
+            try {
+                for( int l=0; l<layers.length; l++ ){
+                    if( manifest != null ){
+                        contentHashes[l] = layers[l].getContentHash();
+                        if( skipIfUnchanged(l, layers[l], layers.length) ){
+                            continue;
+                        }
+                    }
+                    layers[l].getLayerImage();
+                    decoded.put(new PipelineItem(l, layers[l], null, null, false));
+                }
+                decoded.put(PipelineItem.END);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+                // Nothing queued matters anymore, so make room to tell the next stage we're done.
+                decoded.clear();
+                decoded.offer(PipelineItem.END);
+            }
+        }, "Layer decoder");
+
+        Thread compositor = new Thread(() -> {
+            try {
+                PipelineItem item = decoded.take();
+                Dimension canvasSize = data.getDimensions();
+
+                while( item != PipelineItem.END ){
+                    BufferedImage layerIm = item.layer.getLayerImage();
+                    if( (multiPageFile != null || pyramidTiff) && !StreamingTiffWriter.canWrite(layerIm) ){
+                        LogManager.getLogger().warn("Converting "+item.layer.name+" to sRGB to write it out a tile or page at a time.");
+                        layerIm = StreamingTiffWriter.toWritable(layerIm);
+                    }
+                    boolean streamed = multiPageFile != null || pyramidTiff || (streamsTiff() && StreamingTiffWriter.canWrite(layerIm));
+
+                    Rectangle placement = cropToLayer ? LayerCanvas.clipToCanvas(item.layer, layerIm, canvasSize)
+                                                      : new Rectangle(canvasSize);
+                    BufferedImage inSitu;
+
+                    if( placement.isEmpty() ){
+                        inSitu = null;
+                    }else if( streamed ){ // The encoder lays it out a strip at a time.
+                        inSitu = layerIm;
+                    }else if( cropToLayer ){
+                        inSitu = LayerCanvas.cropToCanvas(item.layer, canvasSize);
+                    }else{
+                        inSitu = LayerCanvas.placeOnCanvas(item.layer, canvasSize);
+                    }
+                    item.layer.releaseLayerImage();
+
+                    composited.put(new PipelineItem(item.index, item.layer, inSitu, placement, streamed));
+                    item = decoded.take();
+                }
+                composited.put(PipelineItem.END);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+                composited.clear();
+                composited.offer(PipelineItem.END);
+            }
+        }, "Layer compositor");
+
+        stage = new WriteBehindStage(ioThreads, writeBehindBytes, durable);
+        WriteBehindStage.PendingFile pagesFile = null;
+        if( multiPageFile != null ){
+            pagesFile = stage.open(new File(exportFolder, multiPageFile));
+            pages = new TiffPageSequence(new TiffOutput(pagesFile), 2*encodeThreads);
+        }else{
+            pages = null;
+        }
+        WriteBehindStage.PendingFile archivePending = null;
+        if( archiveFile != null ){
+            archivePending = stage.open(new File(exportFolder, archiveFile));
+            archive = LayerArchive.open(archiveFile, archivePending.outputStream());
+        }else{
+            archive = null;
+        }
+
+        decoder.start();
+        compositor.start();
+
+        Runnable stopUpstream = () -> {
+            decoder.interrupt();
+            compositor.interrupt();
+        };
+
+        Thread[] encoders = new Thread[encodeThreads-1];
+        for( int e=0; e<encoders.length; e++ ){
+            encoders[e] = new Thread(() -> encode(composited, failure, layers.length, stopUpstream), "Layer encoder "+(e+1));
+            encoders[e].start();
+        }
+
+        try {
+            encode(composited, failure, layers.length, stopUpstream);
+
+            for( Thread encoder : encoders ){
+                encoder.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, new InterruptedIOException("Export was interrupted."));
+        } finally {
+            // If anything went wrong, the other stages may be blocked on a full queue; wake them up.
+            stopUpstream.run();
+            for( Thread encoder : encoders ){
+                encoder.interrupt();
+            }
+            // A layer may still be being decoded or encoded; nothing can be reading the document once run() returns.
+            joinUninterruptibly(decoder);
+            joinUninterruptibly(compositor);
+            for( Thread encoder : encoders ){
+                joinUninterruptibly(encoder);
+            }
+            if( pages != null ){
+                try {
+                    pages.close();
+                    if( failure.get() == null ){
+                        long length = pages.length();
+                        pagesFile.commit(() -> bytesWritten.set(length));
+                    }else{
+                        pagesFile.discard();
+                    }
+                } catch (IOException ex) {
+                    failure.compareAndSet(null, ex);
+                    pagesFile.discard();
+                }
+            }
+            if( archive != null ){
+                try {
+                    if( failure.get() == null ){
+                        archive.finish(writtenFiles, layers, placements, data.getDimensions());
+                        long length = archive.length();
+                        archivePending.commit(() -> bytesWritten.set(length));
+                    }else{
+                        archivePending.discard();
+                    }
+                } catch (IOException ex) {
+                    failure.compareAndSet(null, ex);
+                    archivePending.discard();
+                }
+            }
+            // Everything the encoders handed over has to be on disk before the manifests say it is.
+            try {
+                stage.close();
+            } catch (IOException ex) {
+                failure.compareAndSet(null, ex);
+            }
+            stage = null;
+        }
+
+        if( manifest != null ){
+            finishManifest(failure);
+        }
+
+        // Pages carry their own offsets and archives have their index, so only separate files need the manifest.
+        if( cropToLayer && pages == null && archive == null && failure.get() == null ){
+            String[] layerNames = new String[layers.length];
+            for( int l=0; l<layers.length; l++ ){
+                layerNames[l] = layers[l].name;
+            }
+            PlacementManifest.write(exportFolder, writtenFiles, layerNames, placements, data.getDimensions());
+        }
+
+        Throwable t = failure.get();
+        if( t instanceof IOException ){
+            throw (IOException)t;
+        }else if( t != null ){
+            throw new IOException("Failed to export "+data.getMontageLayers().length+" layers!", t);
+        }
+    }
+
+    /**
+     * Writes the flattened image of every layer into the export folder as a TIFF, compositing it a band at a time so
+     * the canvas is never held whole. It's a tiled pyramid if pyramid TIFFs are on, and striped otherwise.
+     */
+    public void writeComposite(String fileName) throws IOException {
+        if( !isTiff() ){
+            throw new IOException("The composite can only be written as a TIFF; can't write "+fileName+" as a "+fileType+".");
+        }
+
+        File outFile = new File(exportFolder, fileName);
+        RasterSource composite = new CompositeSource(data);
+        LogManager.getLogger().info("Writing the composite to " + fileName);
+
+        // Compositing the next band can go on while the last one is written.
+        try (WriteBehindStage compositeStage = new WriteBehindStage(1, writeBehindBytes, durable)) {
+            WriteBehindStage.PendingFile pending = compositeStage.open(outFile);
+            try (TiffOutput out = new TiffOutput(pending)) {
+                if( pyramidTiff ){
+                    new PyramidTiffWriter(profile::newStripCompressor, compressionPool()).writePage(out, composite, new TiffDirectory());
+                }else{
+                    new StreamingTiffWriter(profile::newStripCompressor, compressionPool()).writePage(out, composite, new TiffDirectory());
+                }
+            } catch (UncheckedIOException ex) { // From a layer that couldn't be decoded.
+                pending.discard();
+                throw ex.getCause();
+            } catch (IOException | RuntimeException | Error ex) {
+                pending.discard();
+                throw ex;
+            }
+            pending.commit(() -> bytesWritten.addAndGet(pending.length()));
+        }
+    }
+
+    /**
+     * Writes canvases until the compositor runs out of them. Safe to run on as many threads as you like.
+     */
+    private void encode(BlockingQueue<PipelineItem> composited, AtomicReference<Throwable> failure, int numLayers,
+                        Runnable stopUpstream){
+
+        StreamingTiffWriter tiffWriter = isTiff() ? new StreamingTiffWriter(profile::newStripCompressor, compressionPool()) : null;
+        PyramidTiffWriter pyramidWriter = pyramidTiff ? new PyramidTiffWriter(profile::newStripCompressor, compressionPool()) : null;
+
+        try (LayerWriter writer = new LayerWriter(profile)) {
+            PipelineItem item = nextItem(composited);
+
+            while( item != PipelineItem.END && failure.get() == null ){
+                String fileName = fileNames[item.index];
+
+                if( pages != null ){
+                    BufferedTiffPage page = null;
+                    if( item.canvas != null ){
+                        LogManager.getLogger().info("Encoding page " + item.layer.name +"("+(100f*layersProcessed.get()/numLayers)+"%)");
+                        long start = System.nanoTime();
+                        page = encodePage(tiffWriter, item);
+                        layerStats[item.index] = new LayerStats(item.layer.name, multiPageFile, rawBytes(item),
+                                                                page.length(), System.nanoTime()-start);
+                        layersWritten.incrementAndGet();
+                    }
+                    pages.complete(item.index, page);
+                }else if( archive != null && item.canvas != null ){
+                    LogManager.getLogger().info("Archiving " + fileName +"("+(100f*layersProcessed.get()/numLayers)+"%)");
+
+                    EncodedFile encoded = new EncodedFile(fileName);
+                    long start = System.nanoTime();
+                    encodeFile(encoded, item, writer, tiffWriter, pyramidWriter);
+                    long encodeNanos = System.nanoTime()-start;
+
+                    writtenFiles[item.index] = archive.add(fileName, encoded, profile.isCompressed());
+                    placements[item.index] = item.placement;
+                    layerStats[item.index] = new LayerStats(item.layer.name, writtenFiles[item.index], rawBytes(item),
+                                                            encoded.length(), encodeNanos);
+                    layersWritten.incrementAndGet();
+                }else if( item.canvas != null ){
+                    LogManager.getLogger().info("Writing " + fileName +"("+(100f*layersProcessed.get()/numLayers)+"%)");
+                    LogManager.getLogger().debug(item.layer.bounds);
+
+                    File outFile = Paths.get(exportFolder.getAbsolutePath(), fileName).toFile();
+                    WriteBehindStage.PendingFile pending = stage.open(outFile);
+                    long start = System.nanoTime();
+                    try {
+                        encodeFile(pending, item, writer, tiffWriter, pyramidWriter);
+                    } catch (IOException | RuntimeException | Error ex) {
+                        pending.discard();
+                        throw ex;
+                    }
+                    long encodeNanos = System.nanoTime()-start;
+
+                    long fileBytes = pending.length();
+                    writtenFiles[item.index] = fileName;
+                    placements[item.index] = item.placement;
+                    layerStats[item.index] = new LayerStats(item.layer.name, fileName, rawBytes(item), fileBytes,
+                                                            encodeNanos);
+
+                    // Only count the file once it's actually there.
+                    ExportManifest.Entry entry = manifest == null ? null :
+                            new ExportManifest.Entry(fileName, item.layer.name, item.layer.bounds, item.layer.opacity,
+                                                     contentHashes[item.index], item.placement, fileBytes);
+                    pending.commit(() -> {
+                        if( entry != null ){
+                            manifest.put(entry);
+                        }
+                        layersWritten.incrementAndGet();
+                        bytesWritten.addAndGet(fileBytes);
+                    });
+                }else{
+                    LogManager.getLogger().warn("Skipping "+item.layer.name+"; none of it is on the canvas.");
+                }
+
+                layerProcessed(numLayers);
+                item = nextItem(composited);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, new InterruptedIOException("Export was interrupted."));
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+            stopUpstream.run();
+        }
+
+        if( pages != null && failure.get() != null ){
+            pages.abort();
+        }
+
+        // Pass the end along, so the other encoders stop too.
+        if( failure.get() != null ){
+            composited.clear();
+        }
+        composited.offer(PipelineItem.END);
+    }
+
+    /**
+     * Encodes the item's canvas into one file, however this export writes them.
+     */
+    private void encodeFile(FileSink sink, PipelineItem item, LayerWriter writer, StreamingTiffWriter tiffWriter,
+                            PyramidTiffWriter pyramidWriter) throws IOException {
+        if( !item.streamed ){
+            writer.write(item.canvas, sink);
+            return;
+        }
+
+        Point origin = new Point(item.layer.bounds.x-item.placement.x, item.layer.bounds.y-item.placement.y);
+        RasterSource source = new PlacedImageSource(item.canvas, origin, item.placement.getSize());
+        try (TiffOutput out = new TiffOutput(sink)) {
+            if( pyramidWriter != null ){
+                pyramidWriter.writePage(out, source, new TiffDirectory());
+            }else{
+                tiffWriter.writePage(out, source, new TiffDirectory());
+            }
+        }
+    }
+
+    // Waits for the thread to finish, even if this one is interrupted, and then passes the interrupt on.
+    private static void joinUninterruptibly(Thread thread){
+        boolean interrupted = false;
+        while( thread.isAlive() ){
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if( interrupted ){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void layerProcessed(int numLayers){
+        int numProcessed = layersProcessed.incrementAndGet();
+        if( progressListener != null ){
+            synchronized (progressListener) {
+                progressListener.imageProgress(null, 100f*numProcessed/numLayers );
+            }
+        }
+    }
+
+    /**
+     * Reads the last incremental export's manifest, if it's any use, and starts a new one.
+     */
+    private void startManifest(PsdLayer[] layers){
+        manifest = null;
+        previousManifest = null;
+        if( !incremental ){
+            return;
+        }
+        if( multiPageFile != null || archiveFile != null ){
+            LogManager.getLogger().warn("Every layer in "+(multiPageFile != null ? multiPageFile : archiveFile)+
+                                        " is written again; only separate files can be exported incrementally.");
+            return;
+        }
+        if( sourceFile == null ){
+            LogManager.getLogger().warn("Writing every layer; incremental exports need to know which document the layers came from.");
+            return;
+        }
+
+        String source = "source="+canonicalPath(sourceFile)+";";
+        Dimension canvasSize = data.getDimensions();
+        String settings = source+"type="+fileType+";profile="+profile.getName()+";crop="+cropToLayer+";pyramid="+pyramidTiff+
+                          ";canvas="+canvasSize.width+"x"+canvasSize.height+";bits="+data.getNumBits();
+
+        manifest = new ExportManifest(settings);
+        previousManifest = ExportManifest.read(exportFolder);
+        if( previousManifest != null && !previousManifest.getSettings().startsWith(source) ){
+            // Its files belong to another document, so they're left alone.
+            LogManager.getLogger().info("The last export to "+exportFolder+" was of another document; writing every layer.");
+            previousManifest = null;
+        }
+        previousSettingsMatch = previousManifest != null && previousManifest.getSettings().equals(settings);
+        if( previousManifest != null && !previousSettingsMatch ){
+            LogManager.getLogger().info("The export settings have changed since the last export; writing every layer.");
+        }
+        contentHashes = new long[layers.length];
+    }
+
+    /**
+     * Carries the layer's entry over from the last manifest if it hasn't changed and its file is still there as it
+     * was written, and returns true if so.
+     */
+    private boolean skipIfUnchanged(int index, PsdLayer layer, int numLayers){
+        String fileName = fileNames[index];
+        ExportManifest.Entry entry = previousSettingsMatch ? previousManifest.get(fileName) : null;
+
+        if( entry == null || !entry.matches(layer, contentHashes[index]) ||
+                new File(exportFolder, fileName).length() != entry.fileBytes ){
+            return false;
+        }
+
+        LogManager.getLogger().info("Skipping " + fileName + "; it hasn't changed.");
+        manifest.put(entry);
+        writtenFiles[index] = fileName;
+        placements[index] = entry.placement;
+        layersSkipped.incrementAndGet();
+        layerProcessed(numLayers);
+        return true;
+    }
+
+    /**
+     * Deletes the files the last export of the document wrote that this one didn't, if it got that far: those of
+     * layers that are gone, and, if the settings changed, any the new ones named differently. Then saves the manifest
+     * of what's there now.
+     */
+    private void finishManifest(AtomicReference<Throwable> failure){
+        try {
+            if( failure.get() == null && previousManifest != null ){
+                for( ExportManifest.Entry old : previousManifest.entries() ){
+                    if( manifest.get(old.fileName) == null && isAsWritten(old) ){
+                        LogManager.getLogger().info("Deleting " + old.fileName + "; the last export wrote it, and this one didn't.");
+                        Files.deleteIfExists(new File(exportFolder, old.fileName).toPath());
+                    }
+                }
+                // Cropped exports list where their files go; an uncropped one leaves nothing for that list to describe.
+                if( !cropToLayer && previousManifest.getSettings().contains(";crop=true;") ){
+                    Files.deleteIfExists(new File(exportFolder, PlacementManifest.FILE_NAME).toPath());
+                }
+            }
+            // Even a failed export leaves an accurate manifest of the files it finished.
+            manifest.write(exportFolder);
+        } catch (IOException ex) {
+            failure.compareAndSet(null, ex);
+        }
+    }
+
+    /**
+     * True if the entry's file is right in the export folder and still the size it was written at, so it's safe to
+     * take for the one the last export wrote.
+     */
+    private boolean isAsWritten(ExportManifest.Entry entry){
+        File file = new File(exportFolder, entry.fileName);
+        if( !new File(entry.fileName).getName().equals(entry.fileName) || !file.isFile() || file.length() != entry.fileBytes ){
+            LogManager.getLogger().info("Leaving " + entry.fileName + " alone; it isn't the file the last export wrote.");
+            return false;
+        }
+        return true;
+    }
+
+    private static String canonicalPath(File file){
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException ex) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Takes the next canvas, first making room for its page if they're going into one file.
+     */
+    private PipelineItem nextItem(BlockingQueue<PipelineItem> composited) throws InterruptedException {
+        if( pages == null ){
+            return composited.take();
+        }
+
+        pages.reserve();
+        PipelineItem item = composited.take();
+        if( item == PipelineItem.END ){
+            pages.cancelReservation();
+        }
+        return item;
+    }
+
+    private BufferedTiffPage encodePage(StreamingTiffWriter tiffWriter, PipelineItem item) throws IOException {
+        BufferedTiffPage page = new BufferedTiffPage();
+
+        page.directory.setLongs(TiffDirectory.NEW_SUBFILE_TYPE, TiffDirectory.SUBFILE_PAGE);
+        page.directory.setAscii(TiffDirectory.PAGE_NAME, item.layer.name);
+        page.directory.setRational(TiffDirectory.X_POSITION, item.placement.x, 72);
+        page.directory.setRational(TiffDirectory.Y_POSITION, item.placement.y, 72);
+
+        // Canvases from ImageIO's path are already laid out; only the layer's own image still needs placing.
+        Point origin = item.streamed ? new Point(item.layer.bounds.x-item.placement.x, item.layer.bounds.y-item.placement.y)
+                                     : new Point(0, 0);
+        tiffWriter.encodePage(page, item.canvas, origin, item.placement.getSize(), page.directory);
+
+        return page;
+    }
+
+    // What the layer's pixels come to uncompressed, at the size they're written.
+    private static long rawBytes(PipelineItem item){
+        return (long)item.placement.width*item.placement.height*item.canvas.getColorModel().getPixelSize()/8;
+    }
+
+    private ForkJoinPool compressionPool(){
+        return parallelCompression ? ForkJoinPool.commonPool() : null;
+    }
+
+    private boolean isTiff(){
+        return fileType.equalsIgnoreCase("tif") || fileType.equalsIgnoreCase("tiff");
+    }
+
+    private boolean streamsTiff(){
+        return streamingTiff && isTiff();
+    }
+
+    /**
+     * What writing one layer cost: its pixels uncompressed, what they compressed to, and how long that took.
+     */
+    public static class LayerStats {
+        public final String layerName;
+        public final String fileName;
+        public final long rawBytes;
+        public final long encodedBytes;
+        public final long encodeNanos;
+
+        LayerStats(String layerName, String fileName, long rawBytes, long encodedBytes, long encodeNanos){
+            this.layerName = layerName;
+            this.fileName = fileName;
+            this.rawBytes = rawBytes;
+            this.encodedBytes = encodedBytes;
+            this.encodeNanos = encodeNanos;
+        }
+    }
+
+    /**
+     * A layer on its way through the pipeline, along with its canvas and where that sits once it has one.
+     */
+    private static class PipelineItem {
+        static final PipelineItem END = new PipelineItem(-1, null, null, null, false);
+
+        final int index;
+        final PsdLayer layer;
+        final BufferedImage canvas;
+        final Rectangle placement;
+        // If true, canvas is just the layer's own image, still to be placed on the output by the StreamingTiffWriter.
+        final boolean streamed;
+
+        PipelineItem(int index, PsdLayer layer, BufferedImage canvas, Rectangle placement, boolean streamed){
+            this.index = index;
+            this.layer = layer;
+            this.canvas = canvas;
+            this.placement = placement;
+            this.streamed = streamed;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import org.apache.logging.log4j.LogManager;
+
+import javax.imageio.ImageWriteParam;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * What format layers are written in, and how they're compressed. TIFF profiles are honored by both the
+ * StreamingTiffWriter and ImageIO's writers; PNG levels need a PNG writer that can be told a compression level, which
+ * Java 9 and later have.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public final class ExportProfile {
+
+    private enum Codec { DEFAULT, NONE, LZW, DEFLATE, PACKBITS }
+
+    public static final ExportProfile TIFF_NONE = new ExportProfile("tiff-none", "tif", Codec.NONE, 0);
+    public static final ExportProfile TIFF_LZW = new ExportProfile("tiff-lzw", "tif", Codec.LZW, 0);
+    public static final ExportProfile TIFF_DEFLATE_1 = new ExportProfile("tiff-deflate-1", "tif", Codec.DEFLATE, 1);
+    public static final ExportProfile TIFF_DEFLATE_6 = new ExportProfile("tiff-deflate-6", "tif", Codec.DEFLATE, 6);
+    public static final ExportProfile TIFF_DEFLATE_9 = new ExportProfile("tiff-deflate-9", "tif", Codec.DEFLATE, 9);
+    public static final ExportProfile TIFF_PACKBITS = new ExportProfile("tiff-packbits", "tif", Codec.PACKBITS, 0);
+    public static final ExportProfile PNG_1 = new ExportProfile("png-1", "png", Codec.DEFLATE, 1);
+    public static final ExportProfile PNG_6 = new ExportProfile("png-6", "png", Codec.DEFLATE, 6);
+    public static final ExportProfile PNG_9 = new ExportProfile("png-9", "png", Codec.DEFLATE, 9);
+
+    private static final List<ExportProfile> ALL = Collections.unmodifiableList(Arrays.asList(
+            TIFF_NONE, TIFF_LZW, TIFF_DEFLATE_1, TIFF_DEFLATE_6, TIFF_DEFLATE_9, TIFF_PACKBITS, PNG_1, PNG_6, PNG_9));
+
+    private final String name;
+    private final String fileType;
+    private final Codec codec;
+    private final int level;
+
+    private ExportProfile(String name, String fileType, Codec codec, int level){
+        this.name = name;
+        this.fileType = fileType;
+        this.codec = codec;
+        this.level = level;
+    }
+
+    public static List<ExportProfile> all(){
+        return ALL;
+    }
+
+    public static ExportProfile forName(String name){
+        for( ExportProfile profile : ALL ){
+            if( profile.name.equalsIgnoreCase(name) ){
+                return profile;
+            }
+        }
+        List<String> names = new ArrayList<>();
+        for( ExportProfile profile : ALL ){
+            names.add(profile.name);
+        }
+        throw new IllegalArgumentException("No export profile called "+name+"; try one of "+names);
+    }
+
+    /**
+     * The profile the exporter has always used for a file type: LZW for TIFFs, and whatever the writer does by
+     * default for anything else.
+     */
+    public static ExportProfile forFileType(String fileType){
+        String type = fileType.toLowerCase(Locale.ROOT);
+        if( type.equals("tif") || type.equals("tiff") ){
+            return new ExportProfile(TIFF_LZW.name, fileType, Codec.LZW, 0);
+        }
+        return new ExportProfile(type, fileType, Codec.DEFAULT, 0);
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public String getFileType(){
+        return fileType;
+    }
+
+    public boolean isTiff(){
+        return fileType.equalsIgnoreCase("tif") || fileType.equalsIgnoreCase("tiff");
+    }
+
+    /**
+     * Returns true if files written with this profile are already compressed, so there's no point compressing them
+     * again, say in an archive.
+     */
+    public boolean isCompressed(){
+        // Of the formats ImageIO writes out of the box, only BMP is raw by default.
+        return codec != Codec.NONE && !(codec == Codec.DEFAULT && fileType.equalsIgnoreCase("bmp"));
+    }
+
+    /**
+     * A compressor for the StreamingTiffWriter; only TIFF profiles have one.
+     */
+    StripCompressor newStripCompressor(){
+        switch( codec ){
+            case NONE:
+                return new StripCompressor.None();
+            case DEFLATE:
+                return new StripCompressor.Deflate(level);
+            case PACKBITS:
+                return new StripCompressor.PackBits();
+            default:
+                return new LzwEncoder();
+        }
+    }
+
+    /**
+     * Sets up an ImageIO write param to compress the way this profile says, as far as its writer allows.
+     */
+    void configure(ImageWriteParam param){
+        if( codec == Codec.DEFAULT || !param.canWriteCompressed() ){
+            return;
+        }
+        if( codec == Codec.NONE ){
+            param.setCompressionMode(ImageWriteParam.MODE_DISABLED);
+            return;
+        }
+
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+
+        String[] types = param.getCompressionTypes();
+        String type = null;
+        if( types != null ){
+            for( String candidate : types ){
+                if( (codec == Codec.LZW && candidate.equalsIgnoreCase("LZW")) ||
+                    (codec == Codec.PACKBITS && candidate.equalsIgnoreCase("PackBits")) ||
+                    (codec == Codec.DEFLATE && (candidate.equalsIgnoreCase("Deflate") || candidate.equalsIgnoreCase("ZLib"))) ){
+                    type = candidate;
+                    break;
+                }
+            }
+            if( type == null ){
+                LogManager.getLogger().warn("The "+fileType+" writer can't do "+name+"; using its default compression.");
+                param.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
+                return;
+            }
+            param.setCompressionType(type);
+        }
+
+        if( codec == Codec.DEFLATE ){
+            // TIFF writers go from quality 0 at level 1 to quality 1 at level 9; the PNG writer is the other way
+            // around, from level 9 at 0 to level 0 at 1.
+            float quality = isTiff() ? (level-1)/8f : 1-(level+0.5f)/9;
+            param.setCompressionQuality(Math.max(0, Math.min(1, quality)));
+        }
+    }
+
+    @Override
+    public String toString(){
+        return name;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Somewhere the bytes of one file go as it's encoded: a file on disk, or a buffer bound for an archive. Writes can land
+ * anywhere in it, so TIFF writers can go back and fill in offsets, but only one thread may write at a time.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+interface FileSink {
+
+    /**
+     * What the file is called, for messages.
+     */
+    String getName();
+
+    /**
+     * Writes the bytes left in data at position. data can be reused as soon as this returns.
+     */
+    void write(ByteBuffer data, long position) throws IOException;
+
+    /**
+     * How long the file is, counting everything written to it so far.
+     */
+    long length();
+
+    /**
+     * The file as a stream that starts at its beginning.
+     */
+    default OutputStream outputStream(){
+        return new OutputStream() {
+            private long position = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte)b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                FileSink.this.write(ByteBuffer.wrap(b, off, len), position);
+                position += len;
+            }
+        };
+    }
+}
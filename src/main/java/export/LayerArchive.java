@@ -0,0 +1,334 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import montage.PsdLayer;
+
+import java.awt.*;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A ZIP or TAR archive that layer files are streamed into as they're encoded, instead of being written out and zipped
+ * up afterwards. Encoders add whole files from any thread; writing them into the archive is the only part that waits
+ * its turn. Files that are already compressed are stored as they are.
+ *
+ * Last comes index.csv, which says where each layer is:
+ *
+ *   file,layer,x,y,width,height,opacity,placement_x,placement_y,placement_width,placement_height,canvas_width,canvas_height
+ *
+ * x, y, width and height are the layer's bounds, and placement is where its file sits on the canvas.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+abstract class LayerArchive {
+
+    static final String INDEX_NAME = "index.csv";
+
+    private static final String INDEX_HEADER = "file,layer,x,y,width,height,opacity,placement_x,placement_y,placement_width,placement_height,canvas_width,canvas_height";
+
+    private static final int BUFFER_BYTES = 256*1024;
+
+    private final CountingStream out;
+    private final Set<String> entryNames = new HashSet<>();
+
+    private LayerArchive(OutputStream out){
+        this.out = new CountingStream(new BufferedOutputStream(out, BUFFER_BYTES));
+    }
+
+    static boolean isArchiveName(String fileName){
+        String name = fileName.toLowerCase(Locale.ROOT);
+        return name.endsWith(".zip") || name.endsWith(".tar");
+    }
+
+    /**
+     * Starts an archive of the kind its name ends with.
+     */
+    static LayerArchive open(String fileName, OutputStream out) throws IOException {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        if( name.endsWith(".zip") ){
+            return new Zip(out);
+        }else if( name.endsWith(".tar") ){
+            return new Tar(out);
+        }
+        throw new IOException("Can't write "+fileName+"; archives have to be .zip or .tar files.");
+    }
+
+    /**
+     * Adds the file to the archive, and returns the name it went in under; if another file already has its name, it
+     * gets a number on the end.
+     */
+    String add(String name, EncodedFile file, boolean compressed) throws IOException {
+        Object prepared = prepare(file, compressed);
+        synchronized (this) {
+            String entryName = uniqueName(name);
+            writeEntry(entryName, file.data(), (int)file.length(), compressed, prepared);
+            return entryName;
+        }
+    }
+
+    /**
+     * Adds the index of every layer that made it into the archive, and finishes it off. Layers with no entry name
+     * (never written) are left out of the index.
+     */
+    synchronized void finish(String[] entryNames, PsdLayer[] layers, Rectangle[] placements, Dimension canvasSize) throws IOException {
+        StringBuilder index = new StringBuilder(INDEX_HEADER).append("\n");
+        for( int l=0; l<layers.length; l++ ){
+            if( entryNames[l] == null ){
+                continue;
+            }
+            Rectangle bounds = layers[l].bounds;
+            Rectangle placement = placements[l];
+            index.append(PlacementManifest.quote(entryNames[l])).append(',')
+                 .append(PlacementManifest.quote(layers[l].name)).append(',')
+                 .append(bounds.x).append(',').append(bounds.y).append(',')
+                 .append(bounds.width).append(',').append(bounds.height).append(',')
+                 .append(layers[l].opacity).append(',')
+                 .append(placement.x).append(',').append(placement.y).append(',')
+                 .append(placement.width).append(',').append(placement.height).append(',')
+                 .append(canvasSize.width).append(',').append(canvasSize.height).append('\n');
+        }
+
+        EncodedFile indexFile = new EncodedFile(INDEX_NAME);
+        indexFile.outputStream().write(index.toString().getBytes(StandardCharsets.UTF_8));
+
+        writeEntry(uniqueName(INDEX_NAME), indexFile.data(), (int)indexFile.length(), false, prepare(indexFile, false));
+        writeEnd();
+        out.flush();
+    }
+
+    /**
+     * How many bytes of the archive have been written so far.
+     */
+    synchronized long length(){
+        return out.count;
+    }
+
+    protected OutputStream out(){
+        return out;
+    }
+
+    /**
+     * Works out anything about the file the entry needs that doesn't have to wait its turn, like its checksum.
+     */
+    protected abstract Object prepare(EncodedFile file, boolean compressed);
+
+    protected abstract void writeEntry(String name, byte[] data, int length, boolean compressed, Object prepared) throws IOException;
+
+    protected abstract void writeEnd() throws IOException;
+
+    private String uniqueName(String name){
+        if( entryNames.add(name) ){
+            return name;
+        }
+
+        int extloc = name.lastIndexOf('.');
+        String stem = extloc == -1 ? name : name.substring(0, extloc);
+        String ext = extloc == -1 ? "" : name.substring(extloc);
+        for( int n=2; ; n++ ){
+            String numbered = stem+"-"+n+ext;
+            if( entryNames.add(numbered) ){
+                return numbered;
+            }
+        }
+    }
+
+    /**
+     * Stores compressed files as they are, and deflates the rest. Archives over 4 GB, or with more than 65535 files,
+     * get ZIP64 records.
+     */
+    static class Zip extends LayerArchive {
+        private final ZipOutputStream zip;
+
+        Zip(OutputStream out){
+            super(out);
+            zip = new ZipOutputStream(out());
+        }
+
+        @Override
+        protected Object prepare(EncodedFile file, boolean compressed){
+            if( !compressed ){
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(file.data(), 0, (int)file.length());
+            return crc.getValue();
+        }
+
+        @Override
+        protected void writeEntry(String name, byte[] data, int length, boolean compressed, Object prepared) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            if( compressed ){
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(length);
+                entry.setCompressedSize(length);
+                entry.setCrc((Long)prepared);
+            }else{
+                entry.setMethod(ZipEntry.DEFLATED);
+            }
+            zip.putNextEntry(entry);
+            zip.write(data, 0, length);
+            zip.closeEntry();
+        }
+
+        @Override
+        protected void writeEnd() throws IOException {
+            zip.finish();
+        }
+    }
+
+    /**
+     * A POSIX (ustar) TAR. Names that don't fit in a ustar header, or aren't plain ASCII, go in a PAX header before
+     * their entry. Nothing is compressed.
+     */
+    static class Tar extends LayerArchive {
+        private static final int BLOCK = 512;
+        private static final int NAME_LENGTH = 100;
+
+        private final long modified = System.currentTimeMillis()/1000;
+
+        Tar(OutputStream out){
+            super(out);
+        }
+
+        @Override
+        protected Object prepare(EncodedFile file, boolean compressed){
+            return null;
+        }
+
+        @Override
+        protected void writeEntry(String name, byte[] data, int length, boolean compressed, Object prepared) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            String headerName = name;
+
+            if( nameBytes.length > NAME_LENGTH || nameBytes.length != name.length() ){
+                byte[] pax = paxRecord("path", name);
+                headerName = asciiName(name);
+                writeHeader("PaxHeaders/"+headerName, pax.length, 'x');
+                writeData(pax, pax.length);
+            }
+
+            writeHeader(headerName, length, '0');
+            writeData(data, length);
+        }
+
+        @Override
+        protected void writeEnd() throws IOException {
+            out().write(new byte[2*BLOCK]);
+        }
+
+        private void writeHeader(String name, long size, char type) throws IOException {
+            byte[] header = new byte[BLOCK];
+
+            byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(nameBytes, 0, header, 0, Math.min(NAME_LENGTH, nameBytes.length));
+            putOctal(header, 100, 8, 0644);
+            putOctal(header, 108, 8, 0);
+            putOctal(header, 116, 8, 0);
+            putOctal(header, 124, 12, size);
+            putOctal(header, 136, 12, modified);
+            header[156] = (byte)type;
+            putAscii(header, 257, "ustar\0");
+            putAscii(header, 263, "00");
+
+            // The checksum is taken with its own field full of spaces.
+            putAscii(header, 148, "        ");
+            long checksum = 0;
+            for( byte b : header ){
+                checksum += b & 0xFF;
+            }
+            putOctal(header, 148, 7, checksum);
+            header[155] = ' ';
+
+            out().write(header);
+        }
+
+        private void writeData(byte[] data, int length) throws IOException {
+            out().write(data, 0, length);
+            int padding = (BLOCK-length%BLOCK)%BLOCK;
+            if( padding > 0 ){
+                out().write(new byte[padding]);
+            }
+        }
+
+        // A PAX record is "length key=value\n", where length counts the whole record, its own digits included.
+        private static byte[] paxRecord(String key, String value){
+            int bodyLength = (" "+key+"="+value+"\n").getBytes(StandardCharsets.UTF_8).length;
+            int length = bodyLength+1;
+            while( length != bodyLength+Integer.toString(length).length() ){
+                length = bodyLength+Integer.toString(length).length();
+            }
+            return (length+" "+key+"="+value+"\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        // What's left of the name for readers that don't know PAX: plain ASCII, cut down to fit.
+        private static String asciiName(String name){
+            StringBuilder ascii = new StringBuilder();
+            for( int i=0; i<name.length() && ascii.length()<NAME_LENGTH-"PaxHeaders/".length(); i++ ){
+                char c = name.charAt(i);
+                ascii.append(c >= ' ' && c < 0x7F ? c : '_');
+            }
+            return ascii.toString();
+        }
+
+        // Octal digits filling all but the last byte of the field, which is left as a NUL.
+        private static void putOctal(byte[] header, int off, int len, long value){
+            String digits = Long.toOctalString(value);
+            while( digits.length() < len-1 ){
+                digits = "0"+digits;
+            }
+            putAscii(header, off, digits);
+            header[off+len-1] = 0;
+        }
+
+        private static void putAscii(byte[] header, int off, String text){
+            byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(bytes, 0, header, off, bytes.length);
+        }
+    }
+
+    /**
+     * Counts what goes through it, so the archive knows how long it is.
+     */
+    private static class CountingStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingStream(OutputStream out){
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
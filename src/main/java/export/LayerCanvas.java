@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import montage.PsdLayer;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Helpers for placing a layer's pixels where they belong on the montage canvas.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public final class LayerCanvas {
+
+    // The largest array the JVM will reliably hand out, and so the largest canvas a single BufferedImage can hold.
+    static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private LayerCanvas(){ }
+
+    /**
+     * Returns the part of the layer that actually lands on the canvas, in canvas coordinates. The layer's bounds
+     * are left untouched.
+     */
+    public static Rectangle clipToCanvas(PsdLayer layer, BufferedImage layerIm, Dimension canvasSize){
+        Rectangle imageBounds = new Rectangle(layer.bounds.x, layer.bounds.y, layerIm.getWidth(), layerIm.getHeight());
+
+        return layer.bounds.intersection(imageBounds).intersection(new Rectangle(canvasSize));
+    }
+
+    /**
+     * Creates a canvas-sized image of the same type as the layer, with the layer drawn in at its bounds.
+     */
+    public static BufferedImage placeOnCanvas(PsdLayer layer, Dimension canvasSize){
+        BufferedImage layerIm = layer.getLayerImage();
+        ImageTypeSpecifier imSpec = new ImageTypeSpecifier( layerIm.getColorModel(), layerIm.getSampleModel() );
+
+        long canvasElements = (long)canvasSize.width*canvasSize.height*layerIm.getSampleModel().getNumDataElements();
+        if( canvasElements > MAX_ARRAY_LENGTH ){
+            throw new IllegalArgumentException("A "+canvasSize.width+"x"+canvasSize.height+" canvas is too large to hold as a single image.");
+        }
+
+        BufferedImage inSitu = imSpec.createBufferedImage(canvasSize.width, canvasSize.height);
+
+        Rectangle onCanvas = clipToCanvas(layer, layerIm, canvasSize);
+
+        if( !onCanvas.isEmpty() ){
+            Raster layerData = layerIm.getRaster().createChild(onCanvas.x-layer.bounds.x, onCanvas.y-layer.bounds.y,
+                                                               onCanvas.width, onCanvas.height, 0, 0, null);
+            inSitu.getRaster().setRect(onCanvas.x, onCanvas.y, layerData);
+        }
+
+        return inSitu;
+    }
+
+    /**
+     * Returns just the part of the layer that lands on the canvas, or null if none of it does. If all of the layer is
+     * on the canvas, its own image is returned as is.
+     */
+    public static BufferedImage cropToCanvas(PsdLayer layer, Dimension canvasSize){
+        BufferedImage layerIm = layer.getLayerImage();
+        Rectangle onCanvas = clipToCanvas(layer, layerIm, canvasSize);
+
+        if( onCanvas.isEmpty() ){
+            return null;
+        }else if( onCanvas.width == layerIm.getWidth() && onCanvas.height == layerIm.getHeight() ){
+            return layerIm;
+        }
+
+        Raster layerData = layerIm.getRaster().createChild(onCanvas.x-layer.bounds.x, onCanvas.y-layer.bounds.y,
+                                                           onCanvas.width, onCanvas.height, 0, 0, null);
+        WritableRaster cropped = layerData.createCompatibleWritableRaster(onCanvas.width, onCanvas.height);
+        cropped.setRect(layerData);
+
+        return new BufferedImage(layerIm.getColorModel(), cropped, layerIm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Strips any extension off of the layer's name, and gives it the one we're exporting to.
+     */
+    public static String fileNameFor(PsdLayer layer, String fileType){
+        String layerName = layer.name;
+        int extloc = layerName.lastIndexOf(".");
+        if( extloc != -1 ) {
+            layerName = layerName.substring(0, extloc);
+        }
+        return layerName+"."+fileType;
+    }
+
+    /**
+     * The file name of every layer, in stack order. Layers that would share a name are numbered like an archive's
+     * entries, -2, -3 and so on, the first keeping the plain name. Names that differ only in case are counted as the
+     * same, since they are on plenty of filesystems.
+     */
+    public static String[] fileNamesFor(PsdLayer[] layers, String fileType){
+        String[] fileNames = new String[layers.length];
+        Set<String> taken = new HashSet<>();
+
+        for( int l=0; l<layers.length; l++ ){
+            String fileName = fileNameFor(layers[l], fileType);
+            String stem = fileName.substring(0, fileName.length()-fileType.length()-1);
+            for( int n=2; !taken.add(fileName.toLowerCase(Locale.ROOT)); n++ ){
+                fileName = stem+"-"+n+"."+fileType;
+            }
+            fileNames[l] = fileName;
+        }
+        return fileNames;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import org.apache.logging.log4j.LogManager;
+
+import javax.imageio.*;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes layer images out to files, keeping an ImageWriter and its write param for every kind of image it has seen so
+ * they aren't looked up and rebuilt for every layer. Images of the same kind share a writer whatever their size. Files go to a FileSink as they're encoded, so a WriteBehindStage
+ * can write them out rather than the encoder waiting on the disk.
+ *
+ * Not thread safe; each encoding thread should have its own.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class LayerWriter implements Closeable {
+
+    // How much encoded data is gathered up before it's handed to the sink.
+    private static final int BUFFER_BYTES = 256*1024;
+
+    private final ExportProfile profile;
+    private final String fileType;
+    private final Map<ImageTypeSpecifier, PooledWriter> writers = new HashMap<>();
+
+    LayerWriter(ExportProfile profile){
+        this.profile = profile;
+        this.fileType = profile.getFileType();
+    }
+
+    void write(BufferedImage image, FileSink outFile) throws IOException {
+
+        // ImageTypeSpecifiers with the same sample model but different sizes aren't equal, so they're keyed at 1x1.
+        ImageTypeSpecifier imSpec = new ImageTypeSpecifier( image.getColorModel(), image.getSampleModel().createCompatibleSampleModel(1, 1) );
+
+        PooledWriter pooled = writers.get(imSpec);
+        if( pooled == null ){
+            pooled = createWriter(imSpec, outFile.getName());
+            writers.put(imSpec, pooled);
+        }
+
+        OutputStream buffered = new BufferedOutputStream(outFile.outputStream(), BUFFER_BYTES);
+        try (ImageOutputStream output = new MemoryCacheImageOutputStream(buffered)){
+            pooled.writer.setOutput(output);
+            pooled.writer.write(null, new IIOImage(image,null,null), pooled.param);
+        } finally {
+            pooled.writer.reset();
+        }
+        buffered.flush();
+    }
+
+    private PooledWriter createWriter(ImageTypeSpecifier imSpec, String fileName) throws IOException {
+        Iterator<ImageWriter> writerList = ImageIO.getImageWriters(imSpec, fileType);
+
+        if( !writerList.hasNext() ){
+            LogManager.getLogger().error("Failed to write file: "+fileName+"! No "+ fileType + " writer detected.");
+            throw new IOException("Failed to write file: "+fileName+"! No "+ fileType +" writer detected.");
+        }
+
+        ImageWriter writer = writerList.next();
+
+        ImageWriteParam imWriteParam = writer.getDefaultWriteParam();
+        profile.configure(imWriteParam);
+
+        return new PooledWriter(writer, imWriteParam);
+    }
+
+    @Override
+    public void close() {
+        for( PooledWriter pooled : writers.values() ){
+            pooled.writer.dispose();
+        }
+        writers.clear();
+    }
+
+    private static class PooledWriter {
+        final ImageWriter writer;
+        final ImageWriteParam param;
+
+        PooledWriter(ImageWriter writer, ImageWriteParam param){
+            this.writer = writer;
+            this.param = param;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.util.Arrays;
+
+/**
+ * TIFF flavoured LZW: codes are packed most significant bit first, start at 9 bits, and widen one code early, the way
+ * every TIFF reader expects. Each call to encode() compresses one strip or tile on its own.
+ *
+ * Not thread safe; the code table and output buffer are reused between calls.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class LzwEncoder implements StripCompressor {
+
+    private static final int CLEAR_CODE = 256;
+    private static final int EOI_CODE = 257;
+    private static final int FIRST_CODE = 258;
+    private static final int MIN_BITS = 9;
+    private static final int MAX_BITS = 12;
+    // Clear before the table fills up, so the reader never has to handle a 13 bit code.
+    private static final int MAX_CODE = (1 << MAX_BITS)-2;
+
+    // Open addressed table from (prefix code, next byte) to the code for that string.
+    private static final int TABLE_SIZE = 8191;
+    private final int[] tableKeys = new int[TABLE_SIZE];
+    private final short[] tableCodes = new short[TABLE_SIZE];
+
+    private byte[] out = new byte[4096];
+    private int outLength;
+    private int bitBuffer;
+    private int bitCount;
+
+    private int nextCode;
+    private int codeBits;
+
+    @Override
+    public int compressionTag(){
+        return TiffDirectory.COMPRESSION_LZW;
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int off, int len, int rowBytes){
+        return encode(data, off, len);
+    }
+
+    /**
+     * Compresses len bytes of data starting at off. The result stays valid until the next call.
+     */
+    byte[] encode(byte[] data, int off, int len){
+        outLength = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+
+        resetTable();
+        writeCode(CLEAR_CODE);
+
+        if( len > 0 ){
+            int prefix = data[off] & 0xFF;
+
+            for( int i=off+1; i<off+len; i++ ){
+                int c = data[i] & 0xFF;
+                int key = (prefix << 8) | c;
+
+                int slot = findSlot(key);
+                if( tableKeys[slot] == key ){
+                    prefix = tableCodes[slot];
+                    continue;
+                }
+
+                writeCode(prefix);
+
+                tableKeys[slot] = key;
+                tableCodes[slot] = (short)nextCode;
+                nextCode++;
+
+                if( nextCode == MAX_CODE ){
+                    writeCode(CLEAR_CODE);
+                    resetTable();
+                }else if( nextCode == (1 << codeBits) ){
+                    codeBits++;
+                }
+                prefix = c;
+            }
+
+            writeCode(prefix);
+
+            // The reader adds a string for that last code too, which may widen the end code.
+            if( nextCode+1 == (1 << codeBits) && codeBits < MAX_BITS ){
+                codeBits++;
+            }
+        }
+
+        writeCode(EOI_CODE);
+
+        if( bitCount > 0 ){
+            put((byte)(bitBuffer << (8-bitCount)));
+        }
+
+        return out;
+    }
+
+    /**
+     * How many bytes the last call to encode() produced.
+     */
+    @Override
+    public int length(){
+        return outLength;
+    }
+
+    private void resetTable(){
+        Arrays.fill(tableKeys, -1);
+        nextCode = FIRST_CODE;
+        codeBits = MIN_BITS;
+    }
+
+    private int findSlot(int key){
+        int slot = (key*31) % TABLE_SIZE;
+        if( slot < 0 ){
+            slot += TABLE_SIZE;
+        }
+        while( tableKeys[slot] != -1 && tableKeys[slot] != key ){
+            slot++;
+            if( slot == TABLE_SIZE ){
+                slot = 0;
+            }
+        }
+        return slot;
+    }
+
+    private void writeCode(int code){
+        bitBuffer = (bitBuffer << codeBits) | code;
+        bitCount += codeBits;
+
+        while( bitCount >= 8 ){
+            bitCount -= 8;
+            put((byte)(bitBuffer >>> bitCount));
+        }
+        bitBuffer &= (1 << bitCount)-1;
+    }
+
+    private void put(byte b){
+        if( outLength == out.length ){
+            out = Arrays.copyOf(out, out.length*2);
+        }
+        out[outLength++] = b;
+    }
+}
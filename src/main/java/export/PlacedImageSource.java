@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.awt.*;
+import java.awt.image.*;
+
+/**
+ * An image placed somewhere on a larger, otherwise empty output, like a layer on its canvas. Any part of the image
+ * that falls outside of the output is left out.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class PlacedImageSource implements RasterSource {
+
+    private final BufferedImage image;
+    private final Point origin;
+    private final Dimension outputSize;
+    private final Rectangle onOutput;
+
+    private int[] samples = new int[0];
+
+    PlacedImageSource(BufferedImage image, Point origin, Dimension outputSize){
+        this.image = image;
+        this.origin = origin;
+        this.outputSize = outputSize;
+        this.onOutput = new Rectangle(origin.x, origin.y, image.getWidth(), image.getHeight())
+                            .intersection(new Rectangle(outputSize));
+    }
+
+    @Override
+    public Dimension getSize(){
+        return outputSize;
+    }
+
+    @Override
+    public ColorModel getColorModel(){
+        return image.getColorModel();
+    }
+
+    @Override
+    public Rectangle getContentBounds(){
+        return onOutput.isEmpty() ? new Rectangle() : onOutput;
+    }
+
+    @Override
+    public void readRows(int y, int numRows, byte[] dest){
+        int bytesPerSample = getColorModel().getComponentSize(0)/8;
+        long rowBytes = (long)outputSize.width*getBytesPerPixel();
+
+        int fromRow = Math.max(y, onOutput.y);
+        int toRow = Math.min(y+numRows, onOutput.y+onOutput.height);
+
+        for( int row=fromRow; row<toRow; row++ ){
+            int at = (int)((row-y)*rowBytes)+onOutput.x*getBytesPerPixel();
+            copyRow(dest, image.getRaster(), onOutput.x-origin.x, row-origin.y, onOutput.width, bytesPerSample, at);
+        }
+    }
+
+    /**
+     * Copies width pixels of one row of the raster into dest at offset at, as interleaved samples in color model
+     * order, little-endian if they're 16 bit.
+     */
+    private void copyRow(byte[] dest, WritableRaster raster, int x, int y, int width, int bytesPerSample, int at){
+        SampleModel sampleModel = raster.getSampleModel();
+        int numBands = raster.getNumBands();
+
+        // The ChannelDecoder's layers are interleaved bytes, so copy those straight out of their buffer.
+        if( bytesPerSample == 1 && raster.getDataBuffer() instanceof DataBufferByte &&
+            sampleModel instanceof PixelInterleavedSampleModel && raster.getDataBuffer().getNumBanks() == 1 ){
+
+            PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel)sampleModel;
+            byte[] data = ((DataBufferByte)raster.getDataBuffer()).getData();
+            int[] bandOffsets = interleaved.getBandOffsets();
+            int pixelStride = interleaved.getPixelStride();
+
+            int src = raster.getDataBuffer().getOffset()+
+                      (y-raster.getSampleModelTranslateY())*interleaved.getScanlineStride()+
+                      (x-raster.getSampleModelTranslateX())*pixelStride;
+
+            for( int p=0; p<width; p++ ){
+                for( int b=0; b<numBands; b++ ){
+                    dest[at++] = data[src+bandOffsets[b]];
+                }
+                src += pixelStride;
+            }
+            return;
+        }
+
+        int numSamples = width*numBands;
+        if( samples.length < numSamples ){
+            samples = new int[numSamples];
+        }
+        raster.getPixels(x, y, width, 1, samples);
+
+        if( bytesPerSample == 1 ){
+            for( int i=0; i<numSamples; i++ ){
+                dest[at++] = (byte)samples[i];
+            }
+        }else{
+            for( int i=0; i<numSamples; i++ ){
+                dest[at++] = (byte)samples[i];
+                dest[at++] = (byte)(samples[i] >>> 8);
+            }
+        }
+    }
+}
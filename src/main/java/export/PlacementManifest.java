@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * The CSV sidecar written next to cropped layers, saying where on the canvas each file belongs. One row per file, in
+ * layer order, with the canvas size repeated on every row so each one stands on its own:
+ *
+ *   file,layer,x,y,width,height,canvas_width,canvas_height
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public final class PlacementManifest {
+
+    public static final String FILE_NAME = "layers.csv";
+
+    private static final String HEADER = "file,layer,x,y,width,height,canvas_width,canvas_height";
+
+    private PlacementManifest(){ }
+
+    /**
+     * Writes the manifest into the export folder. Entries with no file name (layers that were never written) are left
+     * out.
+     */
+    static void write(File exportFolder, String[] fileNames, String[] layerNames, Rectangle[] placements,
+                      Dimension canvasSize) throws IOException {
+
+        try (Writer out = Files.newBufferedWriter(new File(exportFolder, FILE_NAME).toPath(), StandardCharsets.UTF_8)) {
+            out.write(HEADER);
+            out.write("\n");
+
+            for( int i=0; i<fileNames.length; i++ ){
+                if( fileNames[i] == null ){
+                    continue;
+                }
+                Rectangle placement = placements[i];
+
+                out.write(quote(fileNames[i])+","+quote(layerNames[i])+","+
+                          placement.x+","+placement.y+","+placement.width+","+placement.height+","+
+                          canvasSize.width+","+canvasSize.height+"\n");
+            }
+        }
+    }
+
+    // Layer names can have anything in them, so quote any field that needs it.
+    static String quote(String field){
+        if( field.indexOf(',') == -1 && field.indexOf('"') == -1 && field.indexOf('\n') == -1 && field.indexOf('\r') == -1 ){
+            return field;
+        }
+        return "\""+field.replace("\"", "\"\"")+"\"";
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.awt.*;
+import java.awt.image.ColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * Writes an image as a tiled TIFF with a pyramid of reduced resolution copies in its SubIFDs, each half the size of the
+ * one before, down to one that fits in a single tile. Viewers can show any part of a huge image at any zoom by reading
+ * just the tiles they need.
+ *
+ * The image is pulled from its RasterSource one row of tiles at a time. Each row is compressed, then shrunk into the
+ * next level down, which is written out in turn whenever it has a row of tiles of its own; so memory goes with the
+ * width of the image, never its area. Tiles that miss the image's content are all the same, so they're compressed once
+ * and shared. Given a ForkJoinPool, each row of tiles is compressed across its threads.
+ *
+ * Not thread safe; each encoding thread should have its own.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class PyramidTiffWriter {
+
+    static final int TILE_SIZE = 256;
+
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE-8;
+
+    private final StripBatch batch;
+
+    // Compressed empty tiles, by bytes per pixel.
+    private final Map<Integer, byte[]> emptyTiles = new HashMap<>();
+
+    PyramidTiffWriter(StripCompressor compressor){
+        this(() -> compressor, null);
+    }
+
+    PyramidTiffWriter(Supplier<StripCompressor> newCompressor, ForkJoinPool pool){
+        this.batch = new StripBatch(newCompressor, pool);
+    }
+
+    void write(RasterSource source, File outFile) throws IOException {
+        try (TiffOutput out = new TiffOutput(outFile)) {
+            writePage(out, source, new TiffDirectory());
+        }
+    }
+
+    /**
+     * Appends the image to the file as one page, with its reduced resolution levels hanging off of it. Any tags already
+     * on the directory are written along with the ones describing the image.
+     */
+    void writePage(TiffOutput out, RasterSource source, TiffDirectory directory) throws IOException {
+        Pyramid pyramid = new Pyramid(out, source);
+        Level top = pyramid.levels.get(0);
+        Rectangle content = source.getContentBounds();
+
+        for( int y=0; y<top.size.height; y+=TILE_SIZE ){
+            int numRows = Math.min(TILE_SIZE, top.size.height-y);
+
+            // Rows from the last band are still in there.
+            for( int row=0; row<numRows; row++ ){
+                int from = (int)(row*top.rowBytes)+content.x*pyramid.bytesPerPixel;
+                Arrays.fill(top.band, from, from+content.width*pyramid.bytesPerPixel, (byte)0);
+            }
+            if( y < content.y+content.height && y+numRows > content.y ){
+                source.readRows(y, numRows, top.band);
+            }
+            top.bandRows = numRows;
+
+            pyramid.finishBand(0);
+        }
+
+        // Smaller levels may still have part of a row of tiles left.
+        for( int l=1; l<pyramid.levels.size(); l++ ){
+            if( pyramid.levels.get(l).bandRows > 0 ){
+                pyramid.finishBand(l);
+            }
+        }
+
+        long[] subIfds = new long[pyramid.levels.size()-1];
+        for( int l=1; l<pyramid.levels.size(); l++ ){
+            TiffDirectory reduced = new TiffDirectory();
+            reduced.setLongs(TiffDirectory.NEW_SUBFILE_TYPE, TiffDirectory.SUBFILE_REDUCED_RESOLUTION);
+            setTags(reduced, source.getColorModel(), pyramid.levels.get(l));
+            subIfds[l-1] = out.appendSubDirectory(reduced);
+        }
+
+        setTags(directory, source.getColorModel(), top);
+        if( subIfds.length > 0 ){
+            directory.setLongs(TiffDirectory.SUB_IFDS, subIfds);
+        }
+        out.appendDirectory(directory);
+    }
+
+    private void setTags(TiffDirectory directory, ColorModel colorModel, Level level){
+        StreamingTiffWriter.setImageTags(directory, colorModel, level.size, batch.compressor().compressionTag());
+        directory.setLongs(TiffDirectory.TILE_WIDTH, TILE_SIZE);
+        directory.setLongs(TiffDirectory.TILE_LENGTH, TILE_SIZE);
+        directory.setLongs(TiffDirectory.TILE_OFFSETS, level.tileOffsets);
+        directory.setLongs(TiffDirectory.TILE_BYTE_COUNTS, level.tileByteCounts);
+    }
+
+    // Only called with the batch empty, so its compressor is free.
+    private byte[] emptyTile(int bytesPerPixel){
+        byte[] compressed = emptyTiles.get(bytesPerPixel);
+
+        if( compressed == null ){
+            StripCompressor compressor = batch.compressor();
+            int tileBytes = TILE_SIZE*TILE_SIZE*bytesPerPixel;
+            byte[] zeros = new byte[tileBytes];
+            compressed = Arrays.copyOf(compressor.compress(zeros, 0, tileBytes, TILE_SIZE*bytesPerPixel), compressor.length());
+            emptyTiles.put(bytesPerPixel, compressed);
+        }
+        return compressed;
+    }
+
+    /**
+     * One image's levels, as they're being written.
+     */
+    private class Pyramid {
+        final TiffOutput out;
+        final List<Level> levels = new ArrayList<>();
+        final int bytesPerPixel;
+        final int bytesPerSample;
+        // Which sample is alpha, if colors have to be weighted by it when they're averaged.
+        final int alphaSample;
+
+        // Where this file's copy of the empty tile is.
+        long emptyOffset = -1;
+        long emptyLength;
+
+        Pyramid(TiffOutput out, RasterSource source) throws IOException {
+            this.out = out;
+            ColorModel colorModel = source.getColorModel();
+            bytesPerPixel = source.getBytesPerPixel();
+            bytesPerSample = colorModel.getComponentSize(0)/8;
+            alphaSample = colorModel.hasAlpha() && !colorModel.isAlphaPremultiplied() ? colorModel.getNumComponents()-1 : -1;
+            // Empty tiles turn up in the middle of batches, so have one ready beforehand.
+            emptyTile(bytesPerPixel);
+
+            Dimension size = source.getSize();
+            Rectangle content = source.getContentBounds();
+            levels.add(new Level(size, content, bytesPerPixel));
+
+            while( size.width > TILE_SIZE || size.height > TILE_SIZE ){
+                size = new Dimension((size.width+1)/2, (size.height+1)/2);
+                content = content.isEmpty() ? new Rectangle()
+                                            : new Rectangle(content.x/2, content.y/2,
+                                                            (content.x+content.width+1)/2-content.x/2,
+                                                            (content.y+content.height+1)/2-content.y/2);
+                levels.add(new Level(size, content, bytesPerPixel));
+            }
+        }
+
+        /**
+         * Writes out the level's row of tiles and shrinks it into the next level down.
+         */
+        void finishBand(int l) throws IOException {
+            Level level = levels.get(l);
+            int tileRowBytes = TILE_SIZE*bytesPerPixel;
+            int tileBytes = TILE_SIZE*tileRowBytes;
+
+            for( int tx=0; tx<level.tilesAcross; tx++ ){
+                int index = level.bandIndex*level.tilesAcross+tx;
+                Rectangle tileBounds = new Rectangle(tx*TILE_SIZE, level.bandIndex*TILE_SIZE, TILE_SIZE, TILE_SIZE);
+
+                if( !tileBounds.intersects(level.content) ){
+                    appendEmpty(level, index);
+                    continue;
+                }
+
+                // Edge tiles hang over the side of the image; that part stays empty.
+                int copyBytes = Math.min(TILE_SIZE, level.size.width-tx*TILE_SIZE)*bytesPerPixel;
+                boolean empty = true;
+                for( int row=0; row<level.bandRows && empty; row++ ){
+                    empty = isZero(level.band, (int)(row*level.rowBytes)+tx*tileRowBytes, copyBytes);
+                }
+
+                // A composite's content can have big holes between its layers.
+                if( empty ){
+                    appendEmpty(level, index);
+                    continue;
+                }
+
+                byte[] tile = batch.add(index, tileBytes);
+                for( int row=0; row<level.bandRows; row++ ){
+                    System.arraycopy(level.band, (int)(row*level.rowBytes)+tx*tileRowBytes, tile, row*tileRowBytes, copyBytes);
+                }
+                if( batch.isFull() ){
+                    writeBatch(level, tileRowBytes);
+                }
+            }
+            // The next level down uses the batch too.
+            writeBatch(level, tileRowBytes);
+
+            if( l+1 < levels.size() ){
+                Level next = levels.get(l+1);
+                for( int row=0; row<level.bandRows; row+=2 ){
+                    shrinkRows(level, row, Math.min(row+1, level.bandRows-1), next);
+                    next.bandRows++;
+                    if( next.bandRows == TILE_SIZE ){
+                        finishBand(l+1);
+                    }
+                }
+            }
+
+            level.bandIndex++;
+            level.bandRows = 0;
+        }
+
+        /**
+         * Compresses the tiles in the batch, and appends them in the order they were added.
+         */
+        private void writeBatch(Level level, int tileRowBytes) throws IOException {
+            batch.compress(tileRowBytes);
+            for( int i=0; i<batch.size(); i++ ){
+                level.tileOffsets[batch.id(i)] = out.append(batch.result(i), 0, batch.resultLength(i));
+                level.tileByteCounts[batch.id(i)] = batch.resultLength(i);
+            }
+            batch.clear();
+        }
+
+        private void appendEmpty(Level level, int index) throws IOException {
+            if( emptyOffset < 0 ){
+                byte[] compressed = emptyTile(bytesPerPixel);
+                emptyOffset = out.append(compressed, 0, compressed.length);
+                emptyLength = compressed.length;
+            }
+            level.tileOffsets[index] = emptyOffset;
+            level.tileByteCounts[index] = emptyLength;
+        }
+
+        private boolean isZero(byte[] data, int off, int len){
+            for( int i=off; i<off+len; i++ ){
+                if( data[i] != 0 ){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Averages each 2x2 block of two rows of the level into one pixel of the next row of the next level. Only the
+         * next level's content is worked out; the rest of it is always empty.
+         */
+        private void shrinkRows(Level level, int row0, int row1, Level next){
+            int dest = (int)(next.bandRows*next.rowBytes)+next.content.x*bytesPerPixel;
+            int destEnd = dest+next.content.width*bytesPerPixel;
+
+            // Rows above and below the content shrink to nothing.
+            int y = level.bandIndex*TILE_SIZE+row0;
+            if( y >= level.content.y+level.content.height || y+(row1-row0) < level.content.y ){
+                Arrays.fill(next.band, dest, destEnd, (byte)0);
+                return;
+            }
+
+            byte[] band = level.band;
+            int numSamples = bytesPerPixel/bytesPerSample;
+            int offset0 = (int)(row0*level.rowBytes);
+            int offset1 = (int)(row1*level.rowBytes);
+
+            for( int x=next.content.x; x<next.content.x+next.content.width; x++ ){
+                int left = 2*x*bytesPerPixel;
+                int right = Math.min(2*x+1, level.size.width-1)*bytesPerPixel;
+                int a = offset0+left, b = offset0+right, c = offset1+left, d = offset1+right;
+
+                long alphaSum = 0;
+                if( alphaSample >= 0 ){
+                    int alphaAt = alphaSample*bytesPerSample;
+                    alphaSum = sample(band, a+alphaAt)+sample(band, b+alphaAt)+sample(band, c+alphaAt)+sample(band, d+alphaAt);
+                }
+
+                for( int s=0; s<numSamples; s++ ){
+                    int at = s*bytesPerSample;
+                    long value;
+                    if( alphaSample < 0 || s == alphaSample ){
+                        value = (sample(band, a+at)+sample(band, b+at)+sample(band, c+at)+sample(band, d+at)+2)/4;
+                    }else if( alphaSum == 0 ){
+                        value = 0;
+                    }else{ // Fully transparent pixels have no color to speak of, so don't let them darken the rest.
+                        int alphaAt = alphaSample*bytesPerSample;
+                        long weighted = sample(band, a+at)*sample(band, a+alphaAt)+sample(band, b+at)*sample(band, b+alphaAt)+
+                                        sample(band, c+at)*sample(band, c+alphaAt)+sample(band, d+at)*sample(band, d+alphaAt);
+                        value = (weighted+alphaSum/2)/alphaSum;
+                    }
+
+                    next.band[dest++] = (byte)value;
+                    if( bytesPerSample == 2 ){
+                        next.band[dest++] = (byte)(value >>> 8);
+                    }
+                }
+            }
+        }
+
+        private long sample(byte[] band, int at){
+            if( bytesPerSample == 1 ){
+                return band[at] & 0xFF;
+            }
+            return (band[at] & 0xFF) | (band[at+1] & 0xFF) << 8;
+        }
+    }
+
+    /**
+     * One level of the pyramid, and the row of tiles it's working on.
+     */
+    private static class Level {
+        final Dimension size;
+        final Rectangle content;
+        final long rowBytes;
+        final int tilesAcross;
+        final long[] tileOffsets;
+        final long[] tileByteCounts;
+
+        final byte[] band;
+        int bandRows = 0;
+        int bandIndex = 0;
+
+        Level(Dimension size, Rectangle content, int bytesPerPixel) throws IOException {
+            this.size = size;
+            this.content = content;
+            rowBytes = (long)size.width*bytesPerPixel;
+            if( rowBytes*TILE_SIZE > MAX_ARRAY_LENGTH ){
+                throw new IOException("A "+size.width+" pixel wide row of tiles is too large to hold in memory.");
+            }
+
+            tilesAcross = (size.width+TILE_SIZE-1)/TILE_SIZE;
+            int tilesDown = (size.height+TILE_SIZE-1)/TILE_SIZE;
+            tileOffsets = new long[tilesAcross*tilesDown];
+            tileByteCounts = new long[tilesAcross*tilesDown];
+
+            band = new byte[(int)(rowBytes*TILE_SIZE)];
+        }
+    }
+}
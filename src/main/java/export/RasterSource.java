@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.awt.*;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+
+/**
+ * An image that the TIFF writers can pull a few rows at a time, so it never has to exist all at once. Rows come out
+ * the way TIFF stores them: interleaved samples in color model order, little-endian if they're 16 bit.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+interface RasterSource {
+
+    Dimension getSize();
+
+    /**
+     * Describes the samples; it's never one that StreamingTiffWriter.canWrite() would turn down.
+     */
+    ColorModel getColorModel();
+
+    /**
+     * The part of the image that might not be empty. Everything outside it is zero.
+     */
+    Rectangle getContentBounds();
+
+    /**
+     * Copies numRows rows starting at y into dest, one whole row of the image after the other. Only samples inside the
+     * content bounds are written; the caller sees to it that the rest are zero.
+     */
+    void readRows(int y, int numRows, byte[] dest) throws IOException;
+
+    default int getBytesPerPixel(){
+        ColorModel colorModel = getColorModel();
+        return colorModel.getNumComponents()*colorModel.getComponentSize(0)/8;
+    }
+}
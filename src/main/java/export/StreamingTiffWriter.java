@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * Writes an image as a compressed, striped TIFF of a larger size, with the image placed somewhere on it and
+ * everything else left empty, without ever making the full size image. Strips are filled and compressed one at a time,
+ * so memory use goes with the strip size instead of the canvas. Strips that miss the image entirely are all the same,
+ * so they're compressed once and every one of them points at that single copy. Given a ForkJoinPool, a batch of
+ * strips is compressed at once across its threads, then written out in order.
+ *
+ * Handles 8 and 16 bit RGB and gray images, with or without alpha; check canWrite() first.
+ *
+ * Not thread safe; each encoding thread should have its own.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class StreamingTiffWriter {
+
+    // Roughly how much uncompressed data goes into each strip.
+    private static final int STRIP_BYTES = 256*1024;
+
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE-8;
+
+    private final StripBatch batch;
+
+    // Compressed empty strips, by their uncompressed size.
+    private final Map<Integer, byte[]> emptyStrips = new HashMap<>();
+
+    StreamingTiffWriter(){
+        this(new LzwEncoder());
+    }
+
+    StreamingTiffWriter(StripCompressor compressor){
+        this(() -> compressor, null);
+    }
+
+    /**
+     * Compresses strips on the pool, if there is one, with a compressor of newCompressor's for each one in flight.
+     */
+    StreamingTiffWriter(Supplier<StripCompressor> newCompressor, ForkJoinPool pool){
+        this.batch = new StripBatch(newCompressor, pool);
+    }
+
+    static boolean canWrite(BufferedImage image){
+        ColorModel colorModel = image.getColorModel();
+        if( !(colorModel instanceof ComponentColorModel) && !(colorModel instanceof DirectColorModel) ){
+            return false;
+        }
+
+        int colorSpaceType = colorModel.getColorSpace().getType();
+        int numColors = colorModel.getNumColorComponents();
+        if( !(colorSpaceType == ColorSpace.TYPE_RGB && numColors == 3) && !(colorSpaceType == ColorSpace.TYPE_GRAY && numColors == 1) ){
+            return false;
+        }
+
+        int bits = colorModel.getComponentSize(0);
+        if( bits != 8 && bits != 16 ){
+            return false;
+        }
+        for( int c=1; c<colorModel.getNumComponents(); c++ ){
+            if( colorModel.getComponentSize(c) != bits ){
+                return false;
+            }
+        }
+
+        return image.getRaster().getNumBands() == colorModel.getNumComponents();
+    }
+
+    /**
+     * Converts an image canWrite() turns down into 8 bit sRGB with alpha, which it won't.
+     */
+    static BufferedImage toWritable(BufferedImage image){
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        new ColorConvertOp(null).filter(image, converted);
+        return converted;
+    }
+
+    /**
+     * Writes the image into a file of outputSize, with its top left corner at origin. Any part of the image that falls
+     * outside of the output is left out.
+     */
+    void write(BufferedImage image, Point origin, Dimension outputSize, File outFile) throws IOException {
+        write(new PlacedImageSource(image, origin, outputSize), outFile);
+    }
+
+    void write(RasterSource source, File outFile) throws IOException {
+        try (TiffOutput out = new TiffOutput(outFile)) {
+            writePage(out, source, new TiffDirectory());
+        }
+    }
+
+    /**
+     * Appends the image to the file as one page: its strips, and then its directory. Any tags already on the
+     * directory are written along with the ones describing the image.
+     */
+    void writePage(TiffOutput out, BufferedImage image, Point origin, Dimension outputSize, TiffDirectory directory) throws IOException {
+        writePage(out, new PlacedImageSource(image, origin, outputSize), directory);
+    }
+
+    void writePage(TiffOutput out, RasterSource source, TiffDirectory directory) throws IOException {
+        encodePage(out::append, source, directory);
+        out.appendDirectory(directory);
+    }
+
+    /**
+     * Compresses the image's strips into the sink, and sets the tags describing them and the image on the directory.
+     * Strip offsets are whatever the sink says they are.
+     */
+    void encodePage(StripSink sink, BufferedImage image, Point origin, Dimension outputSize, TiffDirectory directory) throws IOException {
+        encodePage(sink, new PlacedImageSource(image, origin, outputSize), directory);
+    }
+
+    void encodePage(StripSink sink, RasterSource source, TiffDirectory directory) throws IOException {
+        Dimension outputSize = source.getSize();
+
+        long rowBytes = (long)outputSize.width*source.getBytesPerPixel();
+        if( rowBytes > MAX_ARRAY_LENGTH ){
+            throw new IOException("A "+outputSize.width+" pixel wide row is too large to hold in memory.");
+        }
+        int rowsPerStrip = (int)Math.max(1, Math.min(outputSize.height, STRIP_BYTES/rowBytes));
+        int numStrips = (outputSize.height+rowsPerStrip-1)/rowsPerStrip;
+
+        Rectangle content = source.getContentBounds();
+
+        long[] stripOffsets = new long[numStrips];
+        long[] stripByteCounts = new long[numStrips];
+        // Where this file's copy of each empty strip is, by its uncompressed size.
+        Map<Integer, long[]> emptyWritten = new HashMap<>();
+
+        for( int s=0; s<numStrips; s++ ){
+            int firstRow = s*rowsPerStrip;
+            int numRows = Math.min(rowsPerStrip, outputSize.height-firstRow);
+            int stripLength = (int)(numRows*rowBytes);
+
+            if( content.isEmpty() || firstRow >= content.y+content.height || firstRow+numRows <= content.y ){
+                // Empty strips come before and after the content, so there's nothing to wait for here.
+                writeBatch(sink, rowBytes, stripOffsets, stripByteCounts);
+                long[] written = emptyWritten.get(stripLength);
+                if( written == null ){
+                    byte[] compressed = emptyStrip(stripLength, (int)rowBytes);
+                    written = new long[]{ sink.append(compressed, 0, compressed.length), compressed.length };
+                    emptyWritten.put(stripLength, written);
+                }
+                stripOffsets[s] = written[0];
+                stripByteCounts[s] = written[1];
+                continue;
+            }
+
+            source.readRows(firstRow, numRows, batch.add(s, stripLength));
+            if( batch.isFull() ){
+                writeBatch(sink, rowBytes, stripOffsets, stripByteCounts);
+            }
+        }
+        writeBatch(sink, rowBytes, stripOffsets, stripByteCounts);
+
+        setImageTags(directory, source.getColorModel(), outputSize, batch.compressor().compressionTag());
+        directory.setLongs(TiffDirectory.STRIP_OFFSETS, stripOffsets);
+        directory.setLongs(TiffDirectory.ROWS_PER_STRIP, rowsPerStrip);
+        directory.setLongs(TiffDirectory.STRIP_BYTE_COUNTS, stripByteCounts);
+    }
+
+    /**
+     * Sets the tags that say what an image is, leaving out how its data is laid out in the file.
+     */
+    static void setImageTags(TiffDirectory directory, ColorModel colorModel, Dimension size, int compressionTag){
+        int numBands = colorModel.getNumComponents();
+        int[] bitsPerSample = new int[numBands];
+        Arrays.fill(bitsPerSample, colorModel.getComponentSize(0));
+
+        directory.setLongs(TiffDirectory.IMAGE_WIDTH, size.width);
+        directory.setLongs(TiffDirectory.IMAGE_LENGTH, size.height);
+        directory.setShorts(TiffDirectory.BITS_PER_SAMPLE, bitsPerSample);
+        directory.setShorts(TiffDirectory.COMPRESSION, compressionTag);
+        directory.setShorts(TiffDirectory.PHOTOMETRIC, colorModel.getNumColorComponents() == 1 ? TiffDirectory.PHOTOMETRIC_BLACK_IS_ZERO
+                                                                                                   : TiffDirectory.PHOTOMETRIC_RGB);
+        directory.setShorts(TiffDirectory.SAMPLES_PER_PIXEL, numBands);
+        directory.setRational(TiffDirectory.X_RESOLUTION, 72, 1);
+        directory.setRational(TiffDirectory.Y_RESOLUTION, 72, 1);
+        directory.setShorts(TiffDirectory.PLANAR_CONFIGURATION, 1);
+        directory.setShorts(TiffDirectory.RESOLUTION_UNIT, TiffDirectory.RESOLUTION_UNIT_INCH);
+
+        if( colorModel.hasAlpha() ){
+            directory.setShorts(TiffDirectory.EXTRA_SAMPLES, colorModel.isAlphaPremultiplied() ? TiffDirectory.EXTRA_SAMPLES_ASSOCIATED_ALPHA
+                                                                                               : TiffDirectory.EXTRA_SAMPLES_UNASSOCIATED_ALPHA);
+        }
+
+        ColorSpace colorSpace = colorModel.getColorSpace();
+        if( colorSpace instanceof ICC_ColorSpace && !colorSpace.isCS_sRGB() ){
+            directory.setUndefined(TiffDirectory.ICC_PROFILE, ((ICC_ColorSpace)colorSpace).getProfile().getData());
+        }
+    }
+
+    /**
+     * Somewhere compressed strips can go, which says where each one ended up.
+     */
+    interface StripSink {
+        long append(byte[] data, int off, int len) throws IOException;
+    }
+
+    /**
+     * Compresses the strips in the batch, and appends them in the order they were added.
+     */
+    private void writeBatch(StripSink sink, long rowBytes, long[] stripOffsets, long[] stripByteCounts) throws IOException {
+        batch.compress((int)rowBytes);
+        for( int i=0; i<batch.size(); i++ ){
+            stripOffsets[batch.id(i)] = sink.append(batch.result(i), 0, batch.resultLength(i));
+            stripByteCounts[batch.id(i)] = batch.resultLength(i);
+        }
+        batch.clear();
+    }
+
+    // Only called with the batch empty, so its compressor is free.
+    private byte[] emptyStrip(int stripLength, int rowBytes){
+        byte[] compressed = emptyStrips.get(stripLength);
+
+        if( compressed == null ){
+            StripCompressor compressor = batch.compressor();
+            compressed = Arrays.copyOf(compressor.compress(new byte[stripLength], 0, stripLength, rowBytes), compressor.length());
+            emptyStrips.put(stripLength, compressed);
+        }
+        return compressed;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+/**
+ * Strips or tiles of one image gathered up to be compressed together. Each has a buffer and a compressor of its own,
+ * so with a ForkJoinPool they're compressed in parallel, and one big layer can keep every core busy. Without a pool
+ * the batch holds just one, compressed on the caller's thread.
+ *
+ * Results come back by position in the batch, so they can be written out in the order they were added.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class StripBatch {
+
+    private final ForkJoinPool pool;
+    private final Supplier<StripCompressor> newCompressor;
+
+    private final StripCompressor[] compressors;
+    private final byte[][] buffers;
+    private final byte[][] results;
+    private final int[] lengths;
+    private final int[] ids;
+    private int size = 0;
+
+    StripBatch(Supplier<StripCompressor> newCompressor, ForkJoinPool pool){
+        this.pool = pool;
+        this.newCompressor = newCompressor;
+
+        // Twice the pool's threads, so none of them run out of work while the slowest strip finishes.
+        int capacity = pool == null ? 1 : 2*pool.getParallelism();
+        compressors = new StripCompressor[capacity];
+        buffers = new byte[capacity][];
+        results = new byte[capacity][];
+        lengths = new int[capacity];
+        ids = new int[capacity];
+
+        compressors[0] = newCompressor.get();
+        buffers[0] = new byte[0];
+    }
+
+    /**
+     * A compressor that's free whenever the batch is empty, for one-off jobs like the empty strip.
+     */
+    StripCompressor compressor(){
+        return compressors[0];
+    }
+
+    int size(){
+        return size;
+    }
+
+    boolean isFull(){
+        return size == compressors.length;
+    }
+
+    /**
+     * Adds a strip of length bytes with the given id, and returns its buffer to fill in, zeroed. Only the first
+     * length bytes count.
+     */
+    byte[] add(int id, int length){
+        if( compressors[size] == null ){
+            compressors[size] = newCompressor.get();
+            buffers[size] = new byte[0];
+        }
+        if( buffers[size].length < length ){
+            buffers[size] = new byte[length];
+        }else{
+            Arrays.fill(buffers[size], 0, length, (byte)0);
+        }
+
+        ids[size] = id;
+        lengths[size] = length;
+        return buffers[size++];
+    }
+
+    /**
+     * Compresses everything in the batch, in parallel if there's a pool.
+     */
+    void compress(int rowBytes){
+        if( pool == null || size == 1 ){
+            for( int i=0; i<size; i++ ){
+                results[i] = compressors[i].compress(buffers[i], 0, lengths[i], rowBytes);
+            }
+            return;
+        }
+
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[size];
+        for( int i=0; i<size; i++ ){
+            int slot = i;
+            tasks[i] = ForkJoinTask.adapt(() -> {
+                results[slot] = compressors[slot].compress(buffers[slot], 0, lengths[slot], rowBytes);
+            });
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute(){
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    int id(int i){
+        return ids[i];
+    }
+
+    /**
+     * The compressed strip at position i; result(i) is only good up to resultLength(i), and until the next compress().
+     */
+    byte[] result(int i){
+        return results[i];
+    }
+
+    int resultLength(int i){
+        return compressors[i].length();
+    }
+
+    void clear(){
+        size = 0;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses one TIFF strip or tile at a time. Implementations reuse their output buffer, so the result of compress()
+ * is only good until the next call, and none of them are thread safe.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+interface StripCompressor {
+
+    /**
+     * The value of the TIFF Compression tag for data compressed this way.
+     */
+    int compressionTag();
+
+    /**
+     * Compresses len bytes of data starting at off, made up of rows rowBytes long. Returns a buffer whose first
+     * length() bytes are the result.
+     */
+    byte[] compress(byte[] data, int off, int len, int rowBytes);
+
+    /**
+     * How many bytes the last call to compress() produced.
+     */
+    int length();
+
+    /**
+     * Leaves the data as is.
+     */
+    class None implements StripCompressor {
+        private byte[] out = new byte[0];
+        private int length;
+
+        @Override
+        public int compressionTag(){
+            return TiffDirectory.COMPRESSION_NONE;
+        }
+
+        @Override
+        public byte[] compress(byte[] data, int off, int len, int rowBytes){
+            if( out.length < len ){
+                out = new byte[len];
+            }
+            System.arraycopy(data, off, out, 0, len);
+            length = len;
+            return out;
+        }
+
+        @Override
+        public int length(){
+            return length;
+        }
+    }
+
+    /**
+     * zlib, at a given level from 1 (fastest) to 9 (smallest).
+     */
+    class Deflate implements StripCompressor {
+        private final Deflater deflater;
+        private byte[] out = new byte[64*1024];
+        private int length;
+
+        Deflate(int level){
+            deflater = new Deflater(level);
+        }
+
+        @Override
+        public int compressionTag(){
+            return TiffDirectory.COMPRESSION_DEFLATE;
+        }
+
+        @Override
+        public byte[] compress(byte[] data, int off, int len, int rowBytes){
+            deflater.reset();
+            deflater.setInput(data, off, len);
+            deflater.finish();
+
+            length = 0;
+            while( !deflater.finished() ){
+                if( length == out.length ){
+                    out = Arrays.copyOf(out, out.length*2);
+                }
+                length += deflater.deflate(out, length, out.length-length);
+            }
+            return out;
+        }
+
+        @Override
+        public int length(){
+            return length;
+        }
+    }
+
+    /**
+     * Apple's PackBits run length encoding. TIFF wants every row packed on its own.
+     */
+    class PackBits implements StripCompressor {
+        private static final int MAX_RUN = 128;
+
+        private byte[] out = new byte[0];
+        private int length;
+
+        @Override
+        public int compressionTag(){
+            return TiffDirectory.COMPRESSION_PACKBITS;
+        }
+
+        @Override
+        public byte[] compress(byte[] data, int off, int len, int rowBytes){
+            // At worst, one header byte for every 128 literal bytes in each row.
+            int worstCase = len+(len/rowBytes)*((rowBytes+MAX_RUN-1)/MAX_RUN);
+            if( out.length < worstCase ){
+                out = new byte[worstCase];
+            }
+
+            length = 0;
+            for( int rowStart=off; rowStart<off+len; rowStart+=rowBytes ){
+                packRow(data, rowStart, rowStart+rowBytes);
+            }
+            return out;
+        }
+
+        private void packRow(byte[] data, int from, int to){
+            int i = from;
+
+            while( i < to ){
+                // How far does the byte at i repeat?
+                int run = 1;
+                while( i+run < to && run < MAX_RUN && data[i+run] == data[i] ){
+                    run++;
+                }
+
+                if( run > 1 ){
+                    out[length++] = (byte)(1-run);
+                    out[length++] = data[i];
+                    i += run;
+                    continue;
+                }
+
+                // Otherwise gather literals until the next run of at least 3 starts, where a run pays for itself.
+                int literalStart = i;
+                while( i < to && i-literalStart < MAX_RUN ){
+                    if( i+2 < to && data[i] == data[i+1] && data[i] == data[i+2] ){
+                        break;
+                    }
+                    i++;
+                }
+                out[length++] = (byte)(i-literalStart-1);
+                System.arraycopy(data, literalStart, out, length, i-literalStart);
+                length += i-literalStart;
+            }
+        }
+
+        @Override
+        public int length(){
+            return length;
+        }
+    }
+}
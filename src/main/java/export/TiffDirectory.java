@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The tags of one TIFF image file directory. Tags can be set in any order; they're written out sorted, as TIFF
+ * requires.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class TiffDirectory {
+
+    static final int NEW_SUBFILE_TYPE = 254;
+    static final int IMAGE_WIDTH = 256;
+    static final int IMAGE_LENGTH = 257;
+    static final int BITS_PER_SAMPLE = 258;
+    static final int COMPRESSION = 259;
+    static final int PHOTOMETRIC = 262;
+    static final int STRIP_OFFSETS = 273;
+    static final int SAMPLES_PER_PIXEL = 277;
+    static final int ROWS_PER_STRIP = 278;
+    static final int STRIP_BYTE_COUNTS = 279;
+    static final int X_RESOLUTION = 282;
+    static final int Y_RESOLUTION = 283;
+    static final int PLANAR_CONFIGURATION = 284;
+    static final int PAGE_NAME = 285;
+    static final int X_POSITION = 286;
+    static final int Y_POSITION = 287;
+    static final int RESOLUTION_UNIT = 296;
+    static final int PREDICTOR = 317;
+    static final int TILE_WIDTH = 322;
+    static final int TILE_LENGTH = 323;
+    static final int TILE_OFFSETS = 324;
+    static final int TILE_BYTE_COUNTS = 325;
+    static final int SUB_IFDS = 330;
+    static final int EXTRA_SAMPLES = 338;
+    static final int ICC_PROFILE = 34675;
+
+    static final int SUBFILE_REDUCED_RESOLUTION = 1;
+    static final int SUBFILE_PAGE = 2;
+    static final int COMPRESSION_NONE = 1;
+    static final int COMPRESSION_LZW = 5;
+    static final int COMPRESSION_DEFLATE = 8;
+    static final int COMPRESSION_PACKBITS = 32773;
+    static final int PHOTOMETRIC_BLACK_IS_ZERO = 1;
+    static final int PHOTOMETRIC_RGB = 2;
+    static final int EXTRA_SAMPLES_ASSOCIATED_ALPHA = 1;
+    static final int EXTRA_SAMPLES_UNASSOCIATED_ALPHA = 2;
+    static final int RESOLUTION_UNIT_INCH = 2;
+
+    private static final short TYPE_ASCII = 2;
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_RATIONAL = 5;
+    private static final short TYPE_UNDEFINED = 7;
+
+    private static final int ENTRY_SIZE = 12;
+
+    private final Map<Integer, Entry> entries = new TreeMap<>();
+
+    void setShorts(int tag, int... values){
+        ByteBuffer value = allocate(values.length*2);
+        for( int v : values ){
+            value.putShort((short)v);
+        }
+        entries.put(tag, new Entry(TYPE_SHORT, values.length, value.array()));
+    }
+
+    void setLongs(int tag, long... values){
+        ByteBuffer value = allocate(values.length*4);
+        for( long v : values ){
+            value.putInt((int)v);
+        }
+        entries.put(tag, new Entry(TYPE_LONG, values.length, value.array()));
+    }
+
+    /**
+     * Adds delta to every value of a tag set with setLongs, like strip offsets when their data moves.
+     */
+    void offsetLongs(int tag, long delta){
+        ByteBuffer value = ByteBuffer.wrap(entries.get(tag).value).order(ByteOrder.LITTLE_ENDIAN);
+        for( int i=0; i<value.capacity(); i+=4 ){
+            value.putInt(i, (int)((value.getInt(i) & 0xFFFFFFFFL)+delta));
+        }
+    }
+
+    void setRational(int tag, long numerator, long denominator){
+        ByteBuffer value = allocate(8);
+        value.putInt((int)numerator);
+        value.putInt((int)denominator);
+        entries.put(tag, new Entry(TYPE_RATIONAL, 1, value.array()));
+    }
+
+    /**
+     * Stored as UTF-8, since layer names aren't always plain ASCII; readers pass the bytes through.
+     */
+    void setAscii(int tag, String text){
+        byte[] chars = text.getBytes(StandardCharsets.UTF_8);
+        byte[] value = new byte[chars.length+1]; // NUL terminated
+        System.arraycopy(chars, 0, value, 0, chars.length);
+        entries.put(tag, new Entry(TYPE_ASCII, value.length, value));
+    }
+
+    void setUndefined(int tag, byte[] value){
+        entries.put(tag, new Entry(TYPE_UNDEFINED, value.length, value));
+    }
+
+    /**
+     * Lays out the directory as it would sit at the given file offset: the entries, a zero next directory offset, and
+     * then any values too large to fit in their entries.
+     */
+    byte[] toBytes(long offset){
+        int tableSize = 2+entries.size()*ENTRY_SIZE+4;
+        int valuesSize = 0;
+        for( Entry entry : entries.values() ){
+            if( entry.value.length > 4 ){
+                valuesSize += (entry.value.length+1) & ~1; // Values start on word boundaries.
+            }
+        }
+
+        ByteBuffer ifd = allocate(tableSize+valuesSize);
+        long valueOffset = offset+tableSize;
+        int valuePosition = tableSize;
+
+        ifd.putShort((short)entries.size());
+        for( Map.Entry<Integer, Entry> tagged : entries.entrySet() ){
+            Entry entry = tagged.getValue();
+
+            ifd.putShort(tagged.getKey().shortValue());
+            ifd.putShort(entry.type);
+            ifd.putInt(entry.count);
+
+            if( entry.value.length <= 4 ){
+                byte[] inline = new byte[4];
+                System.arraycopy(entry.value, 0, inline, 0, entry.value.length);
+                ifd.put(inline);
+            }else{
+                ifd.putInt((int)valueOffset);
+
+                int at = ifd.position();
+                ifd.position(valuePosition);
+                ifd.put(entry.value);
+                ifd.position(at);
+
+                int padded = (entry.value.length+1) & ~1;
+                valueOffset += padded;
+                valuePosition += padded;
+            }
+        }
+        ifd.putInt(0);
+
+        return ifd.array();
+    }
+
+    private static ByteBuffer allocate(int size){
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static class Entry {
+        final short type;
+        final int count;
+        final byte[] value;
+
+        Entry(short type, int count, byte[] value){
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+}
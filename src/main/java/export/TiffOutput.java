@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A little-endian TIFF file being written front to back. Image data is appended as it's encoded, and each directory
+ * is written after its data and linked in behind the one before it, so nothing has to be held until the end. It can
+ * go straight to a file, or to a FileSink; then finishing the file is up to whoever made the sink.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class TiffOutput implements Closeable {
+
+    // Plain TIFF offsets are unsigned 32 bit.
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+
+    private final String name;
+    private final FileChannel channel;
+    private final FileSink sink;
+    private long position;
+
+    // Where to write the offset of the next directory: the header at first, then the end of the last directory.
+    private long nextDirectoryPointer = 4;
+
+    TiffOutput(File file) throws IOException {
+        this.name = file.getName();
+        this.channel = FileChannel.open(file.toPath(), CREATE, WRITE, TRUNCATE_EXISTING);
+        this.sink = null;
+        writeHeader();
+    }
+
+    TiffOutput(FileSink sink) throws IOException {
+        this.name = sink.getName();
+        this.channel = null;
+        this.sink = sink;
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte)'I').put((byte)'I').putShort((short)42).putInt(0);
+        header.flip();
+        write(header);
+    }
+
+    /**
+     * Appends image data, and returns the offset it was written at.
+     */
+    long append(byte[] data, int off, int len) throws IOException {
+        long at = position;
+        write(ByteBuffer.wrap(data, off, len));
+        return at;
+    }
+
+    /**
+     * Appends a directory, and links it in as the next one in the file. Returns the offset it was written at.
+     */
+    long appendDirectory(TiffDirectory directory) throws IOException {
+        long at = position+(position & 1);
+        byte[] ifd = writeDirectory(directory);
+
+        ByteBuffer pointer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        pointer.putInt((int)at);
+        pointer.flip();
+        writeAt(pointer, nextDirectoryPointer);
+
+        // The next directory offset is the last thing in the entry table, before any of the values.
+        int numEntries = (ifd[0] & 0xFF) | (ifd[1] & 0xFF) << 8;
+        nextDirectoryPointer = at+2+numEntries*12;
+
+        return at;
+    }
+
+    /**
+     * Appends a directory that isn't part of the chain of pages, like a SubIFD, and returns the offset it was written
+     * at so something else can point to it.
+     */
+    long appendSubDirectory(TiffDirectory directory) throws IOException {
+        long at = position+(position & 1);
+        writeDirectory(directory);
+        return at;
+    }
+
+    private byte[] writeDirectory(TiffDirectory directory) throws IOException {
+        if( (position & 1) != 0 ){ // Directories have to start on a word boundary.
+            write(ByteBuffer.wrap(new byte[1]));
+        }
+
+        byte[] ifd = directory.toBytes(position);
+        write(ByteBuffer.wrap(ifd));
+        return ifd;
+    }
+
+    long position(){
+        return position;
+    }
+
+    String getName(){
+        return name;
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        if( position+data.remaining() > MAX_OFFSET ){
+            throw new IOException("Failed to write file: "+name+"! It would be over 4 GB, which TIFF can't address.");
+        }
+        int len = data.remaining();
+        writeAt(data, position);
+        position += len;
+    }
+
+    private void writeAt(ByteBuffer data, long at) throws IOException {
+        if( sink != null ){
+            sink.write(data, at);
+            return;
+        }
+        long start = data.position();
+        while( data.hasRemaining() ){
+            channel.write(data, at+data.position()-start);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if( channel != null ){
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Appends pages to a multi-page TIFF in layer order, however out of order they finish encoding. Encoders reserve a
+ * place in the window before taking a layer, so only a window's worth of finished pages can pile up in memory behind
+ * a slow one.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class TiffPageSequence implements Closeable {
+
+    private final TiffOutput out;
+    private final Semaphore window;
+
+    private final Map<Integer, BufferedTiffPage> finished = new HashMap<>();
+    private int nextIndex = 0;
+    private int numPages = 0;
+
+    TiffPageSequence(TiffOutput out, int windowSize){
+        this.out = out;
+        window = new Semaphore(windowSize);
+    }
+
+    void reserve() throws InterruptedException {
+        window.acquire();
+    }
+
+    /**
+     * Gives back a reservation that didn't end up with a layer.
+     */
+    void cancelReservation(){
+        window.release();
+    }
+
+    /**
+     * Hands over the page for the layer at index, or null if that layer doesn't get one, and appends every page that's
+     * now next in line.
+     */
+    void complete(int index, BufferedTiffPage page) throws IOException {
+        synchronized (finished) {
+            finished.put(index, page);
+
+            while( finished.containsKey(nextIndex) ){
+                BufferedTiffPage next = finished.remove(nextIndex);
+                if( next != null ){
+                    next.appendTo(out);
+                    numPages++;
+                }
+                nextIndex++;
+                window.release();
+            }
+        }
+    }
+
+    /**
+     * Lets everyone waiting on the window through, once it's clear the sequence won't be finished.
+     */
+    void abort(){
+        window.release(Integer.MAX_VALUE/2);
+    }
+
+    int getNumPages(){
+        synchronized (finished) {
+            return numPages;
+        }
+    }
+
+    long length(){
+        synchronized (finished) {
+            return out.position();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import org.apache.logging.log4j.LogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Writes files on threads of its own, so the encoders can get on with the next layer instead of waiting on the disk.
+ * Encoders hand over their bytes, which are copied and queued; once more than maxQueuedBytes are waiting, they block
+ * until the writers catch up.
+ *
+ * Each file is written beside its target under a temporary name of its own and only renamed into place once it's
+ * whole, so there's never a half written file under a real name, and two files headed for the same name never write
+ * over each other's bytes. If durable, files are also synced to disk before they're
+ * renamed, a batch at a time so the directory only has to be synced once for all of them.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class WriteBehindStage implements AutoCloseable {
+
+    // Writes are queued in pieces no bigger than this, so a huge one doesn't have to wait for the whole queue to empty.
+    private static final int CHUNK_BYTES = 1024*1024;
+
+    // The most durable files a writer holds before syncing them.
+    private static final int SYNC_BATCH = 16;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Tells a writer there's nothing more coming.
+    private static final Task END = () -> {};
+    private static final int NO_PERMITS = 0;
+
+    private final boolean durable;
+    private final Semaphore queuedBytes;
+
+    private final Writer[] writers;
+    private final AtomicInteger nextWriter = new AtomicInteger();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    WriteBehindStage(int numThreads, long maxQueuedBytes, boolean durable){
+        this.durable = durable;
+        this.queuedBytes = new Semaphore((int)Math.max(CHUNK_BYTES, Math.min(Integer.MAX_VALUE, maxQueuedBytes)));
+
+        writers = new Writer[Math.max(1, numThreads)];
+        for( int w=0; w<writers.length; w++ ){
+            writers[w] = new Writer();
+            writers[w].thread = new Thread(writers[w], "File writer "+(w+1));
+            writers[w].thread.setDaemon(true);
+            writers[w].thread.start();
+        }
+    }
+
+    /**
+     * Starts a file. Nothing shows up under its name until it's committed.
+     */
+    PendingFile open(File target){
+        // Every write to a file goes to the same writer, so they happen in order.
+        return new PendingFile(target, writers[Math.floorMod(nextWriter.getAndIncrement(), writers.length)]);
+    }
+
+    /**
+     * Waits for everything queued to be written, and stops the writers. Throws the first thing that went wrong.
+     */
+    @Override
+    public void close() throws IOException {
+        boolean interrupted = false;
+        for( Writer writer : writers ){
+            writer.tasks.add(END);
+        }
+        for( Writer writer : writers ){
+            while( writer.thread.isAlive() ){
+                try {
+                    writer.thread.join();
+                } catch (InterruptedException ex) {
+                    // Files still have to be finished or cleaned up, so keep waiting.
+                    interrupted = true;
+                }
+            }
+        }
+        if( interrupted ){
+            Thread.currentThread().interrupt();
+        }
+
+        IOException ex = failure.get();
+        if( ex != null ){
+            throw ex;
+        }
+    }
+
+    private void fail(IOException ex){
+        if( !failure.compareAndSet(null, ex) ){
+            LogManager.getLogger().debug("Another write failed too.", ex);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException ex = failure.get();
+        if( ex != null ){
+            throw new IOException("An earlier write failed: "+ex.getMessage(), ex);
+        }
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    /**
+     * One writer thread, working through the tasks for the files it was given in the order they were queued.
+     */
+    private final class Writer implements Runnable {
+        final BlockingQueue<Task> tasks = new LinkedBlockingQueue<>();
+        // Durable files written but not yet synced and renamed.
+        final List<PendingFile> batch = new ArrayList<>();
+        Thread thread;
+        // Once set, whoever queues a task works through the queue themselves.
+        private volatile boolean stopped = false;
+
+        @Override
+        public void run(){
+            try {
+                while( true ){
+                    // Nothing else to do, so don't leave the batch waiting on files that may never come.
+                    Task task = tasks.poll();
+                    if( task == null ){
+                        syncBatch();
+                        task = tasks.take();
+                    }
+                    if( task == END ){
+                        break;
+                    }
+                    runTask(task);
+                }
+            } catch (InterruptedException ex) {
+                fail(new InterruptedIOException("Writing files was interrupted."));
+            } finally {
+                syncBatch();
+                stopped = true;
+                drain();
+            }
+        }
+
+        // Runs a task, keeping whatever goes wrong for close() instead of letting it stop the writer.
+        private void runTask(Task task){
+            try {
+                task.run();
+            } catch (IOException ex) {
+                fail(ex);
+            } catch (RuntimeException ex) {
+                fail(new IOException("Couldn't finish writing a file: "+ex, ex));
+            }
+        }
+
+        /**
+         * Works through whatever was queued after the writer stopped. Writes after a failure are skipped, so this
+         * mostly deletes temporary files, and hands back the permits of writes that are never going to happen so
+         * nothing waits on them.
+         */
+        private synchronized void drain(){
+            for( Task task = tasks.poll(); task != null; task = tasks.poll() ){
+                if( task != END ){
+                    runTask(task);
+                }
+            }
+        }
+
+        void enqueue(Task task){
+            tasks.add(task);
+            if( stopped ){
+                drain();
+            }
+        }
+
+        void add(Task task, int permits) throws IOException {
+            if( permits > NO_PERMITS ){
+                try {
+                    queuedBytes.acquire(permits);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the disk to catch up.");
+                }
+            }
+            enqueue(() -> {
+                try {
+                    task.run();
+                } finally {
+                    queuedBytes.release(permits);
+                }
+            });
+        }
+
+        /**
+         * Syncs every file in the batch, then renames them all into place and syncs their folders.
+         */
+        void syncBatch(){
+            if( batch.isEmpty() ){
+                return;
+            }
+
+            Set<Path> folders = new HashSet<>();
+            for( PendingFile file : batch ){
+                try {
+                    if( failure.get() == null ){
+                        file.channel.force(true);
+                        file.channel.close();
+                        file.moveIntoPlace();
+                        folders.add(file.target.toPath().toAbsolutePath().getParent());
+                    }
+                } catch (IOException ex) {
+                    fail(ex);
+                }
+                file.deleteTemp();
+            }
+            batch.clear();
+
+            for( Path folder : folders ){
+                try (FileChannel channel = FileChannel.open(folder, READ)) {
+                    channel.force(true);
+                } catch (IOException ex) {
+                    // Not every platform can open a folder to sync it; the files themselves are on disk regardless.
+                    LogManager.getLogger().debug("Couldn't sync "+folder, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * A file being written through the stage. Writes can land anywhere in it, as long as they come from one thread.
+     */
+    final class PendingFile implements FileSink {
+        private final File target;
+        private final Writer writer;
+
+        // Only touched by the writer.
+        private Path temp;
+        private FileChannel channel;
+        private Runnable onCommitted;
+
+        private long length = 0;
+
+        private PendingFile(File target, Writer writer){
+            this.target = target;
+            this.writer = writer;
+        }
+
+        File getTarget(){
+            return target;
+        }
+
+        @Override
+        public String getName(){
+            return target.getName();
+        }
+
+        @Override
+        public long length(){
+            return length;
+        }
+
+        /**
+         * Queues the bytes left in data to be written at position. They're copied, so data can be reused as soon as
+         * this returns.
+         */
+        @Override
+        public void write(ByteBuffer data, long position) throws IOException {
+            checkFailure();
+
+            long at = position;
+            while( data.hasRemaining() ){
+                int len = Math.min(data.remaining(), CHUNK_BYTES);
+                ByteBuffer copy = ByteBuffer.allocate(len);
+                int limit = data.limit();
+                data.limit(data.position()+len);
+                copy.put(data).flip();
+                data.limit(limit);
+
+                long chunkAt = at;
+                writer.add(() -> {
+                    if( failure.get() == null ){
+                        while( copy.hasRemaining() ){
+                            openChannel().write(copy, chunkAt+copy.position());
+                        }
+                    }
+                }, len);
+
+                at += len;
+            }
+            length = Math.max(length, at);
+        }
+
+        /**
+         * Renames the file into place once everything queued for it is written, and then runs onCommitted, on the
+         * writer's thread. If anything has gone wrong by then, the file is deleted instead and onCommitted isn't run.
+         */
+        void commit(Runnable onCommitted) throws IOException {
+            checkFailure();
+            this.onCommitted = onCommitted;
+
+            writer.add(() -> {
+                if( failure.get() != null ){
+                    deleteTemp();
+                    return;
+                }
+                try {
+                    openChannel();
+                    if( durable ){
+                        writer.batch.add(this);
+                        if( writer.batch.size() >= SYNC_BATCH ){
+                            writer.syncBatch();
+                        }
+                    }else{
+                        channel.close();
+                        moveIntoPlace();
+                    }
+                } catch (IOException ex) {
+                    deleteTemp();
+                    throw ex;
+                }
+            }, NO_PERMITS);
+        }
+
+        /**
+         * Gives up on the file, deleting whatever was written of it.
+         */
+        void discard(){
+            writer.enqueue(this::deleteTemp);
+        }
+
+        private FileChannel openChannel() throws IOException {
+            if( channel == null ){
+                temp = Files.createTempFile(target.getAbsoluteFile().getParentFile().toPath(), target.getName()+".", TEMP_SUFFIX);
+                channel = FileChannel.open(temp, WRITE);
+            }
+            return channel;
+        }
+
+        private void moveIntoPlace() throws IOException {
+            try {
+                Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if( onCommitted != null ){
+                onCommitted.run();
+            }
+        }
+
+        private void deleteTemp(){
+            try {
+                if( channel != null ){
+                    channel.close();
+                }
+                if( temp != null ){
+                    Files.deleteIfExists(temp);
+                }
+            } catch (IOException ex) {
+                LogManager.getLogger().warn("Couldn't delete "+temp, ex);
+            }
+        }
+    }
+}
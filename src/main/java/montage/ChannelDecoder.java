@@ -0,0 +1,256 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.IOException;
+
+/**
+ * Decodes the raw and PackBits (RLE) channel data of 8-bit RGB and grayscale layers straight into an interleaved
+ * raster, laid out the same way the ImageIO PSD plugin lays out its layers.
+ *
+ * Compressed rows are staged through a scratch buffer that each thread keeps, so decoding a layer only allocates
+ * the layer's own pixels.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+final class ChannelDecoder {
+
+    static final int COMPRESSION_RAW = 0;
+    static final int COMPRESSION_RLE = 1;
+
+    static final short CHANNEL_TRANSPARENCY = -1;
+
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[16384]);
+
+    private ChannelDecoder(){ }
+
+    /**
+     * Returns true if this decoder can handle the layer's channels; if not, the layer has to go through ImageIO.
+     */
+    static boolean canDecode(PsdFileMapping psd, PsdLayerTable layerTable, LayerRecord record){
+        if( !record.hasChannelOffsets() || layerTable.bits != 8 || record.getBounds().isEmpty() ){
+            return false;
+        }
+        if( !layerTable.mode.equals(PsdReader.RGB) && !layerTable.mode.equals(PsdReader.GRAY) ){
+            return false;
+        }
+
+        for (int c = 0; c < record.channelIds.length; c++) {
+            if( bandFor(record.channelIds[c], numColorChannels(layerTable), true) >= 0 ){
+                int compression = psd.getShort( record.channelOffsets[c] );
+                if( compression != COMPRESSION_RAW && compression != COMPRESSION_RLE ){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a layer into a new image, or returns null if the layer can't be decoded here.
+     */
+    static BufferedImage decode(PsdFileMapping psd, PsdLayerTable layerTable, LayerRecord record, ColorSpace colorSpace) throws IOException {
+        return decodeRegion(psd, layerTable, record, colorSpace, new Rectangle(0, 0, record.right-record.left, record.bottom-record.top));
+    }
+
+    /**
+     * Decodes only the given region of a layer (in the layer's own coordinates) into a new image the size of the
+     * region, or returns null if the layer can't be decoded here. Rows above the region are skipped without being
+     * expanded, and rows below it are never touched.
+     */
+    static BufferedImage decodeRegion(PsdFileMapping psd, PsdLayerTable layerTable, LayerRecord record, ColorSpace colorSpace,
+                                      Rectangle region) throws IOException {
+        if( !canDecode(psd, layerTable, record) ){
+            return null;
+        }
+
+        int width = record.right-record.left;
+        int height = record.bottom-record.top;
+        region = region.intersection(new Rectangle(0, 0, width, height));
+        if( region.isEmpty() ){
+            return null;
+        }
+
+        int numColor = numColorChannels(layerTable);
+
+        boolean hasAlpha = false;
+        for( short id : record.channelIds ){
+            hasAlpha |= id == CHANNEL_TRANSPARENCY;
+        }
+
+        int numBands = hasAlpha ? numColor+1 : numColor;
+        byte[] pixels = new byte[region.width*region.height*numBands];
+
+        for (int c = 0; c < record.channelIds.length; c++) {
+            int band = bandFor(record.channelIds[c], numColor, hasAlpha);
+            if( band >= 0 ){
+                decodeChannel(psd, record.channelOffsets[c], record.channelLengths[c], layerTable.version,
+                              width, height, region, pixels, bandOffset(band, numBands), numBands);
+            }
+        }
+
+        int[] bandOffsets = new int[numBands];
+        for (int b = 0; b < numBands; b++) {
+            bandOffsets[b] = bandOffset(b, numBands);
+        }
+
+        WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(pixels, pixels.length),
+                                                               region.width, region.height, region.width*numBands, numBands, bandOffsets, null);
+        ColorModel colorModel = new ComponentColorModel(colorSpace, hasAlpha, false,
+                                                        hasAlpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE,
+                                                        DataBuffer.TYPE_BYTE);
+
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Decodes the region of one channel into every numBands'th byte of dest, starting at destOffset.
+     */
+    static void decodeChannel(PsdFileMapping psd, long channelOffset, long channelLength, int version,
+                              int width, int height, Rectangle region, byte[] dest, int destOffset, int numBands) throws IOException {
+
+        long channelEnd = channelOffset+channelLength;
+
+        int compression = psd.getShort(channelOffset);
+        byte[] scratch = SCRATCH.get();
+
+        if( compression == COMPRESSION_RAW ){
+            if( channelEnd - (channelOffset+2) < (long)width*height ){
+                throw new IOException("Raw channel is shorter than its layer.");
+            }
+            scratch = scratchOfSize(region.width);
+
+            long rowData = channelOffset + 2 + (long)region.y*width + region.x;
+            int d = destOffset;
+            for (int y = 0; y < region.height; y++) {
+                psd.get(rowData, scratch, 0, region.width);
+                rowData += width;
+                for (int x = 0; x < region.width; x++) {
+                    dest[d] = scratch[x];
+                    d += numBands;
+                }
+            }
+        }else if( compression == COMPRESSION_RLE ){
+            // The byte counts of every row come first; PSBs use 4 bytes per count instead of 2.
+            int countSize = version == 2 ? 4 : 2;
+            long rowCounts = channelOffset+2;
+            long rowData = rowCounts + (long)height*countSize;
+
+            // Skip over the rows above the region.
+            for (int y = 0; y < region.y; y++) {
+                rowData += rowLength(psd, rowCounts, y, countSize);
+            }
+
+            int d = destOffset;
+            for (int y = region.y; y < region.y+region.height; y++) {
+                int rowLength = rowLength(psd, rowCounts, y, countSize);
+                if( rowLength < 0 || rowData + rowLength > channelEnd ){
+                    throw new IOException("RLE row runs past the end of its channel.");
+                }
+                if( scratch.length < rowLength ){
+                    scratch = scratchOfSize(rowLength);
+                }
+
+                psd.get(rowData, scratch, 0, rowLength);
+                unpackBits(scratch, rowLength, width, region.x, region.width, dest, d, numBands);
+
+                rowData += rowLength;
+                d += region.width*numBands;
+            }
+        }else{
+            throw new IOException("Unsupported channel compression: "+compression);
+        }
+    }
+
+    private static int rowLength(PsdFileMapping psd, long rowCounts, int row, int countSize){
+        return countSize == 2 ? (psd.getShort(rowCounts + row*2L) & 0xFFFF) : psd.getInt(rowCounts + row*4L);
+    }
+
+    /**
+     * Expands the columns [fromX, fromX+numX) of one PackBits row into every numBands'th byte of dest. Expansion
+     * stops as soon as the last wanted column is reached.
+     */
+    static void unpackBits(byte[] packed, int packedLength, int rowWidth, int fromX, int numX,
+                           byte[] dest, int destOffset, int numBands) throws IOException {
+        int toX = fromX+numX;
+        int p = 0;
+        int x = 0;
+
+        while( p < packedLength && x < toX ){
+            int header = packed[p++];
+
+            if( header >= 0 ){ // Copy the next header+1 bytes literally.
+                int count = header+1;
+                if( p+count > packedLength || x+count > rowWidth ){
+                    throw new IOException("PackBits literal run overflows its row.");
+                }
+                int end = Math.min(x+count, toX);
+                for (int i = Math.max(x, fromX); i < end; i++) {
+                    dest[destOffset + (i-fromX)*numBands] = packed[p + i-x];
+                }
+                p += count;
+                x += count;
+            }else if( header != -128 ){ // Repeat the next byte 1-header times.
+                int count = 1-header;
+                if( p >= packedLength || x+count > rowWidth ){
+                    throw new IOException("PackBits repeat run overflows its row.");
+                }
+                byte value = packed[p++];
+                int end = Math.min(x+count, toX);
+                for (int i = Math.max(x, fromX); i < end; i++) {
+                    dest[destOffset + (i-fromX)*numBands] = value;
+                }
+                x += count;
+            } // -128 is a no-op.
+        }
+    }
+
+    private static int numColorChannels(PsdLayerTable layerTable){
+        return layerTable.mode.equals(PsdReader.GRAY) ? 1 : 3;
+    }
+
+    /**
+     * Which band a channel lands in: color channels first, then transparency. Masks and anything else are -1.
+     */
+    private static int bandFor(short channelId, int numColor, boolean hasAlpha){
+        if( channelId >= 0 && channelId < numColor ){
+            return channelId;
+        }else if( channelId == CHANNEL_TRANSPARENCY && hasAlpha ){
+            return numColor;
+        }
+        return -1;
+    }
+
+    /**
+     * Bands are stored in reverse order (ABGR, or AG), like the ImageIO PSD plugin does.
+     */
+    private static int bandOffset(int band, int numBands){
+        return numBands-1-band;
+    }
+
+    private static byte[] scratchOfSize(int size){
+        byte[] scratch = SCRATCH.get();
+        if( scratch.length < size ){
+            scratch = new byte[Integer.highestOneBit(size) << 1];
+            SCRATCH.set(scratch);
+        }
+        return scratch;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * The composite at full size and at every halving of it down to a single tile, all in tiles. Level 0 tiles are
+ * composited from the layers; each tile of the levels above is averaged down from the four under it, so only what's
+ * asked for is ever worked out, and once the layers change only the tiles over the changed part need doing again.
+ *
+ * Tiles share one cache, so the small levels a zoomed out view needs stay around as long as they're being used.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+final class CompositePyramid {
+
+    static final int TILE_SIZE = PsdData.COMPOSITE_TILE_SIZE;
+
+    private final PsdData data;
+    private final CompositeTileCache cache;
+
+    CompositePyramid(PsdData data, CompositeTileCache cache){
+        this.data = data;
+        this.cache = cache;
+    }
+
+    /**
+     * How many levels there are, the last being the first to fit in one tile.
+     */
+    int levels(){
+        Dimension size = data.getDimensions();
+        int levels = 1;
+        while( size.width > TILE_SIZE || size.height > TILE_SIZE ){
+            size = halve(size);
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * The size of the composite at a level. Each level is half the one below, rounded up.
+     */
+    Dimension levelSize(int level){
+        Dimension size = data.getDimensions();
+        for( int l=0; l<level; l++ ){
+            size = halve(size);
+        }
+        return size;
+    }
+
+    /**
+     * Where a tile sits in its level. Tiles along the right and bottom edges are cut down to fit.
+     */
+    Rectangle tileBounds(int level, int tileX, int tileY){
+        Rectangle tile = new Rectangle(tileX*TILE_SIZE, tileY*TILE_SIZE, TILE_SIZE, TILE_SIZE);
+        return tile.intersection(new Rectangle(levelSize(level)));
+    }
+
+    BufferedImage tile(int level, int tileX, int tileY){
+        Dimension size = levelSize(level);
+        if( level < 0 || level >= levels() || tileX < 0 || tileY < 0 ||
+                tileX*TILE_SIZE >= size.width || tileY*TILE_SIZE >= size.height ){
+            throw new IllegalArgumentException("There's no tile "+tileX+", "+tileY+" at level "+level+".");
+        }
+
+        BufferedImage tile = cache.get(level, tileX, tileY);
+        if( tile != null ){
+            return tile;
+        }
+
+        // Edits change the tree and invalidate under the document's lock, so this is either before or after both.
+        long version;
+        synchronized (data) {
+            version = cache.version();
+        }
+        if( level == 0 ){
+            tile = data.readRegion(tileBounds(0, tileX, tileY));
+        }else{
+            tile = shrink(level, tileX, tileY);
+        }
+        cache.put(level, tileX, tileY, tile, version);
+        return tile;
+    }
+
+    /**
+     * Drops the tiles at every level over a changed part of the canvas.
+     */
+    void invalidate(Rectangle canvasRegion){
+        int levels = levels();
+        for( int level=0; level<levels; level++ ){
+            cache.invalidate(level, (canvasRegion.x >> level)/TILE_SIZE, (canvasRegion.y >> level)/TILE_SIZE,
+                             ((canvasRegion.x+canvasRegion.width-1) >> level)/TILE_SIZE,
+                             ((canvasRegion.y+canvasRegion.height-1) >> level)/TILE_SIZE);
+        }
+    }
+
+    /**
+     * Renders a region of the canvas at the given scale, from the smallest level that's still at least that sharp,
+     * so the cost goes with the size of the view rather than the size of the region.
+     */
+    BufferedImage render(Rectangle canvasRegion, double scale){
+        int width = Math.max(1, (int)Math.round(canvasRegion.width*scale));
+        int height = Math.max(1, (int)Math.round(canvasRegion.height*scale));
+
+        int level = 0;
+        while( level+1 < levels() && scale*(1 << (level+1)) <= 1.0 ){
+            level++;
+        }
+
+        // The part of the level under the region, whole pixels.
+        Rectangle onLevel = new Rectangle(canvasRegion.x >> level, canvasRegion.y >> level, 0, 0);
+        onLevel.add(new Point(((canvasRegion.x+canvasRegion.width-1) >> level)+1, ((canvasRegion.y+canvasRegion.height-1) >> level)+1));
+        onLevel = onLevel.intersection(new Rectangle(levelSize(level)));
+
+        BufferedImage view = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        if( onLevel.isEmpty() ){
+            return view;
+        }
+        BufferedImage levelImage = readLevel(level, onLevel);
+
+        Graphics2D g2d = view.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.setComposite(AlphaComposite.Src);
+        double levelScale = scale*(1 << level);
+        AffineTransform toView = new AffineTransform();
+        toView.translate(((double)(onLevel.x << level)-canvasRegion.x)*scale, ((double)(onLevel.y << level)-canvasRegion.y)*scale);
+        toView.scale(levelScale, levelScale);
+        g2d.drawImage(levelImage, toView, null);
+        g2d.dispose();
+
+        return view;
+    }
+
+    // Copies a region of a level out of its tiles.
+    private BufferedImage readLevel(int level, Rectangle region){
+        BufferedImage image = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+
+        for( int tileY=region.y/TILE_SIZE; tileY<=(region.y+region.height-1)/TILE_SIZE; tileY++ ){
+            for( int tileX=region.x/TILE_SIZE; tileX<=(region.x+region.width-1)/TILE_SIZE; tileX++ ){
+                Rectangle bounds = tileBounds(level, tileX, tileY);
+                Rectangle overlap = bounds.intersection(region);
+                int[] tile = ((DataBufferInt)tile(level, tileX, tileY).getRaster().getDataBuffer()).getData();
+
+                for( int y=overlap.y; y<overlap.y+overlap.height; y++ ){
+                    System.arraycopy(tile, (y-bounds.y)*bounds.width+overlap.x-bounds.x,
+                                     pixels, (y-region.y)*region.width+overlap.x-region.x, overlap.width);
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Averages the four tiles under this one down to it. Colors are weighted by alpha, so transparent pixels don't
+     * darken the ones beside them, the same way the pyramid TIFFs are made.
+     */
+    private BufferedImage shrink(int level, int tileX, int tileY){
+        Rectangle bounds = tileBounds(level, tileX, tileY);
+        BufferedImage tile = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+        Dimension below = levelSize(level-1);
+
+        for( int childY=2*tileY; childY<=2*tileY+1; childY++ ){
+            for( int childX=2*tileX; childX<=2*tileX+1; childX++ ){
+                if( childX*TILE_SIZE >= below.width || childY*TILE_SIZE >= below.height ){
+                    continue;
+                }
+                Rectangle childBounds = tileBounds(level-1, childX, childY);
+                int[] child = ((DataBufferInt)tile(level-1, childX, childY).getRaster().getDataBuffer()).getData();
+                int width = childBounds.width;
+                int height = childBounds.height;
+
+                // Tiles start on even pixels, so each 2x2 block is inside one tile; only an odd edge repeats its last
+                // row or column.
+                for( int y=0; y<(height+1)/2; y++ ){
+                    int row0 = 2*y*width;
+                    int row1 = Math.min(2*y+1, height-1)*width;
+                    int at = (childBounds.y/2+y-bounds.y)*bounds.width+childBounds.x/2-bounds.x;
+
+                    for( int x=0; x<(width+1)/2; x++ ){
+                        int x0 = 2*x;
+                        int x1 = Math.min(2*x+1, width-1);
+                        pixels[at+x] = average(child[row0+x0], child[row0+x1], child[row1+x0], child[row1+x1]);
+                    }
+                }
+            }
+        }
+        return tile;
+    }
+
+    private static int average(int a, int b, int c, int d){
+        int alphaSum = (a >>> 24)+(b >>> 24)+(c >>> 24)+(d >>> 24);
+        int alpha = (alphaSum+2)/4;
+        if( alphaSum == 0 ){
+            return 0;
+        }
+        int pixel = alpha << 24;
+        for( int shift=0; shift<24; shift+=8 ){
+            long weighted = (long)((a >> shift) & 0xFF)*(a >>> 24)+(long)((b >> shift) & 0xFF)*(b >>> 24)+
+                            (long)((c >> shift) & 0xFF)*(c >>> 24)+(long)((d >> shift) & 0xFF)*(d >>> 24);
+            pixel |= (int)((weighted+alphaSum/2)/alphaSum) << shift;
+        }
+        return pixel;
+    }
+
+    private static Dimension halve(Dimension size){
+        return new Dimension((size.width+1)/2, (size.height+1)/2);
+    }
+}
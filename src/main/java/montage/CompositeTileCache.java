@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Composited tiles, kept until they'd put the cache over its byte budget, when the ones used longest ago go first.
+ * Tiles are keyed by their level as well as their place in the grid, level 0 being full size, so smaller copies of the
+ * composite can share the budget. A tile of a higher level stands for four times as much compositing as one of the
+ * level below, so its age counts for a quarter as much when choosing what to drop; a tile on screen is still kept over
+ * an overview nobody has looked at in a long while.
+ *
+ * Tiles are worked out outside the cache, so several can be done at once. The version number keeps a tile that was
+ * being worked out when its part of the canvas changed from being cached out of date.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+final class CompositeTileCache {
+
+    private static final int BITS_PER_INDEX = 28;
+    private static final long INDEX_MASK = (1L << BITS_PER_INDEX)-1;
+
+    // The tiles of each level, the ones used longest ago first.
+    private final List<LinkedHashMap<Long, Cached>> levels = new ArrayList<>();
+    private long maxBytes;
+    private long bytes = 0;
+    private long version = 0;
+    // Counts every get and put, to tell how long ago a tile was used.
+    private long clock = 0;
+
+    CompositeTileCache(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized void setMaxBytes(long maxBytes){
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    synchronized long getMaxBytes(){
+        return maxBytes;
+    }
+
+    /**
+     * How many bytes of tiles are cached right now.
+     */
+    synchronized long bytes(){
+        return bytes;
+    }
+
+    /**
+     * Goes up every time anything is invalidated; take it before working out a tile, and hand it back to put().
+     */
+    synchronized long version(){
+        return version;
+    }
+
+    /**
+     * The cached tile, or null if it has to be worked out.
+     */
+    synchronized BufferedImage get(int level, int tileX, int tileY){
+        Cached cached = level < levels.size() ? levels.get(level).get(key(level, tileX, tileY)) : null;
+        if( cached == null ){
+            return null;
+        }
+        cached.lastUsed = ++clock;
+        return cached.tile;
+    }
+
+    /**
+     * Caches a tile that was worked out starting at the given version, unless something has been invalidated since.
+     */
+    synchronized void put(int level, int tileX, int tileY, BufferedImage tile, long startVersion){
+        if( startVersion != version ){
+            return;
+        }
+        while( levels.size() <= level ){
+            levels.add(new LinkedHashMap<>(64, 0.75f, true));
+        }
+        Cached old = levels.get(level).put(key(level, tileX, tileY), new Cached(tile, ++clock));
+        if( old != null ){
+            bytes -= bytesOf(old.tile);
+        }
+        bytes += bytesOf(tile);
+        evict();
+    }
+
+    /**
+     * Drops the tiles of one level from minX, minY to maxX, maxY, inclusive.
+     */
+    synchronized void invalidate(int level, int minX, int minY, int maxX, int maxY){
+        version++;
+        if( level >= levels.size() ){
+            return;
+        }
+        Map<Long, Cached> tiles = levels.get(level);
+
+        long span = (long)(maxX-minX+1)*(maxY-minY+1);
+        if( span <= tiles.size() ){
+            for( int y=minY; y<=maxY; y++ ){
+                for( int x=minX; x<=maxX; x++ ){
+                    Cached old = tiles.remove(key(level, x, y));
+                    if( old != null ){
+                        bytes -= bytesOf(old.tile);
+                    }
+                }
+            }
+            return;
+        }
+
+        // Fewer tiles cached than in the range, so check each of them instead.
+        for( Iterator<Map.Entry<Long, Cached>> it = tiles.entrySet().iterator(); it.hasNext(); ){
+            Map.Entry<Long, Cached> entry = it.next();
+            long key = entry.getKey();
+            int x = (int)(key & INDEX_MASK);
+            int y = (int)((key >>> BITS_PER_INDEX) & INDEX_MASK);
+            if( x >= minX && x <= maxX && y >= minY && y <= maxY ){
+                bytes -= bytesOf(entry.getValue().tile);
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear(){
+        version++;
+        levels.clear();
+        bytes = 0;
+    }
+
+    // Drops tiles until the cache is within budget. Each level keeps its own least recently used order, and of the
+    // tiles each would drop next, the one whose age, scaled down by the cost of its level, is greatest goes.
+    private void evict(){
+        while( bytes > maxBytes ){
+            Iterator<Cached> victim = null;
+            Cached victimTile = null;
+            long oldest = -1;
+            for( int level=0; level<levels.size(); level++ ){
+                Iterator<Cached> eldest = levels.get(level).values().iterator();
+                if( !eldest.hasNext() ){
+                    continue;
+                }
+                Cached cached = eldest.next();
+                long age = (clock-cached.lastUsed) >> Math.min(2*level, 62);
+                if( age > oldest ){
+                    oldest = age;
+                    victim = eldest;
+                    victimTile = cached;
+                }
+            }
+            if( victim == null ){
+                return;
+            }
+            victim.remove();
+            bytes -= bytesOf(victimTile.tile);
+        }
+    }
+
+    private static long key(int level, int tileX, int tileY){
+        return (long)level << 2*BITS_PER_INDEX | ((long)tileY & INDEX_MASK) << BITS_PER_INDEX | ((long)tileX & INDEX_MASK);
+    }
+
+    private static long bytesOf(BufferedImage tile){
+        return 4L*tile.getWidth()*tile.getHeight();
+    }
+
+    private static final class Cached {
+        final BufferedImage tile;
+        long lastUsed;
+
+        Cached(BufferedImage tile, long lastUsed){
+            this.tile = tile;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
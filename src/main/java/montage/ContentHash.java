@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import java.awt.image.*;
+
+/**
+ * A quick 64 bit hash for telling whether a layer's pixels have changed since the last time they were seen. It's
+ * good at spotting accidental changes, which is all it's for; it's no use against anyone trying to fool it.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+final class ContentHash {
+
+    private static final long PRIME_1 = 0x9E3779B97F4A7C15L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+
+    private long hash = PRIME_1;
+    private long length = 0;
+
+    void update(long value){
+        hash = Long.rotateLeft(hash ^ (value*PRIME_2), 31)*PRIME_1;
+        length++;
+    }
+
+    void update(byte[] data, int off, int len){
+        int end = off+len;
+        int i = off;
+        for( ; i+8 <= end; i+=8 ){
+            update( (data[i] & 0xFFL) | (data[i+1] & 0xFFL) << 8 | (data[i+2] & 0xFFL) << 16 | (data[i+3] & 0xFFL) << 24 |
+                    (data[i+4] & 0xFFL) << 32 | (data[i+5] & 0xFFL) << 40 | (data[i+6] & 0xFFL) << 48 | (data[i+7] & 0xFFL) << 56 );
+        }
+        long tail = 0;
+        for( int shift=0; i < end; i++, shift+=8 ){
+            tail |= (data[i] & 0xFFL) << shift;
+        }
+        update(tail ^ ((long)(end-off) << 56));
+    }
+
+    long get(){
+        long h = hash ^ length;
+        h = (h ^ (h >>> 33))*0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33))*0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Hashes an image's size and samples, however they're stored.
+     */
+    static long of(BufferedImage image){
+        ContentHash contentHash = new ContentHash();
+        Raster raster = image.getRaster();
+        contentHash.update(((long)raster.getWidth() << 32) | raster.getHeight());
+        contentHash.update(raster.getNumBands());
+
+        int[] row = null;
+        for( int y=0; y<raster.getHeight(); y++ ){
+            row = raster.getPixels(raster.getMinX(), raster.getMinY()+y, raster.getWidth(), 1, row);
+            for( int i=0; i+1 < row.length; i+=2 ){
+                contentHash.update(((long)row[i] << 32) | (row[i+1] & 0xFFFFFFFFL));
+            }
+            if( (row.length & 1) == 1 ){
+                contentHash.update(row[row.length-1]);
+            }
+        }
+        return contentHash.get();
+    }
+}
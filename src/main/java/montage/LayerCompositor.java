@@ -0,0 +1,372 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Flattens layers into a TYPE_INT_ARGB image by working on the pixels directly, instead of drawing them one after
+ * another with Graphics2D. The image is cut into tiles, and each tile is composited from just the layers that overlap
+ * it, top of the stack first, so the tiles can all be done at once on a ForkJoinPool.
+ *
+ * Each layer goes under what's already there at its opacity, the way AlphaComposite.DST_OVER does, with the same 8 bit
+ * arithmetic as Java2D's software loops, so the result is the same as drawing the layers with it. Layers whose pixels
+ * can't be read straight out of their buffers, such as gray or 16 bit ones, are converted to ARGB by Java2D first, a
+ * tile at a time, since that's what it does with them before blending too.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+final class LayerCompositor {
+
+    static final int TILE_SIZE = 256;
+
+    // Java2D's tables for multiplying and dividing 8 bit values, indexed [a<<8 | b].
+    private static final byte[] MUL8 = new byte[256*256];
+    private static final byte[] DIV8 = new byte[256*256];
+
+    static {
+        for( int a=1; a<256; a++ ){
+            int inc = a*0x010101;
+            int val = inc+(1 << 23);
+            for( int b=1; b<256; b++ ){
+                MUL8[a << 8 | b] = (byte)(val >>> 24);
+                val += inc;
+            }
+        }
+        for( int a=1; a<256; a++ ){
+            int inc = (int)(((0xFFL << 24)+a/2)/a);
+            int val = 1 << 23;
+            for( int b=0; b<a; b++ ){
+                DIV8[a << 8 | b] = (byte)(val >>> 24);
+                val += inc;
+            }
+            for( int b=a; b<256; b++ ){
+                DIV8[a << 8 | b] = (byte)0xFF;
+            }
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Composites on the pool, or on the calling thread alone if it's null.
+     */
+    LayerCompositor(ForkJoinPool pool){
+        this.pool = pool;
+    }
+
+    /**
+     * Composites the layers into dest, which sits at origin on the canvas. Whatever was in dest is replaced. Layers
+     * are listed from the top of the stack down. dest can be a subimage, to redo just part of a bigger image.
+     */
+    void composite(List<Placed> layers, BufferedImage dest, Point origin){
+        WritableRaster raster = dest.getRaster();
+        int[] pixels = ((DataBufferInt)raster.getDataBuffer()).getData();
+        int scanline = ((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+        int offset = raster.getDataBuffer().getOffset()-raster.getSampleModelTranslateY()*scanline-raster.getSampleModelTranslateX();
+        int width = dest.getWidth();
+        int height = dest.getHeight();
+
+        List<Rectangle> tiles = new ArrayList<>();
+        for( int y=0; y<height; y+=TILE_SIZE ){
+            for( int x=0; x<width; x+=TILE_SIZE ){
+                tiles.add(new Rectangle(x, y, Math.min(TILE_SIZE, width-x), Math.min(TILE_SIZE, height-y)));
+            }
+        }
+
+        if( pool == null || tiles.size() == 1 ){
+            for( Rectangle tile : tiles ){
+                compositeTile(layers, pixels, offset, scanline, origin, tile);
+            }
+            return;
+        }
+
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[tiles.size()];
+        for( int t=0; t<tasks.length; t++ ){
+            Rectangle tile = tiles.get(t);
+            tasks[t] = ForkJoinTask.adapt(() -> compositeTile(layers, pixels, offset, scanline, origin, tile));
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute(){
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    private void compositeTile(List<Placed> layers, int[] pixels, int offset, int scanline, Point origin, Rectangle tile){
+        for( int y=tile.y; y<tile.y+tile.height; y++ ){
+            Arrays.fill(pixels, offset+y*scanline+tile.x, offset+y*scanline+tile.x+tile.width, 0);
+        }
+
+        Rectangle onCanvas = new Rectangle(tile.x+origin.x, tile.y+origin.y, tile.width, tile.height);
+        int[] row = new int[tile.width];
+
+        for( Placed layer : layers ){
+            Rectangle overlap = layer.bounds.intersection(onCanvas);
+            if( overlap.isEmpty() ){
+                continue;
+            }
+
+            if( !layer.isDirect() ){
+                int[] converted = layer.convert(overlap.x-layer.bounds.x, overlap.y-layer.bounds.y, overlap.width, overlap.height);
+                for( int y=overlap.y; y<overlap.y+overlap.height; y++ ){
+                    int at = offset+(y-origin.y)*scanline+overlap.x-origin.x;
+                    blend(converted, (y-overlap.y)*overlap.width, overlap.width, pixels, at, layer.extraAlpha);
+                }
+                continue;
+            }
+
+            for( int y=overlap.y; y<overlap.y+overlap.height; y++ ){
+                boolean premultiplied = layer.readRow(overlap.x-layer.bounds.x, y-layer.bounds.y, overlap.width, row);
+                int at = offset+(y-origin.y)*scanline+overlap.x-origin.x;
+                if( premultiplied ){
+                    blendPremultiplied(row, overlap.width, pixels, at, layer.extraAlpha);
+                }else{
+                    blend(row, 0, overlap.width, pixels, at, layer.extraAlpha);
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts a row of ARGB pixels, starting at from in src, under the ones in dest, like Java2D's IntArgb to IntArgb
+     * DST_OVER mask blit.
+     */
+    private static void blend(int[] src, int from, int length, int[] dest, int at, int extraAlpha){
+        int extra = extraAlpha << 8;
+
+        for( int i=from; i<from+length; i++, at++ ){
+            int dstPix = dest[at];
+            int dstA = dstPix >>> 24;
+            if( dstA == 0xFF ){ // Nothing shows through.
+                continue;
+            }
+
+            int srcPix = src[i];
+            int srcA = MUL8[extra | srcPix >>> 24] & 0xFF;
+            int resA = MUL8[(0xFF-dstA) << 8 | srcA] & 0xFF;
+            if( resA == 0 ){
+                continue;
+            }
+
+            int resR = (srcPix >> 16) & 0xFF;
+            int resG = (srcPix >> 8) & 0xFF;
+            int resB = srcPix & 0xFF;
+            if( resA != 0xFF ){
+                resR = MUL8[resA << 8 | resR] & 0xFF;
+                resG = MUL8[resA << 8 | resG] & 0xFF;
+                resB = MUL8[resA << 8 | resB] & 0xFF;
+            }
+
+            store(dest, at, dstPix, dstA, resA, resR, resG, resB);
+        }
+    }
+
+    /**
+     * The same as blend(), for premultiplied pixels.
+     */
+    private static void blendPremultiplied(int[] src, int length, int[] dest, int at, int extraAlpha){
+        int extra = extraAlpha << 8;
+
+        for( int i=0; i<length; i++, at++ ){
+            int dstPix = dest[at];
+            int dstA = dstPix >>> 24;
+            if( dstA == 0xFF ){
+                continue;
+            }
+
+            int srcPix = src[i];
+            int srcF = 0xFF-dstA;
+            int srcA = MUL8[extra | srcPix >>> 24] & 0xFF;
+            int resA = MUL8[srcF << 8 | srcA] & 0xFF;
+            srcF = MUL8[srcF << 8 | extraAlpha] & 0xFF;
+            if( srcF == 0 ){
+                continue;
+            }
+
+            int resR = (srcPix >> 16) & 0xFF;
+            int resG = (srcPix >> 8) & 0xFF;
+            int resB = srcPix & 0xFF;
+            if( srcF != 0xFF ){
+                resR = MUL8[srcF << 8 | resR] & 0xFF;
+                resG = MUL8[srcF << 8 | resG] & 0xFF;
+                resB = MUL8[srcF << 8 | resB] & 0xFF;
+            }
+
+            store(dest, at, dstPix, dstA, resA, resR, resG, resB);
+        }
+    }
+
+    // Adds what's already in dest to the premultiplied source color, and stores it unpremultiplied.
+    private static void store(int[] dest, int at, int dstPix, int dstA, int resA, int resR, int resG, int resB){
+        resA += dstA;
+        if( dstA != 0 ){
+            int dstR = (dstPix >> 16) & 0xFF;
+            int dstG = (dstPix >> 8) & 0xFF;
+            int dstB = dstPix & 0xFF;
+            resR += MUL8[dstA << 8 | dstR] & 0xFF;
+            resG += MUL8[dstA << 8 | dstG] & 0xFF;
+            resB += MUL8[dstA << 8 | dstB] & 0xFF;
+        }
+        if( resA != 0 && resA < 0xFF ){
+            resR = DIV8[resA << 8 | resR] & 0xFF;
+            resG = DIV8[resA << 8 | resG] & 0xFF;
+            resB = DIV8[resA << 8 | resB] & 0xFF;
+        }
+        dest[at] = resA << 24 | resR << 16 | resG << 8 | resB;
+    }
+
+    /**
+     * A layer's image, where its top left corner goes on the canvas, and its opacity.
+     */
+    static final class Placed {
+        final BufferedImage image;
+        final Rectangle bounds;
+        final int extraAlpha;
+
+        // How to read rows straight out of the image's buffer, if it's a kind we know.
+        private final int[] intData;
+        private final byte[] byteData;
+        private final int[] bandOffsets;
+        private final int pixelStride;
+        private final int scanlineStride;
+        private final int offset;
+        private final boolean opaque;
+        private final boolean premultiplied;
+
+        Placed(BufferedImage image, Point at, float opacity){
+            this.image = image;
+            this.bounds = new Rectangle(at.x, at.y, image.getWidth(), image.getHeight());
+            // The same rounding AlphaComposite's loops do.
+            this.extraAlpha = (int)(opacity*255.0+0.5);
+
+            WritableRaster raster = image.getRaster();
+            DataBuffer buffer = raster.getDataBuffer();
+            SampleModel sampleModel = raster.getSampleModel();
+            int type = image.getType();
+
+            int[] ints = null;
+            byte[] bytes = null;
+            int[] offsets = null;
+            int stride = 0;
+            int scanline = 0;
+            int start = 0;
+            boolean isOpaque = false;
+
+            if( (type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_ARGB_PRE || type == BufferedImage.TYPE_INT_RGB) &&
+                    buffer.getNumBanks() == 1 ){
+                SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel)sampleModel;
+                ints = ((DataBufferInt)buffer).getData();
+                stride = 1;
+                scanline = packed.getScanlineStride();
+                start = buffer.getOffset()-raster.getSampleModelTranslateY()*scanline-raster.getSampleModelTranslateX();
+                isOpaque = type == BufferedImage.TYPE_INT_RGB;
+            }else if( isPlainSrgbBytes(image) ){
+                PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel)sampleModel;
+                bytes = ((DataBufferByte)buffer).getData();
+                offsets = interleaved.getBandOffsets();
+                stride = interleaved.getPixelStride();
+                scanline = interleaved.getScanlineStride();
+                start = buffer.getOffset()-raster.getSampleModelTranslateY()*scanline-raster.getSampleModelTranslateX()*stride;
+                isOpaque = offsets.length == 3;
+            }
+
+            intData = ints;
+            byteData = bytes;
+            bandOffsets = offsets;
+            pixelStride = stride;
+            scanlineStride = scanline;
+            offset = start;
+            opaque = isOpaque;
+            premultiplied = type == BufferedImage.TYPE_INT_ARGB_PRE;
+        }
+
+        /**
+         * True if readRow() can read the image's pixels straight out of its buffer. Other images have to be convert()ed.
+         */
+        boolean isDirect(){
+            return intData != null || byteData != null;
+        }
+
+        /**
+         * Reads length pixels of one of the image's rows as packed ARGB, and returns true if they're premultiplied.
+         * Only for images that are isDirect().
+         */
+        boolean readRow(int x, int y, int length, int[] row){
+            if( intData != null ){
+                System.arraycopy(intData, offset+y*scanlineStride+x, row, 0, length);
+                if( opaque ){
+                    for( int i=0; i<length; i++ ){
+                        row[i] |= 0xFF000000;
+                    }
+                }
+                return premultiplied;
+            }
+
+            if( byteData != null ){
+                int at = offset+y*scanlineStride+x*pixelStride;
+                int r = bandOffsets[0], g = bandOffsets[1], b = bandOffsets[2];
+                int a = opaque ? -1 : bandOffsets[3];
+                for( int i=0; i<length; i++, at+=pixelStride ){
+                    int alpha = a < 0 ? 0xFF : byteData[at+a] & 0xFF;
+                    row[i] = alpha << 24 | (byteData[at+r] & 0xFF) << 16 | (byteData[at+g] & 0xFF) << 8 | (byteData[at+b] & 0xFF);
+                }
+                return false;
+            }
+
+            throw new IllegalStateException("Rows can only be read straight out of int ARGB and 8 bit sRGB images.");
+        }
+
+        /**
+         * Converts part of the image to unpremultiplied ARGB, a row after another. Java2D does the converting, so
+         * gray and 16 bit pixels come out the same as when it blends them itself.
+         */
+        int[] convert(int x, int y, int width, int height){
+            BufferedImage argb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2d = argb.createGraphics();
+            g2d.setComposite(AlphaComposite.Src);
+            g2d.drawImage(image.getSubimage(x, y, width, height), 0, 0, null);
+            g2d.dispose();
+            return ((DataBufferInt)argb.getRaster().getDataBuffer()).getData();
+        }
+
+        // 8 bit sRGB, interleaved in one byte array, with or without alpha that isn't premultiplied.
+        private static boolean isPlainSrgbBytes(BufferedImage image){
+            ColorModel colorModel = image.getColorModel();
+            Raster raster = image.getRaster();
+
+            if( !(colorModel instanceof ComponentColorModel) || !(raster.getSampleModel() instanceof PixelInterleavedSampleModel) ||
+                    !(raster.getDataBuffer() instanceof DataBufferByte) || raster.getDataBuffer().getNumBanks() != 1 ){
+                return false;
+            }
+            if( !colorModel.getColorSpace().isCS_sRGB() || colorModel.getColorSpace().getType() != ColorSpace.TYPE_RGB ||
+                    colorModel.isAlphaPremultiplied() ){
+                return false;
+            }
+            int numBands = raster.getNumBands();
+            return (numBands == 3 && !colorModel.hasAlpha()) || (numBands == 4 && colorModel.hasAlpha());
+        }
+    }
+}
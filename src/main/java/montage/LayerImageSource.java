@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Something that can decode the pixels of a layer on demand, given the layer's image index in the PSD.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public interface LayerImageSource {
+
+    BufferedImage readLayer(int imageIndex) throws IOException;
+
+    /**
+     * Decodes only part of a layer; region is in the layer's own coordinates. Sources that can't do any better just
+     * decode the whole layer and crop it.
+     */
+    default BufferedImage readLayerRegion(int imageIndex, Rectangle region) throws IOException{
+        BufferedImage layerIm = readLayer(imageIndex);
+        Rectangle onLayer = region.intersection(new Rectangle(0, 0, layerIm.getWidth(), layerIm.getHeight()));
+
+        return layerIm.getSubimage(onLayer.x, onLayer.y, onLayer.width, onLayer.height);
+    }
+
+    /**
+     * A hash that changes whenever the layer's pixels do. Sources that can hash a layer without decoding it should.
+     */
+    default long contentHash(int imageIndex) throws IOException{
+        return ContentHash.of(readLayer(imageIndex));
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import org.apache.logging.log4j.LogManager;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+/**
+ * An on-disk cache of parsed layer tables, so that a PSD that's opened over and over doesn't have its metadata
+ * parsed every time.
+ *
+ * Each entry is stamped with the file's size, modification time and a hash of a few samples of its contents; if
+ * any of those change, the entry is thrown out. The cache is kept under a byte budget by deleting the least
+ * recently used entries.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public class LayerIndexCache {
+
+    private static final int MAGIC = 0x50534449; // "PSDI"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String EXTENSION = ".idx";
+
+    // How much of the file goes into its content hash.
+    private static final int SAMPLE_SIZE = 64*1024;
+    private static final int NUM_SAMPLES = 16;
+
+    private final File cacheFolder;
+    private final long maxBytes;
+
+    public LayerIndexCache(File cacheFolder, long maxBytes){
+        this.cacheFolder = cacheFolder;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * A cache in the user's home folder, capped at 64 MB.
+     */
+    public static LayerIndexCache getDefault(){
+        return new LayerIndexCache( Paths.get(System.getProperty("user.home"), ".psd_layer_export", "index").toFile(), 64L*1024*1024 );
+    }
+
+    /**
+     * Returns the cached layer table of the file, or null if there isn't one or the file has changed since.
+     */
+    PsdLayerTable get(File imageFile){
+        File entry = entryFor(imageFile);
+        if( !entry.isFile() ){
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))){
+            boolean stale = in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !Arrays.equals(readFingerprint(in), fingerprint(imageFile));
+
+            if( !stale ){
+                PsdLayerTable layerTable = readTable(in);
+                entry.setLastModified(System.currentTimeMillis()); // Keep track of use, for eviction.
+
+                return layerTable;
+            }
+        } catch (IOException ex) {
+            LogManager.getLogger().warn("Couldn't read the layer index of "+imageFile.getName()+": "+ex.getMessage());
+            return null;
+        }
+
+        // Only deleted once it's closed, which some platforms insist on.
+        LogManager.getLogger().debug("Layer index of "+imageFile.getName()+" is stale; discarding it.");
+        try {
+            Files.deleteIfExists(entry.toPath());
+        } catch (IOException ex) {
+            LogManager.getLogger().warn("Couldn't delete the stale layer index of "+imageFile.getName()+": "+ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Stores the layer table of the file, and evicts old entries if the cache has outgrown its budget.
+     */
+    void put(File imageFile, PsdLayerTable layerTable){
+        File entry = entryFor(imageFile);
+
+        try {
+            Files.createDirectories(cacheFolder.toPath());
+            File tempEntry = File.createTempFile("index", ".tmp", cacheFolder);
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempEntry)))){
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                for( long value : fingerprint(imageFile) ){
+                    out.writeLong(value);
+                }
+                writeTable(out, layerTable);
+            }
+            Files.move(tempEntry.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            evict();
+        } catch (IOException ex) {
+            LogManager.getLogger().warn("Couldn't write the layer index of "+imageFile.getName()+": "+ex.getMessage());
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits its budget.
+     */
+    void evict(){
+        File[] entries = cacheFolder.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if( entries == null ){
+            return;
+        }
+
+        long totalBytes = 0;
+        for( File entry : entries ){
+            totalBytes += entry.length();
+        }
+
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+
+        for (int i = 0; i < entries.length && totalBytes > maxBytes; i++) {
+            totalBytes -= entries[i].length();
+            if( !entries[i].delete() ){
+                LogManager.getLogger().warn("Couldn't evict layer index "+entries[i].getName());
+            }
+        }
+    }
+
+    private File entryFor(File imageFile){
+        String path;
+        try {
+            path = imageFile.getCanonicalPath();
+        } catch (IOException ex) {
+            path = imageFile.getAbsolutePath();
+        }
+
+        CRC32 pathHash = new CRC32();
+        pathHash.update(path.getBytes(StandardCharsets.UTF_8));
+
+        return new File(cacheFolder, imageFile.getName()+"_"+Long.toHexString(pathHash.getValue())+EXTENSION);
+    }
+
+    /**
+     * The size, modification time and a hash of evenly spaced samples of the file.
+     */
+    static long[] fingerprint(File imageFile) throws IOException {
+        long size = imageFile.length();
+
+        CRC32 contentHash = new CRC32();
+        ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+
+        try (FileChannel channel = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ)){
+            long stride = Math.max(SAMPLE_SIZE, size/NUM_SAMPLES);
+
+            for (long position = 0; position < size; position += stride) {
+                sample.clear();
+                channel.read(sample, position);
+                contentHash.update(sample.array(), 0, sample.position());
+            }
+            // Always include the tail, which is where the layer data ends.
+            sample.clear();
+            channel.read(sample, Math.max(0, size-SAMPLE_SIZE));
+            contentHash.update(sample.array(), 0, sample.position());
+        }
+
+        return new long[]{ size, imageFile.lastModified(), contentHash.getValue() };
+    }
+
+    private static long[] readFingerprint(DataInputStream in) throws IOException {
+        return new long[]{ in.readLong(), in.readLong(), in.readLong() };
+    }
+
+    private static void writeTable(DataOutputStream out, PsdLayerTable layerTable) throws IOException {
+        out.writeInt(layerTable.version);
+        out.writeInt(layerTable.width);
+        out.writeInt(layerTable.height);
+        out.writeInt(layerTable.channels);
+        out.writeInt(layerTable.bits);
+        out.writeUTF(layerTable.mode);
+        out.writeBoolean(layerTable.hasIccProfile);
+        out.writeLong(layerTable.iccProfileOffset);
+        out.writeInt(layerTable.iccProfileLength);
+
+        out.writeInt(layerTable.records.size());
+        for( LayerRecord record : layerTable.records ){
+            out.writeUTF(record.name);
+            out.writeInt(record.top);
+            out.writeInt(record.left);
+            out.writeInt(record.bottom);
+            out.writeInt(record.right);
+            out.writeInt(record.opacity);
+            out.writeInt(record.flags);
+            out.writeBoolean(record.pixelDataIrrelevant);
+            out.writeInt(record.sectionType);
+            out.writeInt(record.imageIndex);
+
+            if( record.hasChannelOffsets() ){
+                out.writeInt(record.channelIds.length);
+                for (int c = 0; c < record.channelIds.length; c++) {
+                    out.writeShort(record.channelIds[c]);
+                    out.writeLong(record.channelOffsets[c]);
+                    out.writeLong(record.channelLengths[c]);
+                }
+            }else{
+                out.writeInt(-1);
+            }
+        }
+    }
+
+    private static PsdLayerTable readTable(DataInputStream in) throws IOException {
+        PsdLayerTable layerTable = new PsdLayerTable();
+
+        layerTable.version = in.readInt();
+        layerTable.width = in.readInt();
+        layerTable.height = in.readInt();
+        layerTable.channels = in.readInt();
+        layerTable.bits = in.readInt();
+        layerTable.mode = in.readUTF();
+        layerTable.hasIccProfile = in.readBoolean();
+        layerTable.iccProfileOffset = in.readLong();
+        layerTable.iccProfileLength = in.readInt();
+
+        int numRecords = in.readInt();
+        for (int r = 0; r < numRecords; r++) {
+            LayerRecord record = new LayerRecord();
+            record.name = in.readUTF();
+            record.top = in.readInt();
+            record.left = in.readInt();
+            record.bottom = in.readInt();
+            record.right = in.readInt();
+            record.opacity = in.readInt();
+            record.flags = in.readInt();
+            record.pixelDataIrrelevant = in.readBoolean();
+            record.sectionType = in.readInt();
+            record.imageIndex = in.readInt();
+
+            int numChannels = in.readInt();
+            if( numChannels >= 0 ){
+                record.channelIds = new short[numChannels];
+                record.channelOffsets = new long[numChannels];
+                record.channelLengths = new long[numChannels];
+                for (int c = 0; c < numChannels; c++) {
+                    record.channelIds[c] = in.readShort();
+                    record.channelOffsets[c] = in.readLong();
+                    record.channelLengths[c] = in.readLong();
+                }
+            }
+            layerTable.records.add(record);
+        }
+
+        return layerTable;
+    }
+}
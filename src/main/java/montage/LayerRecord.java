@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import java.awt.*;
+
+/**
+ * One entry of a PSD's layer table: where the layer sits, how it's drawn, and where its channel data lives.
+ *
+ * Records are kept in file order, from the bottom of the layer stack to the top.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+final class LayerRecord {
+
+    // The kinds of section divider a record can be (from the 'lsct' block).
+    static final int SECTION_NONE = 0;
+    static final int SECTION_OPEN_FOLDER = 1;
+    static final int SECTION_CLOSED_FOLDER = 2;
+    static final int SECTION_DIVIDER = 3;
+
+    static final String GROUP_END_NAME = "</Layer group>";
+
+    String name = "";
+    int top;
+    int left;
+    int bottom;
+    int right;
+    int opacity = 255;
+    int flags = 0;
+    boolean pixelDataIrrelevant = false;
+    int sectionType = SECTION_NONE;
+
+    // The index of this layer's image in the ImageReader. The merged image is always 0.
+    int imageIndex;
+
+    // Only known when the record was parsed straight from the file.
+    short[] channelIds = null;
+    long[] channelOffsets = null;
+    long[] channelLengths = null;
+
+    Rectangle getBounds(){
+        return new Rectangle(left, top, right-left, bottom-top);
+    }
+
+    float getOpacity(){
+        return opacity/255.0f;
+    }
+
+    boolean hasChannelOffsets(){
+        return channelOffsets != null;
+    }
+
+    boolean isGroupEnd(){
+        return sectionType == SECTION_DIVIDER || (sectionType == SECTION_NONE && pixelDataIrrelevant && name.equals(GROUP_END_NAME));
+    }
+
+    boolean isGroupStart(){
+        if( sectionType == SECTION_OPEN_FOLDER || sectionType == SECTION_CLOSED_FOLDER ){
+            return true;
+        }
+        return sectionType == SECTION_NONE && pixelDataIrrelevant && !isGroupEnd() && getBounds().isEmpty();
+    }
+}
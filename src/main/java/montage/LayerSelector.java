@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import java.awt.*;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which layers PsdReader reads in. Layers that aren't selected are never decoded, and don't show up in the
+ * PsdData at all; the groups around them still do.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+@FunctionalInterface
+public interface LayerSelector {
+
+    String GROUP_SEPARATOR = "/";
+
+    /**
+     * @param name The layer's name.
+     * @param groupPath The names of the groups the layer is in, outermost first, separated by GROUP_SEPARATOR.
+     *                  Layers that aren't in a group have an empty path.
+     * @param bounds The layer's bounds on the canvas.
+     * @param flags The layer's flags, as stored in the PSD.
+     */
+    boolean select(String name, String groupPath, Rectangle bounds, int flags);
+
+    default LayerSelector and(LayerSelector other){
+        return (name, groupPath, bounds, flags) -> select(name, groupPath, bounds, flags) && other.select(name, groupPath, bounds, flags);
+    }
+
+    static LayerSelector all(){
+        return (name, groupPath, bounds, flags) -> true;
+    }
+
+    /**
+     * Selects layers whose whole name matches the pattern.
+     */
+    static LayerSelector nameMatches(Pattern pattern){
+        return (name, groupPath, bounds, flags) -> pattern.matcher(name).matches();
+    }
+
+    /**
+     * Selects layers inside the group at groupPath, or any of its subgroups.
+     */
+    static LayerSelector underGroup(String groupPath){
+        return (name, layerPath, bounds, flags) -> layerPath.equals(groupPath) || layerPath.startsWith(groupPath+GROUP_SEPARATOR);
+    }
+
+    /**
+     * Selects layers that overlap a region of the canvas.
+     */
+    static LayerSelector intersecting(Rectangle canvasRegion){
+        return (name, groupPath, bounds, flags) -> bounds.intersects(canvasRegion);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+
+/**
+ * An ImageInputStream over a PsdFileMapping. Each stream only keeps its own position, so many readers can share a
+ * single read-only mapping of a file.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class MappedImageInputStream extends ImageInputStreamImpl {
+
+    private final PsdFileMapping mapping;
+
+    MappedImageInputStream(PsdFileMapping mapping){
+        this.mapping = mapping;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+
+        if( streamPos >= mapping.length() ){
+            return -1;
+        }
+        return mapping.get(streamPos++) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+
+        if( len == 0 ){
+            return 0;
+        }
+
+        long remaining = mapping.length()-streamPos;
+        if( remaining <= 0 ){
+            return -1;
+        }
+
+        int numRead = (int)Math.min(len, remaining);
+        mapping.get(streamPos, b, off, numRead);
+        streamPos += numRead;
+
+        return numRead;
+    }
+
+    @Override
+    public long length() {
+        return mapping.length();
+    }
+}
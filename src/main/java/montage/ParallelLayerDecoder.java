@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import org.apache.logging.log4j.LogManager;
+
+import javax.imageio.event.IIOReadProgressListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes a set of layers on several threads. Every worker gets its own reader over the same file (and the same
+ * read-only mapping of it, when there is one), and pulls the next undecoded layer until there are none left.
+ *
+ * Since the layers already sit in their tree, the order that they're decoded in doesn't change the result.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+class ParallelLayerDecoder {
+
+    private ParallelLayerDecoder(){ }
+
+    static void decode(PsdLayer[] layers, PsdImageSource layerSource, int numThreads,
+                       IIOReadProgressListener readProgressListener) throws IOException {
+
+        int numWorkers = Math.max(1, Math.min(numThreads, layers.length));
+        ExecutorService decodePool = Executors.newFixedThreadPool(numWorkers);
+
+        AtomicInteger nextLayer = new AtomicInteger(0);
+        AtomicInteger numDecoded = new AtomicInteger(0);
+
+        List<Future<Void>> workers = new ArrayList<>();
+
+        for (int w = 0; w < numWorkers; w++) {
+            workers.add( decodePool.submit(() -> {
+                try (PsdImageSource workerSource = layerSource.copy()) {
+                    int i = nextLayer.getAndIncrement();
+
+                    while( i < layers.length ){
+                        PsdLayer layer = layers[i];
+                        layer.setLayerImage( workerSource.readLayer(layer.getImageIndex()) );
+
+                        int done = numDecoded.incrementAndGet();
+                        if( readProgressListener != null ){
+                            synchronized (readProgressListener){
+                                readProgressListener.imageProgress(null, 100.0f*done/layers.length);
+                            }
+                        }
+                        i = nextLayer.getAndIncrement();
+                    }
+                }
+                return null;
+            }) );
+        }
+
+        decodePool.shutdown();
+
+        try {
+            for( Future<Void> worker : workers ){
+                worker.get();
+            }
+        } catch (InterruptedException ex) {
+            decodePool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Layer decoding was interrupted.", ex);
+        } catch (ExecutionException ex) {
+            decodePool.shutdownNow();
+            LogManager.getLogger().error("Failed to decode layers in parallel!", ex.getCause());
+
+            if( ex.getCause() instanceof IOException ){
+                throw (IOException)ex.getCause();
+            }
+            throw new IOException("Failed to decode layers in parallel!", ex.getCause());
+        }
+    }
+}
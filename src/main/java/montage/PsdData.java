@@ -28,16 +28,19 @@ import java.awt.*;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  *
  * @author Robert F Cooper <rfcooper@sas.upenn.edu>
  */
-public class PsdData implements TreeModel{
+public class PsdData implements TreeModel, Closeable{
         
     
     PsdGroup root = new PsdGroup("root");
@@ -47,6 +50,18 @@ public class PsdData implements TreeModel{
     PsdLayer[] layers;
     BufferedImage zBuffer;
     BufferedImage flattenedImage;
+    // Whether the images above match the tree as of the last revalidate().
+    private boolean zBufferCurrent = false;
+    private boolean flattenedCurrent = false;
+    // Parts of the canvas the flattened image is out of date for, none of which overlap.
+    private final List<Rectangle> damage = new ArrayList<>();
+    private final LayerCompositor compositor = new LayerCompositor(ForkJoinPool.commonPool());
+
+    // The composite, a tile at a time, for anything that only needs part of it.
+    public static final int COMPOSITE_TILE_SIZE = 256;
+    private static final long DEFAULT_TILE_CACHE_BYTES = 256L*1024*1024;
+    private final CompositeTileCache tileCache = new CompositeTileCache(DEFAULT_TILE_CACHE_BYTES);
+    private final CompositePyramid pyramid = new CompositePyramid(this, tileCache);
     Dimension dimensions;
     boolean[] isVisible;
     
@@ -54,16 +69,18 @@ public class PsdData implements TreeModel{
     int numLayers   = 0;
     int numbits     = 8;
     ColorSpace montageCS = ColorSpace.getInstance( ColorSpace.CS_sRGB );
+
+    // The source that lazily decoded layers pull their pixels from, if there is one.
+    Closeable imageSource = null;
     
 
     final private List<TreeModelListener> montageTML = Collections.synchronizedList( new ArrayList<>() );
 
     public PsdData(String montageName, Dimension canvasSize, ColorSpace cS, int numBits){
-        flattenedImage = new BufferedImage(canvasSize.width, canvasSize.height, BufferedImage.TYPE_INT_ARGB);
         dimensions  = canvasSize;
         montageCS = cS;
         numbits     = numBits;
-        zBuffer = new BufferedImage( dimensions.width, dimensions.height, BufferedImage.TYPE_INT_ARGB );
+        // The canvas-sized images are only allocated once something draws into them; large documents may never need them.
     }
     
 
@@ -123,7 +140,10 @@ public class PsdData implements TreeModel{
         }        
     }
     
-    public void determineZBuffer(){
+    public synchronized void determineZBuffer(){
+        if( zBuffer == null ){
+            zBuffer = new BufferedImage( dimensions.width, dimensions.height, BufferedImage.TYPE_INT_ARGB );
+        }
         Graphics2D g2d = zBuffer.createGraphics();
         //clear        
         g2d.setComposite(AlphaComposite.Clear);
@@ -134,20 +154,30 @@ public class PsdData implements TreeModel{
         
         g2d.dispose();
         
-        Raster r = zBuffer.getData();
+        Raster r = zBuffer.getRaster();
         int numBands = r.getNumBands();
+        Rectangle canvas = new Rectangle(dimensions);
         
         for( int i=0;i<layers.length; i++){
-            int[] data = new int[ (layers[i].bounds.width) * (layers[i].bounds.height) * numBands];
+            // Only the part of the layer that's on the canvas can show.
+            Rectangle onCanvas = layers[i].bounds.intersection(canvas);
+            if( onCanvas.isEmpty() ){
+                continue;
+            }
+            int[] data = new int[ onCanvas.width * onCanvas.height * numBands];
 
-            r.getPixels( layers[i].bounds.x, layers[i].bounds.y, layers[i].bounds.width, layers[i].bounds.height, data);
+            r.getPixels( onCanvas.x, onCanvas.y, onCanvas.width, onCanvas.height, data);
 
             for( int j=0; j<data.length; j+=4){
+                if( data[j+3] == 0 ){ // No layer covers this pixel.
+                    continue;
+                }
                 int value = (data[j] << 16) | (data[j+1] << 8) | data[j+2];
 
                 isVisible[value] = true;
             }
         }
+        zBufferCurrent = true;
     }
     
     private int revalidateLayers(PsdGroup group, Graphics2D g2d, int count){
@@ -172,8 +202,10 @@ public class PsdData implements TreeModel{
                 int progcount = count;
 
                 SwingUtilities.invokeLater(() -> {
-                    montageActivityTracker.setProgress( progcount );
-                    montageActivityTracker.setNote("Layer "+ psdLayer.name);
+                    if( montageActivityTracker != null ){
+                        montageActivityTracker.setProgress( progcount );
+                        montageActivityTracker.setNote("Layer "+ psdLayer.name);
+                    }
                 });
             }
         }        
@@ -202,51 +234,145 @@ public class PsdData implements TreeModel{
         return numlayers;
     }
     
-    public void revalidate(){
-        numLayers = getNumLayers(root, 0);
-        layers = new PsdLayer[numLayers];
+    /**
+     * Rebuilds the layer and bounds arrays from the tree, without touching any of the layers' pixels.
+     */
+    public void reindex(){
+        layers = revalidateMontageLayers();
+        numLayers = layers.length;
         layerBounds = new Rectangle[numLayers];
         isVisible = new boolean[numLayers];
 
-        SwingUtilities.invokeLater(() -> {
-            montageActivityTracker = new ProgressMonitor(null,"Validating composite...","Nuthin'",0,numLayers);
-        });
+        for( int i=0; i<numLayers; i++){
+            layerBounds[i] = layers[i].bounds;
+        }
+    }
+
+    /**
+     * Reindexes the layers after the tree has changed. The flattened image and z-buffer are left to be rebuilt the
+     * next time they're asked for.
+     */
+    public synchronized void revalidate(){
+        reindex();
+
+        flattenedCurrent = false;
+        zBufferCurrent = false;
+        damage.clear();
+        tileCache.clear();
+    }
+
+    /**
+     * The flattened image of every layer, composited the first time it's asked for and kept until the tree changes or
+     * it's released.
+     */
+    public synchronized BufferedImage getFlattenedImage(){
+        if( !flattenedCurrent ){
+            if( !GraphicsEnvironment.isHeadless() ){
+                SwingUtilities.invokeLater(() -> {
+                    montageActivityTracker = new ProgressMonitor(null,"Validating composite...","Nuthin'",0,numLayers);
+                });
+            }
+
+            redrawMergedImage();
+            flattenedCurrent = true;
+            damage.clear();
+        }else if( !damage.isEmpty() ){
+            for( Rectangle region : damage ){
+                compositor.composite(placeLayers(region), flattenedImage.getSubimage(region.x, region.y, region.width, region.height),
+                                     region.getLocation());
+            }
+            damage.clear();
+        }
+        return flattenedImage;
+    }
+
+    /**
+     * Marks a part of the canvas as changed, so it's composited again the next time the flattened image is asked
+     * for. Just that part is redone, not the whole canvas.
+     */
+    public synchronized void invalidateRegion(Rectangle canvasRegion){
+        zBufferCurrent = false;
+
+        Rectangle region = canvasRegion.intersection(new Rectangle(dimensions));
+        if( region.isEmpty() ){
+            return;
+        }
+        pyramid.invalidate(region);
+
+        if( !flattenedCurrent ){
+            return;
+        }
+        // Fold in anything it overlaps, so no part of the canvas gets composited twice.
+        boolean merged = true;
+        while( merged ){
+            merged = false;
+            for( int i=0; i<damage.size(); i++ ){
+                if( damage.get(i).intersects(region) ){
+                    region = region.union(damage.remove(i));
+                    merged = true;
+                    break;
+                }
+            }
+        }
+        damage.add(region);
+    }
+
+    /**
+     * Lets go of the flattened image; it's composited again if it's asked for later.
+     */
+    public synchronized void releaseFlattenedImage(){
+        flattenedImage = null;
+        flattenedCurrent = false;
+    }
 
-        redrawMergedImage();
+    /**
+     * The z-buffer, where each pixel holds the index of the top layer covering it, worked out the first time it's
+     * asked for.
+     */
+    public synchronized BufferedImage getZBuffer(){
+        if( !zBufferCurrent ){
+            determineZBuffer();
+        }
+        return zBuffer;
+    }
+
+    /**
+     * Lets go of the z-buffer; it's worked out again if it's asked for later.
+     */
+    public synchronized void releaseZBuffer(){
+        zBuffer = null;
+        zBufferCurrent = false;
     }
     
     private void redrawMergedImage(){
-        
-        Graphics2D g2d = flattenedImage.createGraphics();
-        //clear        
-        g2d.setComposite(AlphaComposite.Clear);
-        g2d.fillRect(0,0,dimensions.width,dimensions.height);
+        if( flattenedImage == null ){
+            flattenedImage = new BufferedImage(dimensions.width, dimensions.height, BufferedImage.TYPE_INT_ARGB);
+        }
 
-        //reset composite
-        g2d.setComposite( AlphaComposite.DstOver );
-        
-        drawAncestorLayers(root, g2d, 0 );
-        g2d.setComposite(AlphaComposite.Src);
-        
-        g2d.dispose();
+        // Layers are decoded one at a time here, then composited a tile per thread.
+        List<LayerCompositor.Placed> placed = new ArrayList<>();
+        drawAncestorLayers(root, placed, 0 );
+
+        compositor.composite(placed, flattenedImage, new Point(0, 0));
     }
     
-    private int drawAncestorLayers(PsdGroup group, Graphics2D g2d, int count){
+    private int drawAncestorLayers(PsdGroup group, List<LayerCompositor.Placed> placed, int count){
         
         Enumeration groupEnum = group.children();
 
         while ( groupEnum.hasMoreElements() ){
             PsdTreeNode tN = (PsdTreeNode)groupEnum.nextElement();
             if( !tN.isLeaf() || tN instanceof PsdGroup){ // @TODO: Remove the instanceofs from these recursive methods.
-                count = drawAncestorLayers((PsdGroup)tN, g2d, count);
+                count = drawAncestorLayers((PsdGroup)tN, placed, count);
             }else{
                 
                 PsdLayer psdLayer = ((PsdLayerNode)tN).layer;
                 Rectangle bounds = psdLayer.bounds;
-                    
-                g2d.setComposite( AlphaComposite.getInstance( AlphaComposite.DST_OVER, psdLayer.opacity) );
-                
-                g2d.drawImage( psdLayer.getLayerImage(), bounds.x, bounds.y, null);
+
+                BufferedImage layerImage = psdLayer.getLayerImage();
+                if( layerImage != null ){
+                    placed.add(new LayerCompositor.Placed(layerImage, bounds.getLocation(), psdLayer.opacity));
+                }
                 
                 layers[count] = psdLayer;
                 layerBounds[count] = bounds;
@@ -255,8 +381,10 @@ public class PsdData implements TreeModel{
                 int progcount = count;
                 
                 SwingUtilities.invokeLater(() -> {
-                    montageActivityTracker.setProgress( progcount );
-                    montageActivityTracker.setNote("Layer "+ psdLayer.name);
+                    if( montageActivityTracker != null ){
+                        montageActivityTracker.setProgress( progcount );
+                        montageActivityTracker.setNote("Layer "+ psdLayer.name);
+                    }
                 });
             }
         }        
@@ -267,6 +395,113 @@ public class PsdData implements TreeModel{
     public PsdLayer[] getMontageLayers(){
         return layers;
     }
+
+    /**
+     * Returns the layers that overlap a region of the canvas, from the top of the stack down.
+     */
+    public List<PsdLayer> getLayersIntersecting(Rectangle canvasRegion){
+        List<PsdLayer> intersecting = new ArrayList<>();
+
+        for( PsdLayer layer : layers ){
+            if( layer.bounds.intersects(canvasRegion) ){
+                intersecting.add(layer);
+            }
+        }
+        return intersecting;
+    }
+
+    /**
+     * Composites just one region of the canvas, decoding only the parts of the layers that fall inside of it. The
+     * cost depends on the size of the region, not the size of the document.
+     */
+    public BufferedImage readRegion(Rectangle canvasRegion){
+        BufferedImage regionImage = new BufferedImage(canvasRegion.width, canvasRegion.height, BufferedImage.TYPE_INT_ARGB);
+
+        compositor.composite(placeLayers(canvasRegion), regionImage, canvasRegion.getLocation());
+
+        return regionImage;
+    }
+    
+    public int getTileColumns(){
+        return (dimensions.width+COMPOSITE_TILE_SIZE-1)/COMPOSITE_TILE_SIZE;
+    }
+
+    public int getTileRows(){
+        return (dimensions.height+COMPOSITE_TILE_SIZE-1)/COMPOSITE_TILE_SIZE;
+    }
+
+    /**
+     * Where a tile of the composite sits on the canvas. Tiles along the right and bottom edges are cut down to fit.
+     */
+    public Rectangle getTileBounds(int tileX, int tileY){
+        return pyramid.tileBounds(0, tileX, tileY);
+    }
+
+    /**
+     * One tile of the composite, composited the first time it's asked for and cached until the layers under it
+     * change, or it's pushed out by others. The tile is shared, so don't draw on it. Safe to call from several threads
+     * at once.
+     */
+    public BufferedImage getCompositeTile(int tileX, int tileY){
+        return pyramid.tile(0, tileX, tileY);
+    }
+
+    /**
+     * How many levels the composite's pyramid has. Level 0 is full size, and each one after is half the size of the
+     * one before, down to the first that fits in a single tile.
+     */
+    public int getPyramidLevels(){
+        return pyramid.levels();
+    }
+
+    public Dimension getPyramidLevelSize(int level){
+        return pyramid.levelSize(level);
+    }
+
+    /**
+     * A tile of one level of the pyramid, in that level's pixels. Tiles above level 0 are averaged down from the four
+     * below them, and are cached and invalidated along with the rest.
+     */
+    public BufferedImage getPyramidTile(int level, int tileX, int tileY){
+        return pyramid.tile(level, tileX, tileY);
+    }
+
+    /**
+     * Renders a region of the canvas scaled by scale, from the nearest level of the pyramid at least as sharp. The
+     * cost depends on the size of the result, not of the region, so zoomed out views of huge documents stay quick.
+     */
+    public BufferedImage renderRegion(Rectangle canvasRegion, double scale){
+        if( scale <= 0 || canvasRegion.isEmpty() ){
+            throw new IllegalArgumentException("Can't render "+canvasRegion+" at a scale of "+scale+".");
+        }
+        return pyramid.render(canvasRegion, scale);
+    }
+
+    /**
+     * How many bytes of composited tiles are kept around; the ones used longest ago are dropped to stay under it.
+     */
+    public void setTileCacheBytes(long maxBytes){
+        tileCache.setMaxBytes(maxBytes);
+    }
+
+    public long getTileCacheBytes(){
+        return tileCache.getMaxBytes();
+    }
+
+    // The parts of the layers that fall inside of a region of the canvas, ready to composite.
+    private List<LayerCompositor.Placed> placeLayers(Rectangle canvasRegion){
+        List<LayerCompositor.Placed> placed = new ArrayList<>();
+
+        for( PsdLayer psdLayer : getLayersIntersecting(canvasRegion) ){
+            BufferedImage layerRegion = psdLayer.getLayerRegion(canvasRegion);
+
+            if( layerRegion != null ){
+                Rectangle onCanvas = psdLayer.bounds.intersection(canvasRegion);
+                placed.add(new LayerCompositor.Placed(layerRegion, onCanvas.getLocation(), psdLayer.opacity));
+            }
+        }
+        return placed;
+    }
     
     public PsdLayer[] revalidateMontageLayers(){
         ArrayList<PsdLayer> layerBounds = revalidateMontageLayers(root, new ArrayList<>());
@@ -329,6 +564,21 @@ public class PsdData implements TreeModel{
     }    
 
 
+    void setImageSource(Closeable source){
+        imageSource = source;
+    }
+
+    /**
+     * Releases the file held open by any lazily decoded layers. They can still be decoded afterward; the file will
+     * just be reopened to do it.
+     */
+    @Override
+    public void close() throws IOException {
+        if( imageSource != null ){
+            imageSource.close();
+        }
+    }
+
     public ColorSpace getColorSpace(){
         return montageCS;
     }
@@ -429,7 +679,11 @@ public class PsdData implements TreeModel{
     public void insertNodeInto(MutableTreeNode newChild,
                                MutableTreeNode parent, int index){
         
-        parent.insert(newChild, index);
+        synchronized (this) {
+            parent.insert(newChild, index);
+            reindex();
+            invalidateLayersUnder((PsdTreeNode)newChild);
+        }
         Object[] newChildren = new Object[1];
         newChildren[0] = parent.getChildAt(index);
 
@@ -448,12 +702,48 @@ public class PsdData implements TreeModel{
             throw new IllegalArgumentException("node does not have a parent.");
         
         int index = parent.getIndex(node);
-        parent.remove(index);
+        synchronized (this) {
+            parent.remove(index);
+            reindex();
+            invalidateLayersUnder((PsdTreeNode)node);
+        }
         
         for(TreeModelListener TML : montageTML){
             TML.treeNodesRemoved( new TreeModelEvent(this, getPathToRoot(node), new int[]{index}, new Object[]{node} ) );
         }
     }
+
+    /**
+     * Moves a layer or group to a new position among its siblings. Only the part of the canvas it covers has to be
+     * composited again.
+     */
+    public void changeNodeZPosition(MutableTreeNode node, int layerZ){
+        PsdGroup parent = (PsdGroup)node.getParent();
+
+        if(parent == null)
+            throw new IllegalArgumentException("node does not have a parent.");
+
+        synchronized (this) {
+            parent.changeNodeZPosition((PsdTreeNode)node, layerZ);
+            reindex();
+            invalidateLayersUnder((PsdTreeNode)node);
+        }
+
+        for(TreeModelListener TML : montageTML){
+            TML.treeStructureChanged( new TreeModelEvent(this, getPathToRoot(parent)) );
+        }
+    }
+
+    // Everything a layer or group covers has to be composited again once it's added, removed or moved.
+    private void invalidateLayersUnder(PsdTreeNode node){
+        if( node instanceof PsdLayerNode ){
+            invalidateRegion(((PsdLayerNode)node).layer.bounds);
+        }else if( node instanceof PsdGroup ){
+            for( Rectangle bounds : revalidateLayerBounds((PsdGroup)node, new ArrayList<>()) ){
+                invalidateRegion(bounds);
+            }
+        }
+    }
     
     @Override
     public void removeTreeModelListener(TreeModelListener l) {
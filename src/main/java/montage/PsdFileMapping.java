@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only mapping of a whole PSD or PSB, no matter how large. The file is mapped as a series of overlapping
+ * windows, so anything up to OVERLAP bytes long can be read out of a single window.
+ *
+ * Reads only use absolute positions, so one mapping can be shared by any number of threads.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+final class PsdFileMapping {
+
+    static final long WINDOW_SIZE = 1L << 30;
+    static final int OVERLAP = 1 << 24;
+
+    private final long size;
+    private final MappedByteBuffer[] windows;
+
+    PsdFileMapping(File imageFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ)){
+            size = channel.size();
+
+            int numWindows = (int)Math.max(1, (size + WINDOW_SIZE - 1) / WINDOW_SIZE);
+            windows = new MappedByteBuffer[numWindows];
+
+            // The mappings stay valid after the channel is closed.
+            for (int w = 0; w < numWindows; w++) {
+                long start = w*WINDOW_SIZE;
+                windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size-start, WINDOW_SIZE+OVERLAP));
+            }
+        }
+    }
+
+    long length(){
+        return size;
+    }
+
+    /**
+     * Returns the window that holds position, as long as no more than OVERLAP bytes are read from it.
+     */
+    MappedByteBuffer windowAt(long position){
+        return windows[(int)(position / WINDOW_SIZE)];
+    }
+
+    /**
+     * Returns where position falls within windowAt(position).
+     */
+    static int offsetInWindow(long position){
+        return (int)(position % WINDOW_SIZE);
+    }
+
+    byte get(long position){
+        return windowAt(position).get(offsetInWindow(position));
+    }
+
+    short getShort(long position){
+        return windowAt(position).getShort(offsetInWindow(position));
+    }
+
+    int getInt(long position){
+        return windowAt(position).getInt(offsetInWindow(position));
+    }
+
+    /**
+     * Copies len bytes starting at position into dest, without disturbing anyone else's use of the mapping.
+     */
+    void get(long position, byte[] dest, int destOffset, int len) throws IOException {
+        if( position+len > size ){
+            throw new EOFException("Read past the end of the file.");
+        }
+
+        int copied = 0;
+        while( copied < len ){
+            long at = position+copied;
+            // A duplicate has its own position, so other threads reading the same window aren't disturbed.
+            ByteBuffer window = windowAt(at).duplicate();
+            int offset = offsetInWindow(at);
+            int count = Math.min(len-copied, window.limit()-offset);
+
+            window.position(offset);
+            window.get(dest, destOffset+copied, count);
+            copied += count;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import org.apache.logging.log4j.LogManager;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * A LayerImageSource that keeps a PSD ImageReader open on a file for as long as it is needed.
+ *
+ * If the source is closed, the next read will simply reopen the file, so layers can always be decoded later on.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public class PsdImageSource implements LayerImageSource, Closeable {
+
+    private final File imageFile;
+    private ImageInputStream input = null;
+    private ImageReader psdReader = null;
+
+    // If the file isn't color managed, this is the model that we'll reinterpret the decoded rasters with.
+    private ColorModel colorModel = null;
+    // The same, without alpha, for layers that have no transparency channel.
+    private ColorModel opaqueColorModel = null;
+
+    // A read-only mapping of the file, shared with any copies of this source.
+    private PsdFileMapping mappedFile = null;
+
+    // If we know where each layer's channels are, we can decode them ourselves instead of going through ImageIO.
+    private PsdLayerTable layerTable = null;
+    private ColorSpace layerColorSpace = null;
+
+    public PsdImageSource(File imageFile){
+        this.imageFile = imageFile;
+    }
+
+    /**
+     * Creates an independent source over the same file, with its own reader, that shares this one's mapping and
+     * color model.
+     */
+    PsdImageSource copy(){
+        PsdImageSource copy = new PsdImageSource(imageFile);
+        copy.colorModel = colorModel;
+        copy.opaqueColorModel = opaqueColorModel;
+        copy.mappedFile = mappedFile;
+        copy.layerTable = layerTable;
+        copy.layerColorSpace = layerColorSpace;
+        return copy;
+    }
+
+    /**
+     * Maps the file into memory, so that this source and any of its copies read from the mapping instead of
+     * opening their own streams.
+     */
+    synchronized void mapFile() throws IOException{
+        if( mappedFile == null ){
+            mappedFile = new PsdFileMapping(imageFile);
+        }
+    }
+
+    public File getFile(){
+        return imageFile;
+    }
+
+    void setColorModel(ColorModel colorModel){
+        this.colorModel = colorModel;
+        this.opaqueColorModel = colorModel == null || !colorModel.hasAlpha() ? colorModel :
+                new ComponentColorModel(colorModel.getColorSpace(), false, false, Transparency.OPAQUE, colorModel.getTransferType());
+    }
+
+    /**
+     * Lets this source decode layers with the ChannelDecoder, using the channel offsets in the table. Layers the
+     * decoder can't handle, or tables without offsets, still go through ImageIO.
+     */
+    synchronized void setLayerTable(PsdLayerTable table) throws IOException{
+        layerTable = table;
+        if( table != null && table.records.stream().anyMatch(LayerRecord::hasChannelOffsets) ){
+            mapFile();
+            layerColorSpace = createColorSpace(table);
+        }
+    }
+
+    private ColorSpace createColorSpace(PsdLayerTable table){
+        if( table.hasIccProfile && table.iccProfileOffset >= 0 && mappedFile != null ){
+            try {
+                byte[] profile = new byte[table.iccProfileLength];
+                mappedFile.get(table.iccProfileOffset, profile, 0, profile.length);
+
+                return new ICC_ColorSpace(ICC_Profile.getInstance(profile));
+            } catch (IOException | IllegalArgumentException ex) {
+                LogManager.getLogger().warn("The ICC profile in "+imageFile.getName()+" couldn't be read; assuming the default color space.");
+            }
+        }
+        return ColorSpace.getInstance( table.mode.equals(PsdReader.GRAY) ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB );
+    }
+
+    /**
+     * Returns the retained reader, opening the file if it isn't already.
+     */
+    synchronized ImageReader getReader() throws IOException{
+        if( psdReader == null ){
+            if( mappedFile != null ){
+                input = new MappedImageInputStream(mappedFile);
+            }else{
+                input = ImageIO.createImageInputStream(imageFile);
+            }
+
+            Iterator<ImageReader> readerList = ImageIO.getImageReaders(input);
+
+            if( !readerList.hasNext() ){
+                input.close();
+                input = null;
+                LogManager.getLogger().error("Failed to load PSD: "+imageFile.getName()+"! No PSD reader detected.");
+                throw new IOException("Failed to load PSD: "+imageFile.getName()+"! No PSD reader detected.");
+            }
+
+            psdReader = readerList.next();
+            psdReader.setInput(input);
+        }
+        return psdReader;
+    }
+
+    /**
+     * Decodes a layer. Layers the ChannelDecoder can handle are decoded straight from the mapping, which never
+     * changes, so several threads can do that at once; only the ImageIO fallback has to take turns with the reader.
+     */
+    @Override
+    public BufferedImage readLayer(int imageIndex) throws IOException {
+        BufferedImage layerIm = null;
+
+        Decoding decoding = decoding();
+        if( decoding != null ){
+            layerIm = ChannelDecoder.decode(decoding.mapping, decoding.table, decoding.table.getRecord(imageIndex), decoding.colorSpace);
+        }
+        if( layerIm == null ){
+            synchronized (this) {
+                layerIm = getReader().read(imageIndex);
+            }
+        }
+        return reinterpret(layerIm);
+    }
+
+    @Override
+    public BufferedImage readLayerRegion(int imageIndex, Rectangle region) throws IOException {
+        BufferedImage layerIm = null;
+
+        Decoding decoding = decoding();
+        if( decoding != null ){
+            layerIm = ChannelDecoder.decodeRegion(decoding.mapping, decoding.table, decoding.table.getRecord(imageIndex),
+                                                  decoding.colorSpace, region);
+        }
+        if( layerIm == null ){
+            synchronized (this) {
+                ImageReader reader = getReader();
+                Rectangle onLayer = region.intersection(new Rectangle(0, 0, reader.getWidth(imageIndex), reader.getHeight(imageIndex)));
+
+                ImageReadParam readParam = reader.getDefaultReadParam();
+                readParam.setSourceRegion(onLayer);
+                layerIm = reader.read(imageIndex, readParam);
+            }
+        }
+        return reinterpret(layerIm);
+    }
+
+    // What the ChannelDecoder needs, as of now, or null if layers have to go through ImageIO.
+    private synchronized Decoding decoding(){
+        return layerColorSpace == null ? null : new Decoding(mappedFile, layerTable, layerColorSpace);
+    }
+
+    private static final class Decoding {
+        final PsdFileMapping mapping;
+        final PsdLayerTable table;
+        final ColorSpace colorSpace;
+
+        Decoding(PsdFileMapping mapping, PsdLayerTable table, ColorSpace colorSpace){
+            this.mapping = mapping;
+            this.table = table;
+            this.colorSpace = colorSpace;
+        }
+    }
+
+    /**
+     * Hashes the layer's channels as they're stored in the file, so the layer doesn't have to be decoded. Stored
+     * channels always decode to the same pixels, though the same pixels saved again could be stored differently.
+     */
+    @Override
+    public synchronized long contentHash(int imageIndex) throws IOException {
+        LayerRecord record = layerTable != null ? layerTable.getRecord(imageIndex) : null;
+        if( mappedFile == null || record == null || !record.hasChannelOffsets() ){
+            return LayerImageSource.super.contentHash(imageIndex);
+        }
+
+        ContentHash contentHash = new ContentHash();
+        Rectangle bounds = record.getBounds();
+        contentHash.update(((long)bounds.width << 32) | bounds.height);
+
+        byte[] buffer = new byte[64*1024];
+        for( int c=0; c<record.channelIds.length; c++ ){
+            contentHash.update(record.channelIds[c]);
+            contentHash.update(record.channelLengths[c]);
+
+            for( long done=0; done<record.channelLengths[c]; ){
+                int len = (int)Math.min(buffer.length, record.channelLengths[c]-done);
+                mappedFile.get(record.channelOffsets[c]+done, buffer, 0, len);
+                contentHash.update(buffer, 0, len);
+                done += len;
+            }
+        }
+        return contentHash.get();
+    }
+
+    private BufferedImage reinterpret(BufferedImage layerIm){
+        if( colorModel == null ){
+            return layerIm;
+        }
+
+        int numBands = layerIm.getRaster().getNumBands();
+        ColorModel model = numBands == colorModel.getNumComponents() ? colorModel : opaqueColorModel;
+        if( numBands != model.getNumComponents() ){
+            LogManager.getLogger().warn("A layer of "+imageFile.getName()+" has "+numBands+" bands; leaving its colors as they were decoded.");
+            return layerIm;
+        }
+        return new BufferedImage(model, layerIm.getRaster(), model.isAlphaPremultiplied(), null);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if( psdReader != null ){
+            psdReader.dispose();
+            psdReader = null;
+        }
+        if( input != null ){
+            input.close();
+            input = null;
+        }
+    }
+}
@@ -15,12 +15,16 @@
  */
 package montage;
 
+import org.apache.logging.log4j.LogManager;
+
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Objects;
 
 /**
@@ -38,6 +42,10 @@ public class PsdLayer implements Shape {
     private BufferedImage image;
     private Image thumbnail;
     private final int THUMBSIZE = 48;
+
+    // Where the contents come from, if they are decoded on demand.
+    private final LayerImageSource source;
+    private final int imageIndex;
     
     public PsdLayer(BufferedImage layerImage, String layerName, Rectangle layerBounds ){
         this(layerImage, layerName, layerBounds, 255);
@@ -45,24 +53,117 @@ public class PsdLayer implements Shape {
     
     public PsdLayer(BufferedImage layerImage, String layerName, Rectangle layerBounds, float opacity ){
         image = layerImage;
+        source = null;
+        imageIndex = -1;
         
-        thumbnail = new BufferedImage( THUMBSIZE, THUMBSIZE, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2d = (Graphics2D)thumbnail.getGraphics();
-        g2d.drawImage(image, 0, 0, THUMBSIZE, THUMBSIZE, null);
-        g2d.dispose();
-        
+        name = layerName;
+        bounds = layerBounds;
+        this.opacity = opacity;
+    }
+
+    /**
+     * Creates a layer whose pixels aren't decoded until the first call to getLayerImage().
+     */
+    public PsdLayer(LayerImageSource layerSource, int imageIndex, String layerName, Rectangle layerBounds, float opacity ){
+        image = null;
+        source = layerSource;
+        this.imageIndex = imageIndex;
+
         name = layerName;
         bounds = layerBounds;
         this.opacity = opacity;
     }
     
-    public Image getThumbnail(){
+    public synchronized Image getThumbnail(){
+        if( thumbnail == null ){
+            thumbnail = new BufferedImage( THUMBSIZE, THUMBSIZE, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2d = (Graphics2D)thumbnail.getGraphics();
+            g2d.drawImage(getLayerImage(), 0, 0, THUMBSIZE, THUMBSIZE, null);
+            g2d.dispose();
+        }
         return thumbnail;
     }
 
-    public BufferedImage getLayerImage(){
+    public synchronized BufferedImage getLayerImage(){
+        if( image == null && source != null ){
+            try {
+                image = source.readLayer(imageIndex);
+            } catch (IOException ex) {
+                LogManager.getLogger().error("Failed to decode layer "+name+"!", ex);
+                throw new UncheckedIOException("Failed to decode layer "+name+"!", ex);
+            }
+        }
         return image;
     }
+
+    /**
+     * Returns the part of this layer that falls within a region of the canvas, or null if none of it does. If the
+     * layer's pixels aren't in memory, only that part of the layer is decoded, and it isn't kept.
+     */
+    public BufferedImage getLayerRegion(Rectangle canvasRegion){
+        Rectangle onCanvas = bounds.intersection(canvasRegion);
+        if( onCanvas.isEmpty() ){
+            return null;
+        }
+        Rectangle onLayer = new Rectangle(onCanvas.x-bounds.x, onCanvas.y-bounds.y, onCanvas.width, onCanvas.height);
+
+        synchronized (this){
+            if( image != null || source == null ){
+                onLayer = onLayer.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+                return onLayer.isEmpty() ? null : image.getSubimage(onLayer.x, onLayer.y, onLayer.width, onLayer.height);
+            }
+        }
+
+        try {
+            return source.readLayerRegion(imageIndex, onLayer);
+        } catch (IOException ex) {
+            LogManager.getLogger().error("Failed to decode part of layer "+name+"!", ex);
+            throw new UncheckedIOException("Failed to decode part of layer "+name+"!", ex);
+        }
+    }
+
+    synchronized void setLayerImage(BufferedImage layerImage){
+        image = layerImage;
+    }
+
+    /**
+     * Returns true if the layer's pixels are currently held in memory.
+     */
+    public synchronized boolean isLayerImageLoaded(){
+        return image != null;
+    }
+
+    /**
+     * Drops the decoded pixels of a lazily decoded layer; they'll be decoded again if they're asked for.
+     * Layers that were handed their image directly keep it.
+     */
+    public synchronized void releaseLayerImage(){
+        if( source != null ){
+            image = null;
+        }
+    }
+
+    /**
+     * A hash of the layer's pixels, for telling whether they've changed since an earlier read. Lazily decoded layers
+     * are hashed without decoding them where the file allows it.
+     */
+    public long getContentHash(){
+        synchronized (this){
+            if( source == null ){
+                return ContentHash.of(image);
+            }
+        }
+        try {
+            return source.contentHash(imageIndex);
+        } catch (IOException ex) {
+            LogManager.getLogger().error("Failed to hash layer "+name+"!", ex);
+            throw new UncheckedIOException("Failed to hash layer "+name+"!", ex);
+        }
+    }
+
+    public int getImageIndex(){
+        return imageIndex;
+    }
     
     public double getLayerOpacity(){
         return opacity;
@@ -141,7 +242,11 @@ public class PsdLayer implements Shape {
     public int hashCode() {
         int hash = 7;
         hash = 23 * hash + Objects.hashCode(this.bounds);        
-        hash = 23 * hash + Objects.hashCode(this.image);
+        if( source != null ){ // Lazily decoded layers come and go, so use their index instead.
+            hash = 23 * hash + imageIndex;
+        }else{
+            hash = 23 * hash + Objects.hashCode(this.image);
+        }
         return hash;
     }
 
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything PsdReader needs to know about a PSD before it decodes any pixels: the canvas, its color mode, and the
+ * layer records.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+final class PsdLayerTable {
+
+    int version = 1;
+    int width;
+    int height;
+    int channels;
+    int bits;
+    String mode = "";
+    boolean hasIccProfile = false;
+
+    // Where the embedded ICC profile is in the file, when the table was parsed straight from it.
+    long iccProfileOffset = -1;
+    int iccProfileLength = 0;
+
+    final List<LayerRecord> records = new ArrayList<>();
+
+    /**
+     * Returns the record of the layer that the ImageReader knows as imageIndex.
+     */
+    LayerRecord getRecord(int imageIndex){
+        return records.get(imageIndex-1);
+    }
+
+    Dimension getCanvasSize(){
+        return new Dimension(width, height);
+    }
+}
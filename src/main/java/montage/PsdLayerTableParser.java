@@ -0,0 +1,230 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the header, image resources and layer records of a PSD straight out of a mapping of the file, without
+ * going through ImageIO's metadata tree.
+ *
+ * Only the parts PsdReader needs are kept; the channel data itself is skipped over, and only its offsets are noted.
+ * Both PSDs and Large Document Format files (PSBs) are understood. Only the start of the file is mapped, since
+ * everything up to the channel data is small even in the largest documents.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+final class PsdLayerTableParser {
+
+    private static final int SIGNATURE_8BPS = 0x38425053;
+    private static final int SIGNATURE_8BIM = 0x3842494D;
+    private static final int SIGNATURE_8B64 = 0x38423634;
+
+    private static final int KEY_LUNI = 0x6C756E69;
+    private static final int KEY_LSCT = 0x6C736374;
+
+    // In PSBs, these additional layer info blocks have 8 byte lengths instead of 4.
+    private static final Set<String> LONG_KEYS = new HashSet<>(Arrays.asList(
+            "LMsk", "Lr16", "Lr32", "Layr", "Mt16", "Mt32", "Mtrn", "Alph", "FMsk", "lnk2", "FEid", "FXid", "PxSD"));
+
+    private static final int RESOURCE_ICC_PROFILE = 1039;
+
+    private static final String[] MODES = {"bitmap", PsdReader.GRAY, "indexed", PsdReader.RGB, PsdReader.CMYK,
+                                           "", "", "multichannel", "duotone", "lab"};
+
+    private PsdLayerTableParser(){ }
+
+    static PsdLayerTable parse(File imageFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ)){
+            return parse( channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE)) );
+        }
+    }
+
+    static PsdLayerTable parse(ByteBuffer psd) throws IOException {
+        try {
+            return parseTable(psd.duplicate());
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            throw new IOException("PSD is truncated or malformed.", ex);
+        }
+    }
+
+    private static PsdLayerTable parseTable(ByteBuffer psd) throws IOException {
+        PsdLayerTable table = new PsdLayerTable();
+
+        // File header
+        if( psd.getInt() != SIGNATURE_8BPS ){
+            throw new IOException("Not a PSD file.");
+        }
+        table.version = psd.getShort();
+        if( table.version != 1 && table.version != 2 ){
+            throw new IOException("Unsupported PSD version: "+table.version);
+        }
+        skip(psd, 6);
+        table.channels = psd.getShort();
+        table.height = psd.getInt();
+        table.width = psd.getInt();
+        table.bits = psd.getShort();
+
+        int mode = psd.getShort();
+        table.mode = (mode >= 0 && mode < MODES.length) ? MODES[mode] : "";
+
+        // Color mode data
+        skip(psd, psd.getInt());
+
+        // Image resources; all we want to know is whether or not there's an ICC profile.
+        long resourcesEnd = unsignedInt(psd) + psd.position();
+        while( psd.position() < resourcesEnd ){
+            psd.getInt(); // '8BIM'
+            int resourceId = psd.getShort() & 0xFFFF;
+            int nameLength = psd.get() & 0xFF;
+            skip(psd, nameLength + ((nameLength+1) % 2)); // Pascal strings are padded to an even length.
+            long resourceSize = unsignedInt(psd);
+
+            if( resourceId == RESOURCE_ICC_PROFILE ){
+                table.hasIccProfile = true;
+                table.iccProfileOffset = psd.position();
+                table.iccProfileLength = (int)resourceSize;
+            }
+            skip(psd, resourceSize + (resourceSize % 2));
+        }
+        psd.position((int)resourcesEnd);
+
+        // Layer and mask information
+        long layerAndMaskLength = length(psd, table.version);
+        if( layerAndMaskLength == 0 ){
+            return table;
+        }
+
+        long layerInfoLength = length(psd, table.version);
+        if( layerInfoLength == 0 ){
+            // 16 and 32 bit documents keep their layers in a global 'Lr16'/'Lr32' block instead.
+            throw new IOException("PSD has no layer info block.");
+        }
+
+        int numLayers = Math.abs(psd.getShort()); // Negative if the first alpha channel is the merged transparency.
+
+        for (int i = 0; i < numLayers; i++) {
+            table.records.add( readLayerRecord(psd, table.version, i+1) );
+        }
+
+        // The channel data follows the records in the same order, so all we have to do is add up the lengths.
+        long channelOffset = psd.position();
+        for( LayerRecord record : table.records ){
+            for (int c = 0; c < record.channelLengths.length; c++) {
+                record.channelOffsets[c] = channelOffset;
+                channelOffset += record.channelLengths[c];
+            }
+        }
+
+        return table;
+    }
+
+    private static LayerRecord readLayerRecord(ByteBuffer psd, int version, int imageIndex) throws IOException {
+        LayerRecord record = new LayerRecord();
+        record.imageIndex = imageIndex;
+
+        record.top = psd.getInt();
+        record.left = psd.getInt();
+        record.bottom = psd.getInt();
+        record.right = psd.getInt();
+
+        int numChannels = psd.getShort() & 0xFFFF;
+        record.channelIds = new short[numChannels];
+        record.channelLengths = new long[numChannels];
+        record.channelOffsets = new long[numChannels];
+
+        for (int c = 0; c < numChannels; c++) {
+            record.channelIds[c] = psd.getShort();
+            record.channelLengths[c] = length(psd, version);
+        }
+
+        if( psd.getInt() != SIGNATURE_8BIM ){
+            throw new IOException("Bad blend mode signature in layer "+imageIndex+".");
+        }
+        psd.getInt(); // Blend mode key
+        record.opacity = psd.get() & 0xFF;
+        psd.get(); // Clipping
+        record.flags = psd.get() & 0xFF;
+        psd.get(); // Filler
+        record.pixelDataIrrelevant = (record.flags & 0x18) == 0x18;
+
+        long extraEnd = unsignedInt(psd) + psd.position();
+
+        skip(psd, unsignedInt(psd)); // Layer mask data
+        skip(psd, unsignedInt(psd)); // Blending ranges
+
+        int nameLength = psd.get() & 0xFF;
+        byte[] name = new byte[nameLength];
+        psd.get(name);
+        record.name = new String(name, StandardCharsets.ISO_8859_1);
+        skip(psd, (4 - ((nameLength+1) % 4)) % 4); // Padded to a multiple of 4, including the length byte.
+
+        // Additional layer information; we only care about the unicode name and the section divider.
+        while( psd.position() + 12 <= extraEnd ){
+            int signature = psd.getInt();
+            if( signature != SIGNATURE_8BIM && signature != SIGNATURE_8B64 ){
+                break;
+            }
+            int key = psd.getInt();
+            long length = (version == 2 && LONG_KEYS.contains(keyName(key))) ? psd.getLong() : unsignedInt(psd);
+            int dataStart = psd.position();
+
+            if( key == KEY_LUNI ){
+                int numChars = psd.getInt();
+                char[] unicodeName = new char[numChars];
+                for (int i = 0; i < numChars; i++) {
+                    unicodeName[i] = psd.getChar();
+                }
+                // Some writers null-terminate the name.
+                record.name = new String(unicodeName).replace("\u0000", "");
+            }else if( key == KEY_LSCT && length >= 4 ){
+                record.sectionType = psd.getInt();
+            }
+            psd.position( (int)(dataStart + length) );
+        }
+        psd.position((int)extraEnd);
+
+        return record;
+    }
+
+    /**
+     * Section and channel lengths are 4 bytes in a PSD, and 8 in a PSB.
+     */
+    private static long length(ByteBuffer psd, int version){
+        return version == 2 ? psd.getLong() : unsignedInt(psd);
+    }
+
+    private static String keyName(int key){
+        return new String(new byte[]{ (byte)(key >>> 24), (byte)(key >>> 16), (byte)(key >>> 8), (byte)key }, StandardCharsets.ISO_8859_1);
+    }
+
+    private static long unsignedInt(ByteBuffer psd){
+        return psd.getInt() & 0xFFFFFFFFL;
+    }
+
+    private static void skip(ByteBuffer psd, long numBytes){
+        psd.position( (int)(psd.position() + numBytes) );
+    }
+}
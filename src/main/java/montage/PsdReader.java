@@ -16,29 +16,26 @@
 package montage;
 
 import com.twelvemonkeys.imageio.plugins.psd.PSDMetadata;
-import javafx.application.Platform;
-import javafx.scene.control.Alert;
 import org.apache.logging.log4j.LogManager;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.event.IIOReadProgressListener;
 import javax.imageio.metadata.IIOMetadataNode;
-import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.color.ColorSpace;
 import java.awt.color.ICC_ColorSpace;
 import java.awt.color.ICC_Profile;
-import java.awt.image.BufferedImage;
 import java.awt.image.ComponentColorModel;
 import java.awt.image.DataBuffer;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
 
 /**
  *
@@ -48,6 +45,69 @@ public class PsdReader {
     public static final String GRAY = "grayscale";
     public static final String RGB = "rgb";
     public static final String CMYK = "cmyk";
+
+    // If true, layers are only indexed by read(), and their pixels are decoded the first time they're asked for.
+    private boolean lazyDecoding = false;
+
+    public void setLazyDecoding(boolean lazy){
+        lazyDecoding = lazy;
+    }
+
+    public boolean isLazyDecoding(){
+        return lazyDecoding;
+    }
+
+    // How many threads to decode layers with when they aren't decoded lazily.
+    private int decodeThreads = 1;
+
+    public void setDecodeThreads(int numThreads){
+        decodeThreads = Math.max(1, numThreads);
+    }
+
+    public int getDecodeThreads(){
+        return decodeThreads;
+    }
+
+    // If true, the layer table is parsed straight out of the file instead of out of ImageIO's metadata tree.
+    private boolean nativeParsing = true;
+
+    public void setNativeParsing(boolean nativeParsing){
+        this.nativeParsing = nativeParsing;
+    }
+
+    public boolean isNativeParsing(){
+        return nativeParsing;
+    }
+
+    // If true, layers whose channel offsets are known are decoded by the ChannelDecoder instead of ImageIO.
+    private boolean nativeDecoding = true;
+
+    public void setNativeDecoding(boolean nativeDecoding){
+        this.nativeDecoding = nativeDecoding;
+    }
+
+    public boolean isNativeDecoding(){
+        return nativeDecoding;
+    }
+
+    // If set, layer tables are looked up here before the file's metadata is read, and stored here after.
+    private LayerIndexCache indexCache = null;
+
+    public void setIndexCache(LayerIndexCache cache){
+        indexCache = cache;
+    }
+
+    public LayerIndexCache getIndexCache(){
+        return indexCache;
+    }
+
+    // Told about anything odd in a file that doesn't stop it from being read. Logs by default, so reading never
+    // needs a display.
+    private Consumer<String> warningHandler = message -> LogManager.getLogger().warn(message);
+
+    public void setWarningHandler(Consumer<String> handler){
+        warningHandler = handler;
+    }
     
 
     public PsdData read(File imageFile) throws IOException{
@@ -55,220 +115,272 @@ public class PsdReader {
     }
 
     public PsdData read(File imageFile, IIOReadProgressListener readProgressListener) throws IOException{
-        boolean loadgroups = true;
+        return this.read(imageFile, readProgressListener, LayerSelector.all());
+    }
 
-        try (ImageInputStream input = ImageIO.createImageInputStream(imageFile)){
-            
-            Iterator<ImageReader> readerList = ImageIO.getImageReaders(input);
-            
-            if( !readerList.hasNext() ){
-                LogManager.getLogger().error("Failed to load PSD: "+imageFile.getName()+"! No PSD reader detected.");
-                throw new IOException("Failed to load PSD: "+imageFile.getName()+"! No PSD reader detected.");
+    /**
+     * Reads the file, keeping only the layers that the selector picks. The rest are never decoded.
+     */
+    public PsdData read(File imageFile, IIOReadProgressListener readProgressListener, LayerSelector selector) throws IOException{
+
+        PsdImageSource layerSource = new PsdImageSource(imageFile);
+
+        try {
+
+            PsdLayerTable layerTable = null;
+
+            if( indexCache != null ){
+                layerTable = indexCache.get(imageFile);
+            }
+            boolean cached = layerTable != null;
+
+            if( layerTable == null && nativeParsing ){
+                try {
+                    layerTable = PsdLayerTableParser.parse(imageFile);
+                } catch (IOException ex) {
+                    LogManager.getLogger().warn("Couldn't parse the layers of "+imageFile.getName()+" directly ("+ex.getMessage()+"); falling back to its metadata.");
+                }
+            }
+            if( layerTable == null ){
+                layerTable = readLayerTable(layerSource.getReader());
+            }
+            if( indexCache != null && !cached ){
+                indexCache.put(imageFile, layerTable);
+            }
+
+            if( nativeDecoding ){
+                layerSource.setLayerTable(layerTable);
+            }
+
+            PsdData montage = createMontage(imageFile, layerTable, layerSource);
+
+            buildLayerTree(montage, layerTable, layerSource, selector, readProgressListener);
+
+            if( lazyDecoding ){
+                // Keep the reader around for the layers that haven't been decoded yet.
+                montage.setImageSource(layerSource);
+                montage.reindex();
+            }else{
+                if( decodeThreads > 1 ){
+                    layerSource.mapFile();
+                    ParallelLayerDecoder.decode(montage.revalidateMontageLayers(), layerSource, decodeThreads, readProgressListener);
+                }
+                layerSource.close();
+                montage.revalidate();
+                System.gc();
             }
             
-            ImageReader psdReader = readerList.next();
+            if( readProgressListener != null ){
+                readProgressListener.imageProgress(null, 100.0f);
+            }
             
-            psdReader.setInput(input);
+//            montage.printTreeToScreen(montage.root, 0);
             
-            int numLayers = psdReader.getNumImages(false)-1;
+            return montage;
             
-            // Don't read the background's metadata, because it will be totally wrong for the other layers!
-            PSDMetadata layermetadata = (PSDMetadata)psdReader.getImageMetadata(numLayers);
+        } catch (IOException ex) {
+            layerSource.close();
+            LogManager.getLogger().error("Failed to load PSD: "+imageFile.getName()+"!", ex);
+            throw new IOException("Failed to load PSD: "+imageFile.getName()+"!", ex);
+        }
+    }
+
+    /**
+     * Builds the layer table out of ImageIO's native metadata tree. This is slower than parsing the file directly,
+     * but handles anything the PSD plugin does.
+     */
+    private PsdLayerTable readLayerTable(ImageReader psdReader) throws IOException{
+
+        PsdLayerTable layerTable = new PsdLayerTable();
+
+        int numLayers = psdReader.getNumImages(false)-1;
 
+        // Don't read the background's metadata, because it will be totally wrong for the other layers!
+        PSDMetadata layermetadata = (PSDMetadata)psdReader.getImageMetadata(numLayers);
 
-            IIOMetadataNode root = (IIOMetadataNode) layermetadata.getAsTree(layermetadata.getNativeMetadataFormatName());
 
-            // Get basic information about the file.
-            NamedNodeMap rootmap = root.getFirstChild().getAttributes();
+        IIOMetadataNode root = (IIOMetadataNode) layermetadata.getAsTree(layermetadata.getNativeMetadataFormatName());
 
-            NodeList imResources = root.getElementsByTagName("ImageResources");
-            IIOMetadataNode resourceNode = (IIOMetadataNode)imResources.item(0);
-            int numResources = resourceNode.getLength();
+        // Get basic information about the file.
+        NamedNodeMap rootmap = root.getFirstChild().getAttributes();
+
+        NodeList imResources = root.getElementsByTagName("ImageResources");
+        IIOMetadataNode resourceNode = (IIOMetadataNode)imResources.item(0);
+        int numResources = resourceNode.getLength();
+
+        // Determine if the psd file has an embedded ICC Profile. If not, attempt to provide one later on.
+        IIOMetadataNode iccNode = (IIOMetadataNode)resourceNode.getFirstChild();
+        for (int i = 0; i < numResources; i++) {
+            if( iccNode.getNodeName().equals("ICCProfile") ){ // If we have this resource, then the psd was color managed.
+                layerTable.hasIccProfile = true;
+                break;
+            }else if( iccNode.getAttributes().item(0).getNodeValue().equals("IccUntaggedProfile") ) { // If we have this resource, then that means the psd isn't color managed.
+                resourceNode.removeChild(iccNode);
+                break;
+            }else{ // Still haven't found anything yet, carry on...
+                iccNode = (IIOMetadataNode)iccNode.getNextSibling();
+            }
+        }
 
-            // Determine if the psd file has an embedded ICC Profile. If not, attempt to provide one later on.
-            IIOMetadataNode iccNode = (IIOMetadataNode)resourceNode.getFirstChild();
-            boolean hasProfile = false;
-            for (int i = 0; i < numResources; i++) {
-                if( iccNode.getNodeName().equals("ICCProfile") ){ // If we have this resource, then the psd was color managed.
-                    hasProfile = true;
+        for (int i = 0; i < rootmap.getLength(); i++) {
+            switch( rootmap.item(i).getNodeName() ){
+                case "height":
+                    layerTable.height = Integer.valueOf( rootmap.item(i).getNodeValue() );
                     break;
-                }else if( iccNode.getAttributes().item(0).getNodeValue().equals("IccUntaggedProfile") ) { // If we have this resource, then that means the psd isn't color managed.
-                    resourceNode.removeChild(iccNode);
+                case "width":
+                    layerTable.width = Integer.valueOf( rootmap.item(i).getNodeValue() );
+                    break;
+                case "bits":
+                    layerTable.bits = Integer.parseInt(rootmap.item(i).getNodeValue() ); //+ "-bit ";
+                    break;
+                case "mode":
+                    layerTable.mode = rootmap.item(i).getNodeValue().toLowerCase();
                     break;
-                }else{ // Still haven't found anything yet, carry on...
-                    iccNode = (IIOMetadataNode)iccNode.getNextSibling();
-                }
             }
+        }
+
+//            ((ICC_ProfileGray)iccNode.getUserObject()).write("Gamma22.icc");
 
-            Dimension canvasSize = new Dimension();
-            int bits = 0;
-            int inttype = 0;
-
-            ComponentColorModel grayColorModel = null;
-            ICC_ColorSpace gamma2p2 = null;
-            String type = "";
-            for (int i = 0; i < rootmap.getLength(); i++) {
-                switch( rootmap.item(i).getNodeName() ){
-                    case "height":
-                        canvasSize.height = Integer.valueOf( rootmap.item(i).getNodeValue() );
+        NodeList nL = root.getElementsByTagName("Layers");
+
+        Node n = nL.item(0).getFirstChild();
+        int imageIndex = 1;
+
+        while( n != null ){
+
+            NamedNodeMap map = n.getAttributes();
+            LayerRecord record = new LayerRecord();
+            record.imageIndex = imageIndex;
+
+            for (int i = 0; i < map.getLength(); i++) {
+                switch( map.item(i).getNodeName() ){
+                    case "name":
+                        record.name = map.item(i).getNodeValue();
+                        break;
+                    case "top":
+                        record.top = Integer.valueOf( map.item(i).getNodeValue() );
+                        break;
+                    case "left":
+                        record.left = Integer.valueOf( map.item(i).getNodeValue() );
+                        break;
+                    case "bottom":
+                        record.bottom = Integer.valueOf( map.item(i).getNodeValue() );
                         break;
-                    case "width":
-                        canvasSize.width = Integer.valueOf( rootmap.item(i).getNodeValue() );
+                    case "right":
+                        record.right = Integer.valueOf( map.item(i).getNodeValue() );
                         break;
-                    case "bits":
-                        bits = Integer.parseInt(rootmap.item(i).getNodeValue() ); //+ "-bit ";
+                    case "opacity":
+                        record.opacity = Integer.valueOf( map.item(i).getNodeValue() );
                         break;
-                    case "mode":
-                        type = rootmap.item(i).getNodeValue().toLowerCase();
-                        
-                        switch(type.toLowerCase()){
-                            case GRAY:
-                                inttype = ColorSpace.CS_GRAY;
-                                if(!hasProfile){
-                                    try (InputStream inStream = PsdReader.class.getResourceAsStream("/icc_profiles/Gamma22.icc") ){
-                                        ICC_Profile gamma2p2GRAY = ICC_Profile.getInstance(inStream);
-                                        gamma2p2 = new ICC_ColorSpace(gamma2p2GRAY);
-                                        grayColorModel = new ComponentColorModel(gamma2p2,
-                                                                                true, false,
-                                                                                ComponentColorModel.TRANSLUCENT,
-                                                                                DataBuffer.TYPE_BYTE);
-                                        Platform.runLater(() -> {
-                                            Alert alert = new Alert(Alert.AlertType.WARNING, "This PSD does not have an attached ICC Profile. Defaulting to a Gamma 2.2 profile. If the image does not look correct, please embed the ICC profile you wish to use.");
-                                            alert.showAndWait();
-                                        });
-                                    }
-                                }
-                                break;
-                            case RGB:
-                            case CMYK: 
-                                inttype = ColorSpace.CS_sRGB;
-                                break;
-                            default:
-                                inttype = ColorSpace.CS_LINEAR_RGB;
-                                break;
-                        }
-                        
+                    case "flags":
+                        record.flags = Short.valueOf( map.item(i).getNodeValue() );
+                        break;
+                    case "pixelDataIrrelevant":
+                        record.pixelDataIrrelevant = true;
                         break;
-                        
                 }
             }
 
-//            ((ICC_ProfileGray)iccNode.getUserObject()).write("Gamma22.icc");
+            layerTable.records.add(record);
 
-            PsdData montage = new PsdData( imageFile.getName(), canvasSize, ColorSpace.getInstance(inttype), bits );
+            imageIndex++;
+            n = n.getNextSibling();
+        }
 
-            NodeList nL = root.getElementsByTagName("Layers");
-                                    
-            Node n = nL.item(0);
-            
-            int imageIndex = numLayers;
+        return layerTable;
+    }
 
-            n = n.getLastChild();
-            PsdGroup currentGroup = (PsdGroup)montage.getRoot();
+    private PsdData createMontage(File imageFile, PsdLayerTable layerTable, PsdImageSource layerSource) throws IOException{
+        int inttype;
+        ComponentColorModel grayColorModel = null;
 
-            do{
-                // Set up the read progress listening if it exists
-                if( readProgressListener != null ){
-                    readProgressListener.imageProgress(psdReader, 100.0f*(numLayers-imageIndex)/numLayers);
-                }
-                
-                NamedNodeMap map = n.getAttributes();
-                String layerName = "";
-                
-                float opacity = 1.0f;
-                short flags = 0;
-                Rectangle layerBounds = new Rectangle();
-                boolean isImage = true;
-                
-                for (int i = 0; i < map.getLength(); i++) {
-                    switch( map.item(i).getNodeName() ){
-                        case "name":
-                            layerName = map.item(i).getNodeValue();
-                            break;
-                        case "top":
-                            layerBounds.y = Integer.valueOf( map.item(i).getNodeValue() );
-                            break;
-                        case "left":
-                            layerBounds.x = Integer.valueOf( map.item(i).getNodeValue() );
-                            break;
-                        case "bottom":
-                            layerBounds.height = Integer.valueOf( map.item(i).getNodeValue() );
-                            break;
-                        case "right":                            
-                            layerBounds.width = Integer.valueOf( map.item(i).getNodeValue() );
-                            break;
-                        case "opacity":
-                            opacity = Integer.valueOf( map.item(i).getNodeValue() )/255.0f;
-                            break;
-                        case "flags":
-                            flags = Short.valueOf( map.item(i).getNodeValue() );
-                            break;
-                        case "pixelDataIrrelevant":
-                            isImage = false;
-                            break;
+        switch( layerTable.mode ){
+            case GRAY:
+                inttype = ColorSpace.CS_GRAY;
+                if( !layerTable.hasIccProfile ){
+                    try (InputStream inStream = PsdReader.class.getResourceAsStream("/icc_profiles/Gamma22.icc") ){
+                        ICC_Profile gamma2p2GRAY = ICC_Profile.getInstance(inStream);
+                        ICC_ColorSpace gamma2p2 = new ICC_ColorSpace(gamma2p2GRAY);
+                        grayColorModel = new ComponentColorModel(gamma2p2,
+                                                                true, false,
+                                                                ComponentColorModel.TRANSLUCENT,
+                                                                DataBuffer.TYPE_BYTE);
+                        warningHandler.accept(imageFile.getName()+" does not have an attached ICC Profile. Defaulting to a Gamma 2.2 profile. If the image does not look correct, please embed the ICC profile you wish to use.");
                     }
-
                 }
+                break;
+            case RGB:
+            case CMYK:
+                inttype = ColorSpace.CS_sRGB;
+                break;
+            default:
+                inttype = ColorSpace.CS_LINEAR_RGB;
+                break;
+        }
+
+        if( !layerTable.hasIccProfile ){
+            layerSource.setColorModel(grayColorModel);
+        }
+
+        return new PsdData( imageFile.getName(), layerTable.getCanvasSize(), ColorSpace.getInstance(inttype), layerTable.bits );
+    }
+
+    /**
+     * Walks the layer records from the top of the stack down, building up the group hierarchy as it goes.
+     */
+    private void buildLayerTree(PsdData montage, PsdLayerTable layerTable, PsdImageSource layerSource,
+                                LayerSelector selector, IIOReadProgressListener readProgressListener) throws IOException{
+        boolean loadgroups = true;
 
+        int numLayers = layerTable.records.size();
+        PsdGroup currentGroup = (PsdGroup)montage.getRoot();
+        // Kept as separate names, since a group's own name may have the separator in it.
+        Deque<String> groupNames = new ArrayDeque<>();
+
+        for (int r = numLayers-1; r >= 0; r--) {
+            // Set up the read progress listening if it exists
+            if( readProgressListener != null ){
+                readProgressListener.imageProgress(null, 100.0f*(numLayers-1-r)/numLayers);
+            }
+
+            LayerRecord record = layerTable.records.get(r);
+            Rectangle layerBounds = record.getBounds();
+
+            if( record.isGroupEnd() ){
+                if( loadgroups && currentGroup.getParent() != null ){
+                    currentGroup = currentGroup.getParent();
+                    groupNames.pollLast();
+                }
+            }else if( record.isGroupStart() ){
+                if( loadgroups ){
+                    PsdGroup tmpGroup = new PsdGroup(record.name);
+                    currentGroup.addNode( tmpGroup );
+                    currentGroup = tmpGroup;
+                    groupNames.addLast(record.name);
+                }
+            }else if( !selector.select(record.name, String.join(LayerSelector.GROUP_SEPARATOR, groupNames), layerBounds, record.flags) ){
+                LogManager.getLogger().debug("Skipping unselected layer "+record.name);
+            }else if( !record.pixelDataIrrelevant ){ // If the pixel data isn't irrelevant, then read this in as a layer
+                if( record.flags != 9 ){ // If the flag is 9, then it has protected transparency, and we don't want their kind here.
+                    PsdLayer layer = readLayer(layerSource, record.imageIndex, record.name, layerBounds, record.getOpacity());
 
-                // If the pixel data isn't irrelevant, then read this in as a layer
-                if( isImage ){
-                    if( flags != 9 ){ // If the flag is 9, then it has protected transparency, and we don't want their kind here.
-                        // First determine the actual bounds (since height holds bottom and width holds right)
-                        layerBounds.height = layerBounds.height-layerBounds.y;
-                        layerBounds.width  = layerBounds.width-layerBounds.x;
-
-                        BufferedImage copyIm = psdReader.read(imageIndex);
-                        if(!hasProfile) {
-                            copyIm = new BufferedImage(grayColorModel, copyIm.getRaster(), grayColorModel.isAlphaPremultiplied(), null);
-                        }
-
-                        if( loadgroups ){
-                            montage.addLayer( currentGroup, new PsdLayer(copyIm, layerName, layerBounds, opacity) );
-                        }else{
-                            montage.addLayer( (PsdGroup)montage.getRoot(), new PsdLayer(copyIm, layerName, layerBounds, opacity) );
-                        }
-                    }                    
-                }else{ // If the pixel data is irrelevant, then read this in as a group or shape
-                    
-                    if( layerName.equals("</Layer group>") ){
-                        if( loadgroups ){
-                            currentGroup = currentGroup.getParent();
-                        }
-                    }else if( layerBounds.isEmpty() ){
-                        if( loadgroups ){
-                            PsdGroup tmpGroup = new PsdGroup(layerName);
-                            currentGroup.addNode( tmpGroup );
-                            currentGroup = tmpGroup;
-                        }
+                    if( loadgroups ){
+                        montage.addLayer( currentGroup, layer );
                     }else{
-                        // Determine the actual bounds of the shape (since height holds bottom and width holds right)
-                        layerBounds.height = layerBounds.height-layerBounds.y;
-                        layerBounds.width  = layerBounds.width-layerBounds.x;
-                        
-                        currentGroup.addNode( new PsdLayerNode(new PsdLayer(psdReader.read(imageIndex), layerName, layerBounds, opacity)) );
+                        montage.addLayer( (PsdGroup)montage.getRoot(), layer );
                     }
                 }
-                
-                imageIndex--;
-                n = n.getPreviousSibling();
-                
-            } while( n != null );
-
-            montage.revalidate();
-            System.gc();
-            
-            if( readProgressListener != null ){
-                readProgressListener.imageProgress(psdReader, 100.0f);
+            }else if( !layerBounds.isEmpty() ){ // Otherwise it's a shape
+                currentGroup.addNode( new PsdLayerNode(readLayer(layerSource, record.imageIndex, record.name, layerBounds, record.getOpacity())) );
             }
-            
-//            montage.printTreeToScreen(montage.root, 0);
-            
-            return montage;
-            
-        } catch (IOException ex) {
-            LogManager.getLogger().error("Failed to load PSD: "+imageFile.getName()+"!", ex);
-            throw new IOException("Failed to load PSD: "+imageFile.getName()+"!", ex);
         }
-    }   
+    }
+
+    private PsdLayer readLayer(PsdImageSource layerSource, int imageIndex, String layerName, Rectangle layerBounds, float opacity) throws IOException{
+        if( lazyDecoding || decodeThreads > 1 ){ // In parallel, every layer is decoded after the tree is built.
+            return new PsdLayer(layerSource, imageIndex, layerName, layerBounds, opacity);
+        }else{
+            return new PsdLayer(layerSource.readLayer(imageIndex), layerName, layerBounds, opacity);
+        }
+    }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import montage.PsdData;
+import montage.PsdLayer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that manifests read back as they were written, and that incremental exports only rewrite and delete what
+ * they should.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public class ExportManifestTest {
+
+    private Path folder;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("manifest");
+    }
+
+    @After
+    public void deleteFolder() throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        ExportManifest written = new ExportManifest("source=/scans/a, \"b\".psd;type=tif");
+        written.put(new ExportManifest.Entry("plain.tif", "plain", new Rectangle(-3, -5, 33, 25), 0.78431374f,
+                                             0xFEDCBA9876543210L, new Rectangle(0, 0, 30, 20), 1027));
+        written.put(new ExportManifest.Entry("L\u00e4yer, \"quoted\".tif", "L\u00e4yer, \"quoted\"", new Rectangle(1, 2, 3, 4), 1f,
+                                             42, new Rectangle(1, 2, 3, 4), 5L << 32));
+        written.write(folder.toFile());
+
+        ExportManifest read = ExportManifest.read(folder.toFile());
+        assertNotNull(read);
+        assertEquals(written.getSettings(), read.getSettings());
+        assertEquals(2, read.entries().size());
+        for( ExportManifest.Entry entry : written.entries() ){
+            ExportManifest.Entry readEntry = read.get(entry.fileName);
+            assertNotNull(entry.fileName, readEntry);
+            assertEquals(entry.layerName, readEntry.layerName);
+            assertEquals(entry.bounds, readEntry.bounds);
+            assertEquals(Float.floatToIntBits(entry.opacity), Float.floatToIntBits(readEntry.opacity));
+            assertEquals(entry.hash, readEntry.hash);
+            assertEquals(entry.placement, readEntry.placement);
+            assertEquals(entry.fileBytes, readEntry.fileBytes);
+        }
+    }
+
+    @Test
+    public void ignoresMissingAndUnreadableManifests() throws IOException {
+        assertNull(ExportManifest.read(folder.toFile()));
+
+        Files.write(folder.resolve(ExportManifest.FILE_NAME), "file,layer\nsomething else entirely\n".getBytes(StandardCharsets.UTF_8));
+        assertNull(ExportManifest.read(folder.toFile()));
+    }
+
+    @Test
+    public void onlyWritesLayersThatChanged() throws IOException {
+        ExportPipeline first = export(document("a", "b", "c"), "a.psd", "tiff-lzw");
+        assertEquals(3, first.getLayersWritten());
+
+        ExportPipeline again = export(document("a", "b", "c"), "a.psd", "tiff-lzw");
+        assertEquals(0, again.getLayersWritten());
+        assertEquals(3, again.getLayersSkipped());
+
+        PsdData changed = document("a", "b", "c");
+        changed.getMontageLayers()[1].opacity = 0.5f;
+        ExportPipeline edited = export(changed, "a.psd", "tiff-lzw");
+        assertEquals(1, edited.getLayersWritten());
+        assertEquals(2, edited.getLayersSkipped());
+    }
+
+    @Test
+    public void deletesFilesOfLayersThatAreGone() throws IOException {
+        export(document("a", "b", "c"), "a.psd", "tiff-lzw");
+        export(document("a", "c"), "a.psd", "tiff-lzw");
+
+        assertEquals(Arrays.asList("a.tif", "c.tif", ExportManifest.FILE_NAME), list());
+    }
+
+    @Test
+    public void keepsFilesThatWereChangedSince() throws IOException {
+        export(document("a", "b"), "a.psd", "tiff-lzw");
+        Files.write(folder.resolve("b.tif"), "someone else's".getBytes(StandardCharsets.UTF_8));
+        export(document("a"), "a.psd", "tiff-lzw");
+
+        assertEquals(Arrays.asList("a.tif", "b.tif", ExportManifest.FILE_NAME), list());
+    }
+
+    @Test
+    public void deletesTheOldFilesWhenTheSettingsChange() throws IOException {
+        export(document("a", "b"), "a.psd", "tiff-lzw");
+        ExportPipeline png = export(document("a", "b"), "a.psd", "png-6");
+
+        assertEquals(2, png.getLayersWritten());
+        assertEquals(Arrays.asList("a.png", "b.png", ExportManifest.FILE_NAME), list());
+    }
+
+    @Test
+    public void leavesAnotherDocumentsFilesAlone() throws IOException {
+        export(document("a", "b"), "a.psd", "tiff-lzw");
+        ExportPipeline other = export(document("c"), "b.psd", "tiff-lzw");
+
+        assertEquals(1, other.getLayersWritten());
+        assertEquals(Arrays.asList("a.tif", "b.tif", "c.tif", ExportManifest.FILE_NAME), list());
+    }
+
+    private ExportPipeline export(PsdData data, String sourceName, String profile) throws IOException {
+        ExportPipeline pipeline = new ExportPipeline(data, folder.toFile(), ExportProfile.forName(profile));
+        pipeline.setIncremental(true);
+        pipeline.setSourceFile(folder.resolve(sourceName).toFile());
+        pipeline.setEncodeThreads(2);
+        pipeline.run();
+        return pipeline;
+    }
+
+    // A document with a small layer of its own for every name, each the same every time it's made.
+    private static PsdData document(String... layerNames){
+        PsdData data = new PsdData("test", new Dimension(64, 48), ColorSpace.getInstance(ColorSpace.CS_sRGB), 8);
+        for( String name : layerNames ){
+            int seed = name.hashCode();
+            BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB);
+            for( int y=0; y<image.getHeight(); y++ ){
+                for( int x=0; x<image.getWidth(); x++ ){
+                    image.setRGB(x, y, 0xFF000000 | (x*seed) << 16 | (y*seed) << 8 | seed & 0xFF);
+                }
+            }
+            data.addLayer(new PsdLayer(image, name, new Rectangle(seed & 15, seed & 7, 40, 30), 1f));
+        }
+        data.reindex();
+        return data;
+    }
+
+    private List<String> list(){
+        List<String> names = new ArrayList<>(Arrays.asList(folder.toFile().list()));
+        names.sort(null);
+        return names;
+    }
+}
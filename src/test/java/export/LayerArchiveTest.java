@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import montage.PsdLayer;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public class LayerArchiveTest {
+
+    private static final String LONG_NAME = "L\u00e4yer with a name far too long to fit in the hundred bytes a ustar header has room for by some way.tif";
+
+    private static final Dimension CANVAS = new Dimension(640, 480);
+
+    @Test
+    public void zipHoldsEveryFileAndItsIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LayerArchive archive = LayerArchive.open("layers.ZIP", bytes);
+        Map<String, byte[]> expected = fill(archive);
+
+        Map<String, byte[]> read = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()), StandardCharsets.UTF_8)) {
+            for( ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry() ){
+                // Files that were already compressed are stored as they are.
+                int method = entry.getName().endsWith(".bmp") || entry.getName().equals(LayerArchive.INDEX_NAME) ? ZipEntry.DEFLATED : ZipEntry.STORED;
+                assertEquals(entry.getName(), method, entry.getMethod());
+                read.put(entry.getName(), readAll(zip));
+            }
+        }
+
+        assertEntriesEqual(expected, read);
+        assertEquals(bytes.size(), archive.length());
+    }
+
+    @Test
+    public void tarHoldsEveryFileAndItsIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LayerArchive archive = LayerArchive.open("layers.tar", bytes);
+        Map<String, byte[]> expected = fill(archive);
+
+        byte[] tar = bytes.toByteArray();
+        assertEquals(0, tar.length%512);
+        assertEquals(tar.length, archive.length());
+
+        Map<String, byte[]> read = new LinkedHashMap<>();
+        String paxPath = null;
+        int at = 0;
+        while( !isZero(tar, at, 512) ){
+            String name = field(tar, at, 100);
+            long size = Long.parseLong(field(tar, at+124, 12), 8);
+            char type = (char)tar[at+156];
+            assertEquals("ustar", field(tar, at+257, 6));
+
+            long checksum = Long.parseLong(field(tar, at+148, 7).trim(), 8);
+            long sum = 0;
+            for( int i=0; i<512; i++ ){
+                sum += i >= 148 && i < 156 ? ' ' : tar[at+i] & 0xFF;
+            }
+            assertEquals(name, sum, checksum);
+
+            byte[] data = Arrays.copyOfRange(tar, at+512, at+512+(int)size);
+            at += 512+(int)((size+511)/512*512);
+
+            if( type == 'x' ){
+                String record = new String(data, StandardCharsets.UTF_8);
+                assertEquals(data.length, Integer.parseInt(record.substring(0, record.indexOf(' '))));
+                assertTrue(record, record.endsWith("\n"));
+                paxPath = record.substring(record.indexOf("path=")+"path=".length(), record.length()-1);
+                continue;
+            }
+            assertEquals('0', type);
+            read.put(paxPath != null ? paxPath : name, data);
+            paxPath = null;
+        }
+        // Two empty blocks close it off, and that's all.
+        assertEquals(tar.length, at+1024);
+        assertTrue(isZero(tar, at, 1024));
+
+        assertEntriesEqual(expected, read);
+    }
+
+    @Test
+    public void takesFilesFromManyThreads() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LayerArchive archive = LayerArchive.open("layers.zip", bytes);
+
+        int numFiles = 40;
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        List<Future<String>> names = new ArrayList<>();
+        try {
+            for( int f=0; f<numFiles; f++ ){
+                byte[] data = data(10000+f, f);
+                names.add(threads.submit(() -> archive.add("layer.tif", file(data), true)));
+            }
+            Set<String> unique = new HashSet<>();
+            for( Future<String> name : names ){
+                assertTrue(unique.add(name.get()));
+            }
+        } finally {
+            threads.shutdown();
+        }
+        archive.finish(new String[0], new PsdLayer[0], new Rectangle[0], CANVAS);
+
+        int numEntries = 0;
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            for( ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry() ){
+                byte[] data = readAll(zip);
+                if( !entry.getName().equals(LayerArchive.INDEX_NAME) ){
+                    // Each file is whole, whichever order they went in.
+                    int f = data.length-10000;
+                    assertArrayEquals(entry.getName(), data(10000+f, f), data);
+                }
+                numEntries++;
+            }
+        }
+        assertEquals(numFiles+1, numEntries);
+    }
+
+    @Test
+    public void onlyZipAndTarAreArchives(){
+        assertTrue(LayerArchive.isArchiveName("out.zip"));
+        assertTrue(LayerArchive.isArchiveName("OUT.TAR"));
+        assertFalse(LayerArchive.isArchiveName("out.tif"));
+        assertFalse(LayerArchive.isArchiveName("out.tar.gz"));
+    }
+
+    @Test(expected = IOException.class)
+    public void wontOpenAnyOtherKind() throws IOException {
+        LayerArchive.open("out.7z", new ByteArrayOutputStream());
+    }
+
+    /**
+     * Adds a few layers' files, one of them twice and one left out, and finishes the archive. Returns what each entry
+     * should hold.
+     */
+    private static Map<String, byte[]> fill(LayerArchive archive) throws IOException {
+        PsdLayer[] layers = {
+            new PsdLayer((BufferedImage)null, "a", new Rectangle(-10, 5, 300, 200), 1f),
+            new PsdLayer((BufferedImage)null, "b, \"quoted\"", new Rectangle(0, 0, 640, 480), 0.5f),
+            new PsdLayer((BufferedImage)null, "also a", new Rectangle(20, 30, 40, 50), 1f),
+            new PsdLayer((BufferedImage)null, "skipped", new Rectangle(1, 1, 1, 1), 1f),
+            new PsdLayer((BufferedImage)null, "L\u00e4yer", new Rectangle(7, 8, 9, 10), 0.25f),
+        };
+        Rectangle[] placements = { new Rectangle(0, 5, 290, 200), new Rectangle(0, 0, 640, 480), new Rectangle(20, 30, 40, 50),
+                                   new Rectangle(1, 1, 1, 1), new Rectangle(7, 8, 9, 10) };
+        byte[][] data = { data(70000, 1), new byte[30000], data(512, 3), null, data(0, 5) };
+        String[] fileNames = { "a.tif", "b.bmp", "a.tif", null, LONG_NAME };
+
+        Map<String, byte[]> expected = new LinkedHashMap<>();
+        String[] entryNames = new String[layers.length];
+        for( int l=0; l<layers.length; l++ ){
+            if( fileNames[l] == null ){
+                continue;
+            }
+            entryNames[l] = archive.add(fileNames[l], file(data[l]), !fileNames[l].endsWith(".bmp"));
+            expected.put(entryNames[l], data[l]);
+        }
+        assertEquals("a-2.tif", entryNames[2]);
+        archive.finish(entryNames, layers, placements, CANVAS);
+
+        String index = "file,layer,x,y,width,height,opacity,placement_x,placement_y,placement_width,placement_height,canvas_width,canvas_height\n"+
+                       "a.tif,a,-10,5,300,200,1.0,0,5,290,200,640,480\n"+
+                       "b.bmp,\"b, \"\"quoted\"\"\",0,0,640,480,0.5,0,0,640,480,640,480\n"+
+                       "a-2.tif,also a,20,30,40,50,1.0,20,30,40,50,640,480\n"+
+                       LONG_NAME+",L\u00e4yer,7,8,9,10,0.25,7,8,9,10,640,480\n";
+        expected.put(LayerArchive.INDEX_NAME, index.getBytes(StandardCharsets.UTF_8));
+        return expected;
+    }
+
+    private static EncodedFile file(byte[] data) throws IOException {
+        EncodedFile file = new EncodedFile("test");
+        file.write(ByteBuffer.wrap(data), 0);
+        return file;
+    }
+
+    private static byte[] data(int length, long seed){
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readAll(ZipInputStream zip) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for( int n = zip.read(buffer); n != -1; n = zip.read(buffer) ){
+            data.write(buffer, 0, n);
+        }
+        return data.toByteArray();
+    }
+
+    private static void assertEntriesEqual(Map<String, byte[]> expected, Map<String, byte[]> read){
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(read.keySet()));
+        for( Map.Entry<String, byte[]> entry : expected.entrySet() ){
+            if( entry.getKey().equals(LayerArchive.INDEX_NAME) ){
+                assertEquals(new String(entry.getValue(), StandardCharsets.UTF_8), new String(read.get(entry.getKey()), StandardCharsets.UTF_8));
+            }
+            assertArrayEquals(entry.getKey(), entry.getValue(), read.get(entry.getKey()));
+        }
+    }
+
+    // A NUL-terminated ASCII field of a TAR header.
+    private static String field(byte[] tar, int at, int length){
+        int end = at;
+        while( end < at+length && tar[end] != 0 ){
+            end++;
+        }
+        return new String(tar, at, end-at, StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isZero(byte[] data, int at, int length){
+        for( int i=at; i<at+length; i++ ){
+            if( data[i] != 0 ){
+                return false;
+            }
+        }
+        return true;
+    }
+}
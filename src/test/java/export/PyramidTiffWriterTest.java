@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes tiled pyramids and reads each level back with ImageIO's TIFF reader.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public class PyramidTiffWriterTest {
+
+    private static final int SUB_IFDS = 330;
+
+    private Path folder;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("pyramid-tiff");
+    }
+
+    @After
+    public void deleteFolder() throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void fullSizeLevelRoundTrips() throws IOException {
+        Dimension outputSize = new Dimension(700, 560);
+        // Leaves whole tiles empty above and to the right.
+        Point origin = new Point(-20, 270);
+
+        for( String profileName : StreamingTiffWriterTest.TIFF_PROFILES ){
+            ExportProfile profile = ExportProfile.forName(profileName);
+            for( BufferedImage image : StreamingTiffWriterTest.images(400, 300) ){
+                File file = folder.resolve(profileName+".tif").toFile();
+                new PyramidTiffWriter(profile.newStripCompressor()).write(new PlacedImageSource(image, origin, outputSize), file);
+
+                String what = profileName+" "+image.getColorModel();
+                StreamingTiffWriterTest.assertSamplesEqual(what, StreamingTiffWriterTest.placed(image, origin, outputSize),
+                                                           levels(file).get(0));
+            }
+        }
+    }
+
+    @Test
+    public void eachLevelAveragesTheOneAbove() throws IOException {
+        // Opaque, so every sample is a plain average of the four above it.
+        BufferedImage[] images = StreamingTiffWriterTest.images(600, 530);
+        for( BufferedImage image : new BufferedImage[]{ images[1], images[5] } ){
+            File file = folder.resolve("pyramid.tif").toFile();
+            new PyramidTiffWriter(new LzwEncoder()).write(new PlacedImageSource(image, new Point(), new Dimension(601, 530)), file);
+
+            List<BufferedImage> levels = levels(file);
+            assertEquals(3, levels.size());
+            for( int l=1; l<levels.size(); l++ ){
+                Raster above = levels.get(l-1).getRaster();
+                Raster level = levels.get(l).getRaster();
+                assertEquals((above.getWidth()+1)/2, level.getWidth());
+                assertEquals((above.getHeight()+1)/2, level.getHeight());
+
+                for( int y=0; y<level.getHeight(); y++ ){
+                    for( int x=0; x<level.getWidth(); x++ ){
+                        // The last column or row is repeated where there isn't one to pair it with.
+                        int left = 2*x, right = Math.min(2*x+1, above.getWidth()-1);
+                        int top = 2*y, bottom = Math.min(2*y+1, above.getHeight()-1);
+                        for( int b=0; b<level.getNumBands(); b++ ){
+                            int sum = above.getSample(left, top, b)+above.getSample(right, top, b)+
+                                      above.getSample(left, bottom, b)+above.getSample(right, bottom, b);
+                            if( level.getSample(x, y, b) != (sum+2)/4 ){
+                                fail("level "+l+" "+image.getColorModel()+": "+x+","+y+" band "+b);
+                            }
+                        }
+                    }
+                }
+            }
+            assertTrue(levels.get(levels.size()-1).getWidth() <= PyramidTiffWriter.TILE_SIZE);
+        }
+    }
+
+    /**
+     * The file's main image, then each of its SubIFDs, read by pointing a copy of the header at them in turn.
+     */
+    private static List<BufferedImage> levels(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(42, buffer.getShort(2));
+
+        List<Long> subIfds = new ArrayList<>();
+        int ifd = buffer.getInt(4);
+        int numEntries = buffer.getShort(ifd) & 0xFFFF;
+        for( int e=0; e<numEntries; e++ ){
+            int entry = ifd+2+12*e;
+            if( (buffer.getShort(entry) & 0xFFFF) == SUB_IFDS ){
+                int count = buffer.getInt(entry+4);
+                int values = count == 1 ? entry+8 : buffer.getInt(entry+8);
+                for( int i=0; i<count; i++ ){
+                    subIfds.add(buffer.getInt(values+4*i) & 0xFFFFFFFFL);
+                }
+            }
+        }
+
+        List<BufferedImage> levels = new ArrayList<>();
+        levels.add(ImageIO.read(file));
+        for( long subIfd : subIfds ){
+            byte[] copy = bytes.clone();
+            ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN).putInt(4, (int)subIfd);
+            levels.add(ImageIO.read(new ByteArrayInputStream(copy)));
+        }
+        return levels;
+    }
+}
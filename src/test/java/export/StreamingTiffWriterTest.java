@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes images through the streamed encoder and reads them back with ImageIO's TIFF reader.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public class StreamingTiffWriterTest {
+
+    static final String[] TIFF_PROFILES = { "tiff-none", "tiff-lzw", "tiff-deflate-1", "tiff-deflate-9", "tiff-packbits" };
+
+    private Path folder;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("streaming-tiff");
+    }
+
+    @After
+    public void deleteFolder() throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void roundTripsEveryKindOfImage() throws IOException {
+        Dimension outputSize = new Dimension(420, 700);
+        // Hangs off the top left, so it's clipped, and leaves empty strips below.
+        Point origin = new Point(-15, -9);
+
+        for( String profileName : TIFF_PROFILES ){
+            ExportProfile profile = ExportProfile.forName(profileName);
+            for( BufferedImage image : images(400, 300) ){
+                File file = folder.resolve(profileName+".tif").toFile();
+                new StreamingTiffWriter(profile.newStripCompressor()).write(image, origin, outputSize, file);
+
+                String what = profileName+" "+image.getColorModel();
+                assertSamplesEqual(what, placed(image, origin, outputSize), ImageIO.read(file));
+            }
+        }
+    }
+
+    @Test
+    public void matchesTheImageIoWriter() throws IOException {
+        BufferedImage image = images(300, 200)[0];
+        Dimension outputSize = new Dimension(350, 260);
+        Point origin = new Point(40, 30);
+
+        File streamed = folder.resolve("streamed.tif").toFile();
+        new StreamingTiffWriter().write(image, origin, outputSize, streamed);
+        File written = folder.resolve("written.tif").toFile();
+        assertTrue(ImageIO.write(placed(image, origin, outputSize), "tif", written));
+
+        assertSamplesEqual("LZW", ImageIO.read(written), ImageIO.read(streamed));
+    }
+
+    @Test
+    public void compressingOnAPoolWritesTheSameFile() throws IOException {
+        BufferedImage image = images(500, 900)[1];
+        Dimension outputSize = new Dimension(520, 1000);
+        Point origin = new Point(10, 60);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for( String profileName : TIFF_PROFILES ){
+                ExportProfile profile = ExportProfile.forName(profileName);
+                File alone = folder.resolve("alone.tif").toFile();
+                new StreamingTiffWriter(profile.newStripCompressor()).write(image, origin, outputSize, alone);
+                File pooled = folder.resolve("pooled.tif").toFile();
+                new StreamingTiffWriter(profile::newStripCompressor, pool).write(image, origin, outputSize, pooled);
+
+                assertArrayEquals(profileName, Files.readAllBytes(alone.toPath()), Files.readAllBytes(pooled.toPath()));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void writesEveryPage() throws IOException {
+        BufferedImage[] pages = images(120, 80);
+        Dimension outputSize = new Dimension(150, 100);
+        Point origin = new Point(20, 10);
+
+        File file = folder.resolve("pages.tif").toFile();
+        StreamingTiffWriter writer = new StreamingTiffWriter(ExportProfile.TIFF_DEFLATE_6.newStripCompressor());
+        try (TiffOutput out = new TiffOutput(file)) {
+            for( BufferedImage page : pages ){
+                writer.writePage(out, page, origin, outputSize, new TiffDirectory());
+            }
+        }
+
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            assertTrue(readers.hasNext());
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                assertEquals(pages.length, reader.getNumImages(true));
+                for( int p=0; p<pages.length; p++ ){
+                    assertSamplesEqual("page "+p, placed(pages[p], origin, outputSize), reader.read(p));
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * One of each kind of image the writer takes, filled with noise broken up by runs.
+     */
+    static BufferedImage[] images(int width, int height){
+        ColorSpace gray = ColorSpace.getInstance(ColorSpace.CS_GRAY);
+        ColorSpace srgb = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+        BufferedImage[] images = {
+            new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB),
+            new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB),
+            new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR),
+            new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR),
+            new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY),
+            new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY),
+            component(gray, true, width, height),
+            component(srgb, true, width, height),
+            component(srgb, false, width, height),
+        };
+
+        Random random = new Random(width*31+height);
+        for( BufferedImage image : images ){
+            assertTrue(image.getColorModel().toString(), StreamingTiffWriter.canWrite(image));
+            WritableRaster raster = image.getRaster();
+            int max = (1 << image.getColorModel().getComponentSize(0))-1;
+            for( int y=0; y<height; y++ ){
+                for( int x=0; x<width; x++ ){
+                    for( int b=0; b<raster.getNumBands(); b++ ){
+                        // Runs as well as noise, so PackBits has something to do.
+                        raster.setSample(x, y, b, x % 40 < 10 ? (y*7+b*50) & max : random.nextInt(max+1));
+                    }
+                }
+            }
+        }
+        return images;
+    }
+
+    private static BufferedImage component(ColorSpace space, boolean hasAlpha, int width, int height){
+        ColorModel colorModel = new ComponentColorModel(space, hasAlpha, false, hasAlpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE,
+                                                        DataBuffer.TYPE_USHORT);
+        return new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(width, height), false, null);
+    }
+
+    /**
+     * The image on an empty output of the given size, the way the writer should lay it out.
+     */
+    static BufferedImage placed(BufferedImage image, Point origin, Dimension outputSize){
+        ColorModel colorModel = image.getColorModel();
+        WritableRaster raster = colorModel.createCompatibleWritableRaster(outputSize.width, outputSize.height);
+        Rectangle onOutput = new Rectangle(origin.x, origin.y, image.getWidth(), image.getHeight()).intersection(new Rectangle(outputSize));
+        raster.setRect(image.getRaster().createChild(onOutput.x-origin.x, onOutput.y-origin.y, onOutput.width, onOutput.height,
+                                                     onOutput.x, onOutput.y, null));
+        return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+    }
+
+    static void assertSamplesEqual(String what, BufferedImage expected, BufferedImage actual){
+        assertEquals(what, expected.getWidth(), actual.getWidth());
+        assertEquals(what, expected.getHeight(), actual.getHeight());
+        Raster expectedRaster = expected.getRaster();
+        Raster actualRaster = actual.getRaster();
+        assertEquals(what, expectedRaster.getNumBands(), actualRaster.getNumBands());
+        assertEquals(what, expected.getColorModel().getComponentSize(0), actual.getColorModel().getComponentSize(0));
+
+        int width = expected.getWidth();
+        int[] expectedRow = null, actualRow = null;
+        for( int y=0; y<expected.getHeight(); y++ ){
+            expectedRow = expectedRaster.getPixels(0, y, width, 1, expectedRow);
+            actualRow = actualRaster.getPixels(0, y, width, 1, actualRow);
+            if( !Arrays.equals(expectedRow, actualRow) ){
+                fail(what+": row "+y+" differs");
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package export;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public class WriteBehindStageTest {
+
+    private Path folder;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("write-behind");
+    }
+
+    @After
+    public void deleteFolder() throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void writesLandWhereTheyWereAsked() throws IOException {
+        byte[] expected = bytes(3*1024*1024+17, 1);
+
+        try (WriteBehindStage stage = new WriteBehindStage(2, 1, true)) {
+            WriteBehindStage.PendingFile pending = stage.open(folder.resolve("a.bin").toFile());
+            // The second half first, then the start, the way a TIFF writer goes back to fill in its header.
+            pending.write(ByteBuffer.wrap(expected, 1000, expected.length-1000), 1000);
+            pending.write(ByteBuffer.wrap(expected, 0, 1000), 0);
+            assertEquals(expected.length, pending.length());
+            pending.commit(null);
+
+            WriteBehindStage.PendingFile discarded = stage.open(folder.resolve("b.bin").toFile());
+            discarded.write(ByteBuffer.wrap(expected), 0);
+            discarded.discard();
+        }
+
+        assertArrayEquals(expected, Files.readAllBytes(folder.resolve("a.bin")));
+        assertEquals(Arrays.asList("a.bin"), list());
+    }
+
+    @Test
+    public void filesForTheSameTargetDontShareATempFile() throws IOException {
+        byte[] first = bytes(2*1024*1024, 2);
+        byte[] second = bytes(1024*1024, 3);
+
+        try (WriteBehindStage stage = new WriteBehindStage(2, 64L*1024*1024, false)) {
+            WriteBehindStage.PendingFile a = stage.open(folder.resolve("same.bin").toFile());
+            WriteBehindStage.PendingFile b = stage.open(folder.resolve("same.bin").toFile());
+            a.write(ByteBuffer.wrap(first), 0);
+            b.write(ByteBuffer.wrap(second), 0);
+            a.commit(null);
+            b.commit(null);
+        }
+
+        // Whichever was renamed into place last, it's one file whole, and no temporary file is left.
+        byte[] written = Files.readAllBytes(folder.resolve("same.bin"));
+        assertTrue(Arrays.equals(first, written) || Arrays.equals(second, written));
+        assertEquals(Arrays.asList("same.bin"), list());
+    }
+
+    @Test
+    public void failingCallbackDoesntHangTheEncoders() throws InterruptedException {
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+
+        Thread encoder = new Thread(() -> {
+            try (WriteBehindStage stage = new WriteBehindStage(1, 1, false)) {
+                WriteBehindStage.PendingFile first = stage.open(folder.resolve("first.bin").toFile());
+                first.write(ByteBuffer.wrap(bytes(1024, 4)), 0);
+                first.commit(() -> {
+                    throw new IllegalStateException("Callback failed.");
+                });
+                // Far more than the queue holds, so these wait on the writer to make room.
+                for( int f=0; f<20; f++ ){
+                    WriteBehindStage.PendingFile pending = stage.open(folder.resolve(f+".bin").toFile());
+                    pending.write(ByteBuffer.wrap(bytes(1024*1024, f)), 0);
+                    pending.commit(null);
+                }
+            } catch (IOException | RuntimeException ex) {
+                thrown.set(ex);
+            }
+        });
+        encoder.start();
+        encoder.join(30000);
+
+        assertFalse("The encoder is still waiting on the writer.", encoder.isAlive());
+        assertTrue(thrown.get() instanceof IOException);
+        for( String name : list() ){
+            assertFalse(name+" was left behind.", name.endsWith(".tmp"));
+        }
+    }
+
+    private List<String> list(){
+        String[] names = folder.toFile().list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private static byte[] bytes(int length, int seed){
+        byte[] bytes = new byte[length];
+        for( int i=0; i<length; i++ ){
+            bytes[i] = (byte)(i*31+seed*7+(i >> 12));
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public class CompositeTileCacheTest {
+
+    private static final int TILE_BYTES = 4*16*16;
+
+    @Test
+    public void dropsTheTileUsedLongestAgo(){
+        CompositeTileCache cache = new CompositeTileCache(3*TILE_BYTES);
+        put(cache, 0, 0, 0);
+        put(cache, 0, 1, 0);
+        put(cache, 0, 2, 0);
+        cache.get(0, 0, 0);
+        put(cache, 0, 3, 0);
+
+        assertNotNull(cache.get(0, 0, 0));
+        assertNull(cache.get(0, 1, 0));
+        assertNotNull(cache.get(0, 2, 0));
+        assertNotNull(cache.get(0, 3, 0));
+        assertEquals(3*TILE_BYTES, cache.bytes());
+    }
+
+    @Test
+    public void keepsTilesInUseOverAStaleOverview(){
+        CompositeTileCache cache = new CompositeTileCache(4*TILE_BYTES);
+        put(cache, 1, 0, 0);
+        // Panning at full size, so the tiles on screen keep being asked for while the overview isn't.
+        for( int x=0; x<40; x++ ){
+            for( int onScreen=Math.max(0, x-2); onScreen<x; onScreen++ ){
+                assertNotNull("tile " + onScreen + " on screen", cache.get(0, onScreen, 0));
+            }
+            put(cache, 0, x, 0);
+        }
+
+        assertNull(cache.get(1, 0, 0));
+        assertTrue(cache.bytes() <= cache.getMaxBytes());
+    }
+
+    @Test
+    public void keepsAnOverviewOverFullSizeTilesOfTheSameAge(){
+        CompositeTileCache cache = new CompositeTileCache(3*TILE_BYTES);
+        put(cache, 0, 0, 0);
+        put(cache, 1, 0, 0);
+        put(cache, 0, 1, 0);
+        put(cache, 0, 2, 0);
+
+        assertNotNull(cache.get(1, 0, 0));
+        assertNull(cache.get(0, 0, 0));
+        // Older than the full size tiles, but not by enough to make up for standing for four of them.
+        put(cache, 0, 3, 0);
+        assertNotNull(cache.get(1, 0, 0));
+        assertNull(cache.get(0, 1, 0));
+    }
+
+    @Test
+    public void staysWithinBudgetWhenItShrinks(){
+        CompositeTileCache cache = new CompositeTileCache(8*TILE_BYTES);
+        for( int level=0; level<3; level++ ){
+            for( int x=0; x<3; x++ ){
+                put(cache, level, x, 0);
+            }
+        }
+        assertEquals(8*TILE_BYTES, cache.bytes());
+
+        cache.setMaxBytes(2*TILE_BYTES);
+        assertEquals(2*TILE_BYTES, cache.bytes());
+        cache.setMaxBytes(0);
+        assertEquals(0, cache.bytes());
+    }
+
+    private static void put(CompositeTileCache cache, int level, int tileX, int tileY){
+        cache.put(level, tileX, tileY, new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB), cache.version());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 Robert F Cooper <rfcooper@sas.upenn.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package montage;
+
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that the LayerCompositor comes out pixel for pixel the same as drawing the layers with Graphics2D, the way
+ * the flattened image used to be made, for every kind of layer image a document can have.
+ *
+ * @author Robert F Cooper <rfcooper@sas.upenn.edu>
+ */
+public class LayerCompositorTest {
+
+    private static final Dimension CANVAS = new Dimension(600, 300);
+
+    @Test
+    public void intLayersMatchJava2D(){
+        assertMatchesJava2D(BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Test
+    public void byteLayersMatchJava2D(){
+        assertMatchesJava2D(BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    @Test
+    public void grayLayersMatchJava2D(){
+        assertMatchesJava2D(BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY);
+    }
+
+    @Test
+    public void reinterpretedLayersMatchJava2D(){
+        ColorSpace gray = new ICC_ColorSpace(ICC_Profile.getInstance(ColorSpace.CS_GRAY));
+        ColorSpace srgb = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+
+        // What the PSD reader hands back: gray or RGB, with or without alpha, at 8 or 16 bits.
+        List<BufferedImage> images = new ArrayList<>();
+        Random random = new Random(7);
+        images.add(randomImage(componentModel(gray, true, DataBuffer.TYPE_BYTE), 150, 120, random));
+        images.add(randomImage(componentModel(gray, false, DataBuffer.TYPE_BYTE), 300, 90, random));
+        images.add(randomImage(componentModel(gray, true, DataBuffer.TYPE_USHORT), 270, 260, random));
+        images.add(randomImage(componentModel(srgb, true, DataBuffer.TYPE_BYTE), 320, 200, random));
+        images.add(randomImage(componentModel(srgb, true, DataBuffer.TYPE_USHORT), 200, 280, random));
+        images.add(randomImage(componentModel(srgb, false, DataBuffer.TYPE_USHORT), 90, 70, random));
+
+        assertMatchesJava2D(images, random);
+    }
+
+    @Test
+    public void flattenedGrayDocumentMatchesJava2D(){
+        ColorSpace gray = new ICC_ColorSpace(ICC_Profile.getInstance(ColorSpace.CS_GRAY));
+        Random random = new Random(11);
+        PsdData data = new PsdData("gray", CANVAS, gray, 16);
+
+        for( int l=0; l<5; l++ ){
+            BufferedImage image = randomImage(componentModel(gray, l != 4, l%2 == 0 ? DataBuffer.TYPE_USHORT : DataBuffer.TYPE_BYTE),
+                                              100+random.nextInt(300), 50+random.nextInt(200), random);
+            Rectangle bounds = new Rectangle(random.nextInt(CANVAS.width)-100, random.nextInt(CANVAS.height)-50,
+                                             image.getWidth(), image.getHeight());
+            data.addLayer(new PsdLayer(image, "Layer "+l, bounds, 0.3f+0.15f*l));
+        }
+        data.revalidate();
+
+        BufferedImage expected = new BufferedImage(CANVAS.width, CANVAS.height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = expected.createGraphics();
+        for( PsdLayer layer : data.getMontageLayers() ){
+            g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.DST_OVER, layer.opacity));
+            g2d.drawImage(layer.getLayerImage(), layer.bounds.x, layer.bounds.y, null);
+        }
+        g2d.dispose();
+
+        assertArrayEquals(pixels(expected), pixels(data.getFlattenedImage()));
+    }
+
+    private static void assertMatchesJava2D(int... types){
+        Random random = new Random(types[0]);
+        List<BufferedImage> images = new ArrayList<>();
+        for( int type : types ){
+            for( int l=0; l<3; l++ ){
+                BufferedImage image = new BufferedImage(60+random.nextInt(300), 40+random.nextInt(250), type);
+                fill(image.getRaster(), random);
+                images.add(image);
+            }
+        }
+        assertMatchesJava2D(images, random);
+    }
+
+    // Places the images around the canvas, some of them partly off it, and composites them both ways.
+    private static void assertMatchesJava2D(List<BufferedImage> images, Random random){
+        List<LayerCompositor.Placed> placed = new ArrayList<>();
+        BufferedImage expected = new BufferedImage(CANVAS.width, CANVAS.height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = expected.createGraphics();
+
+        for( BufferedImage image : images ){
+            Point at = new Point(random.nextInt(CANVAS.width+100)-150, random.nextInt(CANVAS.height+100)-150);
+            float opacity = random.nextInt(4) == 0 ? 1f : random.nextFloat();
+            placed.add(new LayerCompositor.Placed(image, at, opacity));
+
+            g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.DST_OVER, opacity));
+            g2d.drawImage(image, at.x, at.y, null);
+        }
+        g2d.dispose();
+
+        BufferedImage composited = new BufferedImage(CANVAS.width, CANVAS.height, BufferedImage.TYPE_INT_ARGB);
+        new LayerCompositor(ForkJoinPool.commonPool()).composite(placed, composited, new Point(0, 0));
+        assertArrayEquals(pixels(expected), pixels(composited));
+
+        // Just part of it, into a subimage, on one thread.
+        Rectangle region = new Rectangle(130, 70, 300, 170);
+        BufferedImage part = new BufferedImage(CANVAS.width, CANVAS.height, BufferedImage.TYPE_INT_ARGB);
+        new LayerCompositor(null).composite(placed, part.getSubimage(region.x, region.y, region.width, region.height),
+                                            region.getLocation());
+        assertArrayEquals(pixels(expected.getSubimage(region.x, region.y, region.width, region.height)),
+                          pixels(part.getSubimage(region.x, region.y, region.width, region.height)));
+    }
+
+    private static ColorModel componentModel(ColorSpace colorSpace, boolean hasAlpha, int transferType){
+        return new ComponentColorModel(colorSpace, hasAlpha, false, hasAlpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE,
+                                       transferType);
+    }
+
+    private static BufferedImage randomImage(ColorModel colorModel, int width, int height, Random random){
+        WritableRaster raster = colorModel.createCompatibleWritableRaster(width, height);
+        fill(raster, random);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    // Random samples, with some runs of fully transparent and fully opaque pixels where there's alpha.
+    private static void fill(WritableRaster raster, Random random){
+        int numBands = raster.getNumBands();
+        int[] maxValues = new int[numBands];
+        for( int b=0; b<numBands; b++ ){
+            maxValues[b] = (1 << raster.getSampleModel().getSampleSize(b))-1;
+        }
+
+        for( int y=0; y<raster.getHeight(); y++ ){
+            for( int x=0; x<raster.getWidth(); x++ ){
+                for( int b=0; b<numBands; b++ ){
+                    raster.setSample(x, y, b, random.nextInt(maxValues[b]+1));
+                }
+                if( numBands == 2 || numBands == 4 ){
+                    int run = (x/16+y/16)%4;
+                    if( run == 0 ){
+                        raster.setSample(x, y, numBands-1, 0);
+                    }else if( run == 1 ){
+                        raster.setSample(x, y, numBands-1, maxValues[numBands-1]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int[] pixels(BufferedImage image){
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}